@@ -0,0 +1,68 @@
+package msalter.crypto.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import msalter.crypto.RouteTable;
+
+/**
+ * <p>
+ * Gateway route resolution benchmarks - the GatewayService prefix routing table, with the original stream based lookup as a baseline
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GatewayRoutingBenchmark {
+
+	@Param({ "/accountdetails/12345", "/limitorder/", "/orderdetails/987654", "/unknown/path" })
+	public String path;
+
+	private RouteTable<Integer> routes;
+
+	@Setup
+	public void setUp() {
+
+		// the GatewayService default routes
+		routes = new RouteTable<>();
+		routes.add("/account", 8082);
+		routes.add("/accountdetails/", 8082);
+		routes.add("/limitorder", 8083);
+		routes.add("/orderdetails/", 8083);
+	}
+
+	@Benchmark
+	public Integer routeTable() {
+		return routes.resolve(path);
+	}
+
+	@Benchmark
+	public int parallelStreamBaseline() {
+
+		int port = 0;
+		if (Arrays.stream(new String[]{"/account","/accountdetails/"}).parallel().anyMatch(path::contains)) {
+			port = 8082;
+		}
+		else if (Arrays.stream(new String[]{"/limitorder","/orderdetails/"}).parallel().anyMatch(path::contains)) {
+			port = 8083;
+		}
+		return port;
+	}
+}
@@ -0,0 +1,104 @@
+package msalter.crypto.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import msalter.crypto.OrderBook;
+
+/**
+ * <p>
+ * Order book benchmarks - filling a book of a given size, and a price tick crossing a given share of it
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrderBookBenchmark {
+
+	// limit prices are spread over 1000.00 - 10999.99
+	private static final long MIN_PRICE = OrderBook.toPriceKey("1000");
+	private static final long TICK = OrderBook.toPriceKey("0.01");
+	private static final int PRICE_STEPS = 1000000;
+
+	/**
+	 * <p>
+	 * Random limit prices for a book
+	 * </p>
+	 */
+	@State(Scope.Thread)
+	public static class Orders {
+
+		@Param({ "1000", "100000" })
+		public int bookSize;
+
+		long[] prices;
+
+		@Setup(Level.Trial)
+		public void setUp() {
+
+			Random random = new Random(42);
+			prices = new long[bookSize];
+			for (int i = 0; i < bookSize; i++) {
+				prices[i] = MIN_PRICE + random.nextInt(PRICE_STEPS) * TICK;
+			}
+		}
+
+		OrderBook fill() {
+
+			OrderBook book = new OrderBook();
+			for (int i = 0; i < prices.length; i++) {
+				book.add(i, prices[i]);
+			}
+			return book;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A full book, rebuilt before every match as matching removes the crossed orders
+	 * </p>
+	 */
+	@State(Scope.Thread)
+	public static class FullBook {
+
+		@Param({ "0.001", "0.01" })
+		public double crossedShare;
+
+		OrderBook book;
+		long crossingPrice;
+
+		@Setup(Level.Invocation)
+		public void setUp(Orders orders) {
+
+			book = orders.fill();
+			crossingPrice = MIN_PRICE + (long) (PRICE_STEPS * (1 - crossedShare)) * TICK;
+		}
+	}
+
+	@Benchmark
+	public OrderBook fill(Orders orders) {
+		return orders.fill();
+	}
+
+	@Benchmark
+	public long[] match(FullBook fullBook) {
+		return fullBook.book.match(fullBook.crossingPrice);
+	}
+}
@@ -0,0 +1,104 @@
+package msalter.crypto.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+import msalter.crypto.Result;
+
+/**
+ * <p>
+ * Result mapping and json encoding benchmarks, on synthetic order_details result sets of varying sizes
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBenchmark {
+
+	// the columns of the order_details type
+	private static final List<String> COLUMNS = Arrays.asList("id", "account_id", "settlement_account_id", "client_id", "transaction_type", 
+			"ccy", "amount", "order_type", "limit_price", "stop_price", "execution_date", "execution_price", "settlement_ccy", 
+			"settlement_amount", "status", "created");
+
+	@Param({ "1", "100", "10000" })
+	public int rows;
+
+	private List<JsonArray> results;
+
+	private Result rowsResult;
+
+	@Setup
+	public void setUp() {
+
+		results = new ArrayList<>(rows);
+		for (long i = 1; i <= rows; i++) {
+			results.add(new JsonArray()
+					.add(i).add(2L).add(1L).add(1L).add("buy")
+					.add("XBT").add("50.000000000000000000").add("limit").add("8719.160000000").addNull()
+					.add("2019-07-01").add("8718.990000000").add("USD")
+					.add("435949.500000000000000000").add("processed").add("2019-07-01T10:15:30.123"));
+		}
+
+		rowsResult = createForRowsData();
+	}
+
+	/**
+	 * A new ResultSet per call, as ResultSet caches the rows it builds
+	 */
+	private ResultSet resultSet() {
+		return new ResultSet(COLUMNS, results, null);
+	}
+
+	@Benchmark
+	public Result createForRowsData() {
+		return Result.createForRowsData(Future.succeededFuture(resultSet()));
+	}
+
+	@Benchmark
+	public Result createForRowData() {
+		return Result.createForRowData(Future.succeededFuture(resultSet()));
+	}
+
+	@Benchmark
+	public Result createForValueData() {
+		return Result.createForValueData(Future.succeededFuture(resultSet()));
+	}
+
+	@Benchmark
+	public String encodePrettily() {
+		return rowsResult.toJson().encodePrettily();
+	}
+
+	@Benchmark
+	public String encode() {
+		return rowsResult.toJson().encode();
+	}
+
+	@Benchmark
+	public Buffer toBuffer() {
+		return rowsResult.toBuffer(false);
+	}
+}
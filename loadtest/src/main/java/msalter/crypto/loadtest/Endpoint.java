@@ -0,0 +1,115 @@
+package msalter.crypto.loadtest;
+
+import java.util.Locale;
+
+import org.HdrHistogram.Histogram;
+
+/**
+ * <p>
+ * A load test endpoint - its target rate and the latencies recorded for it
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class Endpoint {
+
+	// latencies in microseconds, up to 1 minute
+	private final Histogram latencies = new Histogram(60000000L, 3);
+
+	private final String name;
+	private final double rate;
+
+	// requests owed by the rate but not yet sent
+	private double credit = 0;
+
+	private long errors = 0;
+
+	/**
+	 * Create an endpoint
+	 * 
+	 * @param name		the endpoint name
+	 * @param rate		the target rate in requests per second
+	 */
+	public Endpoint(String name, double rate) {
+		this.name = name;
+		this.rate = rate;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	/**
+	 * Get the number of requests due after the passed time has elapsed
+	 * 
+	 * @param elapsedNanos	the time elapsed since the last call
+	 * @return				the number of requests to send now
+	 */
+	int due(long elapsedNanos) {
+
+		credit += rate * elapsedNanos / 1e9;
+		int due = (int) credit;
+		credit -= due;
+		return due;
+	}
+
+	/**
+	 * Record a request
+	 * 
+	 * @param latencyNanos	the latency
+	 * @param ok			was the request successful?
+	 */
+	void record(long latencyNanos, boolean ok) {
+
+		latencies.recordValue(Math.min(latencyNanos / 1000, latencies.getHighestTrackableValue()));
+		if (!ok) {
+			errors++;
+		}
+	}
+
+	/**
+	 * Drop everything recorded so far (at the end of the warmup)
+	 */
+	void reset() {
+		latencies.reset();
+		errors = 0;
+	}
+
+	/**
+	 * Report heading, in the column layout of report()
+	 * 
+	 * @return		the heading
+	 */
+	public static String heading() {
+		return String.format(Locale.ROOT, "%-20s %10s %8s %10s %10s %10s %10s %10s", 
+				"endpoint", "count", "errors", "req/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+	}
+
+	/**
+	 * Report the results of a run
+	 * 
+	 * @param seconds	the length of the measured run
+	 * @return			the report line
+	 */
+	public String report(double seconds) {
+		return String.format(Locale.ROOT, "%-20s %10d %8d %10.1f %10.3f %10.3f %10.3f %10.3f", 
+				name, latencies.getTotalCount(), errors, latencies.getTotalCount() / seconds,
+				percentile(50), percentile(99), percentile(99.9), latencies.getMaxValue() / 1000.0);
+	}
+
+	/**
+	 * Report the results of a run as a csv line (name, count, errors, req/s, p50, p99, p999, max)
+	 * 
+	 * @param seconds	the length of the measured run
+	 * @return			the csv line
+	 */
+	public String csv(double seconds) {
+		return String.format(Locale.ROOT, "%s,%d,%d,%.1f,%.3f,%.3f,%.3f,%.3f", 
+				name, latencies.getTotalCount(), errors, latencies.getTotalCount() / seconds,
+				percentile(50), percentile(99), percentile(99.9), latencies.getMaxValue() / 1000.0);
+	}
+
+	private double percentile(double percentile) {
+		return latencies.getValueAtPercentile(percentile) / 1000.0;
+	}
+}
@@ -0,0 +1,101 @@
+package msalter.crypto.loadtest;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Future;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Stand-in for the BTC price service - serves a random walk price on GET /btc-price and pushes every tick to the WebSocket 
+ * stream at /btc-price/stream
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class FakePriceServer extends AbstractVerticle {
+
+	private final int port;
+	private final long tickInterval;
+	private final double volatility;
+	private final Random random = new Random();
+
+	private final Set<ServerWebSocket> streams = new HashSet<>();
+
+	private volatile double price;
+
+	/**
+	 * Create the server
+	 * 
+	 * @param port				the port, 5000 for the real service
+	 * @param startPrice		the initial price
+	 * @param volatility		the maximum relative move per tick
+	 * @param tickInterval		the time between ticks in ms
+	 */
+	public FakePriceServer(int port, double startPrice, double volatility, long tickInterval) {
+		this.port = port;
+		this.price = startPrice;
+		this.volatility = volatility;
+		this.tickInterval = tickInterval;
+	}
+
+	/**
+	 * Get the current price
+	 * 
+	 * @return		the price
+	 */
+	public double price() {
+		return price;
+	}
+
+	@Override
+	public void start(Future<Void> fut) {
+
+		vertx.setPeriodic(tickInterval, id -> tick());
+
+		vertx.createHttpServer()
+		.websocketHandler(ws -> {
+			if (!ws.path().equals("/btc-price/stream")) {
+				ws.reject();
+				return;
+			}
+			streams.add(ws);
+			ws.closeHandler(v -> streams.remove(ws));
+		})
+		.requestHandler(request -> {
+			if (request.path().equals("/btc-price")) {
+				request.response()
+				.putHeader("content-type", "application/json")
+				.end(priceJson());
+			} else {
+				request.response().setStatusCode(404).end();
+			}
+		})
+		.listen(port, result -> {
+			if (result.succeeded()) {
+				fut.complete();
+			} else {
+				fut.fail(result.cause());
+			}
+		});
+	}
+
+	private void tick() {
+
+		// round to cents, as the real service does
+		price = Math.round(price * (1 + (random.nextDouble() * 2 - 1) * volatility) * 100) / 100.0;
+
+		String json = priceJson();
+		for (ServerWebSocket ws : streams) {
+			ws.writeTextMessage(json);
+		}
+	}
+
+	private String priceJson() {
+		return new JsonObject().put("price", price).encode();
+	}
+}
@@ -0,0 +1,196 @@
+package msalter.crypto.loadtest;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Open loop load generator - sends a mix of account and order requests through the gateway at fixed rates, regardless of how 
+ * quickly responses come back, and records the latency of every request per endpoint. Runs a warmup, which is not recorded, then 
+ * the measured run.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LoadGenerator extends AbstractVerticle {
+
+	private final String host;
+	private final int port;
+	private final int connections;
+	private final long warmupMillis;
+	private final long durationMillis;
+	private final FakePriceServer priceServer;
+
+	private final Endpoint createAccount;
+	private final Endpoint accountDetails;
+	private final Endpoint createLimitOrder;
+	private final Endpoint orderDetails;
+
+	private final List<Long> accountIds;
+	private final List<Long> orderIds;
+
+	private final CompletableFuture<List<Endpoint>> result = new CompletableFuture<>();
+
+	private final String runId = Long.toString(System.currentTimeMillis(), 36);
+	private long accountCount = 0;
+
+	private HttpClient client;
+	private long lastTick;
+
+	/**
+	 * Create a load generator
+	 * 
+	 * @param settings			the load test settings
+	 * @param priceServer		the price server, to place limit orders around the current price
+	 * @param accountIds		the ids of the trading accounts to use
+	 * @param orderIds			the ids of existing orders to fetch, added to as orders are created
+	 */
+	public LoadGenerator(JsonObject settings, FakePriceServer priceServer, List<Long> accountIds, List<Long> orderIds) {
+
+		this.host = settings.getString("gateway.host");
+		this.port = Integer.parseInt(settings.getString("gateway.port"));
+		this.connections = Integer.parseInt(settings.getString("connections"));
+		this.warmupMillis = Long.parseLong(settings.getString("warmup")) * 1000;
+		this.durationMillis = Long.parseLong(settings.getString("duration")) * 1000;
+		this.priceServer = priceServer;
+		this.accountIds = accountIds;
+		this.orderIds = orderIds;
+
+		createAccount = new Endpoint("createAccount", Double.parseDouble(settings.getString("rate.createAccount")));
+		accountDetails = new Endpoint("accountDetails", Double.parseDouble(settings.getString("rate.accountDetails")));
+		createLimitOrder = new Endpoint("createLimitOrder", Double.parseDouble(settings.getString("rate.createLimitOrder")));
+		orderDetails = new Endpoint("orderDetails", Double.parseDouble(settings.getString("rate.orderDetails")));
+	}
+
+	/**
+	 * Get the result of the run
+	 * 
+	 * @return		completed with the endpoints once the measured run is over
+	 */
+	public CompletableFuture<List<Endpoint>> result() {
+		return result;
+	}
+
+	@Override
+	public void start() {
+
+		client = vertx.createHttpClient(new HttpClientOptions()
+				.setDefaultHost(host)
+				.setDefaultPort(port)
+				.setKeepAlive(true)
+				.setMaxPoolSize(connections));
+
+		lastTick = System.nanoTime();
+		long timerId = vertx.setPeriodic(1, id -> tick());
+
+		vertx.setTimer(warmupMillis, id -> {
+			for (Endpoint endpoint : endpoints()) {
+				endpoint.reset();
+			}
+			System.out.println( "LoadGenerator - warmup done, measuring for " + durationMillis / 1000 + "s" );
+		});
+
+		vertx.setTimer(warmupMillis + durationMillis, id -> {
+			vertx.cancelTimer(timerId);
+			result.complete(endpoints());
+		});
+	}
+
+	@Override
+	public void stop() {
+		client.close();
+	}
+
+	private List<Endpoint> endpoints() {
+		return Arrays.asList(createAccount, accountDetails, createLimitOrder, orderDetails);
+	}
+
+	/**
+	 * Send the requests due since the last tick
+	 */
+	private void tick() {
+
+		long now = System.nanoTime();
+		long elapsed = now - lastTick;
+		lastTick = now;
+
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+
+		for (int i = createAccount.due(elapsed); i > 0; i--) {
+			send(createAccount, HttpMethod.POST, "/account/", "name=loadtest-" + runId + "-" + (++accountCount) + "&usd_balance=" + LoadTest.USD_BALANCE, false);
+		}
+
+		for (int i = accountDetails.due(elapsed); i > 0; i--) {
+			send(accountDetails, HttpMethod.GET, "/accountdetails/" + accountIds.get(random.nextInt(accountIds.size())), null, false);
+		}
+
+		for (int i = createLimitOrder.due(elapsed); i > 0; i--) {
+			// limit prices within 2% either side of the current price, so some orders cross as the price moves
+			double limit = priceServer.price() * (0.98 + random.nextDouble() * 0.04);
+			send(createLimitOrder, HttpMethod.POST, "/limitorder/", "account_id=" + accountIds.get(random.nextInt(accountIds.size())) 
+					+ "&price_limit=" + String.format(Locale.ROOT, "%.2f", limit), true);
+		}
+
+		for (int i = orderDetails.due(elapsed); i > 0 && !orderIds.isEmpty(); i--) {
+			send(orderDetails, HttpMethod.GET, "/orderdetails/" + orderIds.get(random.nextInt(orderIds.size())), null, false);
+		}
+	}
+
+	/**
+	 * Send a request and record its latency when the response is complete
+	 * 
+	 * @param endpoint			the endpoint
+	 * @param method			the http method
+	 * @param path				the path
+	 * @param form				the url encoded form body, or null
+	 * @param collectOrderId	add the id of the returned order to the orders to fetch?
+	 */
+	@SuppressWarnings("deprecation")
+	private void send(Endpoint endpoint, HttpMethod method, String path, String form, boolean collectOrderId) {
+
+		long start = System.nanoTime();
+
+		HttpClientRequest request = client.request(method, path, response -> {
+			response.bodyHandler(body -> {
+
+				boolean ok = response.statusCode() < 300;
+				endpoint.record(System.nanoTime() - start, ok);
+
+				if (ok && collectOrderId) {
+					collectOrderId(body);
+				}
+			});
+			response.exceptionHandler(err -> endpoint.record(System.nanoTime() - start, false));
+		});
+		request.exceptionHandler(err -> endpoint.record(System.nanoTime() - start, false));
+
+		if (form == null) {
+			request.end();
+		} else {
+			request.putHeader("content-type", "application/x-www-form-urlencoded").end(form);
+		}
+	}
+
+	private void collectOrderId(Buffer body) {
+
+		try {
+			JsonObject data = body.toJsonObject().getJsonObject("data");
+			if (data != null && data.getLong("id") != null) {
+				orderIds.add(data.getLong("id"));
+			}
+		} catch (RuntimeException e) {
+			// no body - the order is still counted, just not fetched
+		}
+	}
+}
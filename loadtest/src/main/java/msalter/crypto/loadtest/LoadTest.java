@@ -0,0 +1,274 @@
+package msalter.crypto.loadtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import io.vertx.core.Verticle;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonObject;
+import msalter.crypto.App;
+import msalter.crypto.DB;
+
+/**
+ * <p>
+ * End-to-end load test. Starts a throwaway Postgres from a local installation (or uses an existing, already initialised one), seeds 
+ * accounts and resting orders, boots all the App services against it with a fake price service on port 5000, drives mixed 
+ * account and order traffic through the gateway at the configured rates and reports latency percentiles and throughput per endpoint.
+ * </p>
+ * <p>
+ * Settings are passed as key=value arguments, see DEFAULTS. eg : 
+ * 
+ * 	java -jar loadtest.jar pg.bin=/usr/lib/postgresql/11/bin duration=60 rate.accountDetails=2000 report=baseline.csv
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LoadTest {
+
+	private static final String[][] DEFAULTS = {
+			{ "pg.bin", "" },							// Postgres binaries (initdb, pg_ctl) - if empty the server in config is used
+			{ "pg.port", "5433" },						// port of the throwaway Postgres
+			{ "schema", "../sql/CREATE_DB_Objects.sql" },	// the DB objects script loaded into the throwaway Postgres
+			{ "config", "config.properties" },			// the app DB config, when using an existing server
+			{ "instances", "" },						// instances of each http service - if empty the app default (1 per core)
+			{ "eventLoopPoolSize", "" },				// event loop threads - if empty the app default (2 per core)
+			{ "gateway.host", "127.0.0.1" },
+			{ "gateway.port", "8081" },
+			{ "price.port", "5000" },
+			{ "price.start", "8700" },					// initial BTC price
+			{ "price.volatility", "0.001" },			// maximum relative move per tick
+			{ "price.tickInterval", "100" },			// ms between price ticks
+			{ "seed.accounts", "100" },					// accounts created before the run
+			{ "seed.orders", "1000" },					// resting orders created before the run
+			{ "connections", "100" },					// maximum connections to the gateway
+			{ "warmup", "10" },							// s, not measured
+			{ "duration", "30" },						// s, measured
+			{ "rate.createAccount", "5" },				// requests per second per endpoint
+			{ "rate.accountDetails", "500" },
+			{ "rate.createLimitOrder", "100" },
+			{ "rate.orderDetails", "200" },
+			{ "report", "" },							// csv file to write the results to, if any
+	};
+
+	// opening balance of every account - the largest the DB takes, so orders are not rejected by the pre-trade balance check
+	static final String USD_BALANCE = "999999999";
+
+	public static void main(String[] args) throws Exception {
+
+		JsonObject settings = settings(args);
+		System.out.println( "LoadTest - " + settings.encode() );
+
+		LocalPostgres postgres = null;
+		String jdbcUrl;
+
+		if (!settings.getString("pg.bin").isEmpty()) {
+
+			// throwaway server
+			postgres = new LocalPostgres(settings.getString("pg.bin"), Integer.parseInt(settings.getString("pg.port")));
+			postgres.start();
+			postgres.createDatabase(new File(settings.getString("schema")));
+			jdbcUrl = postgres.url("crypto");
+
+			System.setProperty("crypto.config", writeConfig(settings).getPath());
+
+		} else {
+
+			// existing server
+			System.setProperty("crypto.config", settings.getString("config"));
+			JsonObject config = DB.getConfig();
+			jdbcUrl = "jdbc:postgresql://" + config.getString("host") + ":" + config.getInteger("port") + "/" + config.getString("database");
+		}
+
+		Vertx app = null;
+		Vertx driver = null;
+
+		try {
+
+			// seed before the services start, so the resting orders are in the order book
+			List<Long> accountIds = Collections.synchronizedList(new ArrayList<>());
+			List<Long> orderIds = new ArrayList<>();
+			seed(jdbcUrl, settings, accountIds, orderIds);
+
+			driver = Vertx.vertx();
+			app = App.createVertx();
+
+			FakePriceServer priceServer = new FakePriceServer(Integer.parseInt(settings.getString("price.port")),
+					Double.parseDouble(settings.getString("price.start")),
+					Double.parseDouble(settings.getString("price.volatility")),
+					Long.parseLong(settings.getString("price.tickInterval")));
+			await(driver, priceServer);
+
+			CompletableFuture<Void> started = new CompletableFuture<>();
+			App.deploy(app, res -> {
+				if (res.succeeded()) {
+					started.complete(null);
+				} else {
+					started.completeExceptionally(res.cause());
+				}
+			});
+			started.get();
+
+			System.out.println( "LoadTest - services started, warming up for " + settings.getString("warmup") + "s" );
+
+			LoadGenerator generator = new LoadGenerator(settings, priceServer, new ArrayList<>(accountIds), orderIds);
+			await(driver, generator);
+			List<Endpoint> endpoints = generator.result().get();
+
+			report(endpoints, Double.parseDouble(settings.getString("duration")), settings.getString("report"));
+
+		} finally {
+
+			if (app != null) {
+				close(app);
+			}
+			if (driver != null) {
+				close(driver);
+			}
+			if (postgres != null) {
+				postgres.stop();
+			}
+		}
+
+		System.exit(0);
+	}
+
+	/**
+	 * Parse the key=value arguments over the defaults
+	 */
+	private static JsonObject settings(String[] args) {
+
+		JsonObject settings = new JsonObject();
+		for (String[] setting : DEFAULTS) {
+			settings.put(setting[0], setting[1]);
+		}
+
+		for (String arg : args) {
+			int split = arg.indexOf('=');
+			if (split < 0 || !settings.containsKey(arg.substring(0, split))) {
+				throw new IllegalArgumentException("Unknown setting : " + arg);
+			}
+			settings.put(arg.substring(0, split), arg.substring(split + 1));
+		}
+		return settings;
+	}
+
+	/**
+	 * Write an app config for the throwaway server
+	 */
+	private static File writeConfig(JsonObject settings) throws IOException {
+
+		File config = File.createTempFile("crypto-loadtest", ".properties");
+		config.deleteOnExit();
+
+		try (PrintWriter writer = new PrintWriter(new FileWriter(config))) {
+			writer.println("host=localhost");
+			writer.println("port=" + settings.getString("pg.port"));
+			writer.println("username=postgres");
+			writer.println("password=");
+
+			String instances = settings.getString("instances");
+			if (!instances.isEmpty()) {
+				writer.println("accountService.instances=" + instances);
+				writer.println("orderService.instances=" + instances);
+				writer.println("gatewayService.instances=" + instances);
+			}
+			if (!settings.getString("eventLoopPoolSize").isEmpty()) {
+				writer.println("eventLoopPoolSize=" + settings.getString("eventLoopPoolSize"));
+			}
+		}
+		return config;
+	}
+
+	/**
+	 * Create the accounts and resting orders the run works on
+	 */
+	private static void seed(String jdbcUrl, JsonObject settings, List<Long> accountIds, List<Long> orderIds) throws SQLException {
+
+		int accounts = Integer.parseInt(settings.getString("seed.accounts"));
+		int orders = Integer.parseInt(settings.getString("seed.orders"));
+		double price = Double.parseDouble(settings.getString("price.start"));
+		JsonObject config = DB.getConfig();
+		Random random = new Random(42);
+		String runId = Long.toString(System.currentTimeMillis(), 36);
+
+		try (Connection connection = DriverManager.getConnection(jdbcUrl, config.getString("username"), config.getString("password"));
+				PreparedStatement createAccount = connection.prepareStatement("SELECT id FROM create_account(?, ?)");
+				PreparedStatement createOrder = connection.prepareStatement("SELECT id FROM create_limit_order(?, ?)")) {
+
+			for (int i = 1; i <= accounts; i++) {
+				createAccount.setString(1, "loadtest-seed-" + runId + "-" + i);
+				createAccount.setBigDecimal(2, new BigDecimal(USD_BALANCE));
+				try (ResultSet rs = createAccount.executeQuery()) {
+					rs.next();
+					accountIds.add(rs.getLong(1));
+				}
+			}
+
+			for (int i = 0; i < orders; i++) {
+				createOrder.setLong(1, accountIds.get(random.nextInt(accountIds.size())));
+				createOrder.setBigDecimal(2, BigDecimal.valueOf(price * (0.98 + random.nextDouble() * 0.04)).setScale(2, BigDecimal.ROUND_HALF_UP));
+				try (ResultSet rs = createOrder.executeQuery()) {
+					rs.next();
+					orderIds.add(rs.getLong(1));
+				}
+			}
+		}
+
+		System.out.println( "LoadTest - seeded " + accountIds.size() + " accounts and " + orderIds.size() + " orders" );
+	}
+
+	/**
+	 * Print the results and optionally write them to a csv file
+	 */
+	private static void report(List<Endpoint> endpoints, double seconds, String file) throws IOException {
+
+		System.out.println();
+		System.out.println(Endpoint.heading());
+		for (Endpoint endpoint : endpoints) {
+			System.out.println(endpoint.report(seconds));
+		}
+
+		if (!file.isEmpty()) {
+			try (PrintWriter writer = new PrintWriter(new FileWriter(file))) {
+				writer.println("endpoint,count,errors,req_per_s,p50_ms,p99_ms,p999_ms,max_ms");
+				for (Endpoint endpoint : endpoints) {
+					writer.println(endpoint.csv(seconds));
+				}
+			}
+			System.out.println( "LoadTest - results written to " + file );
+		}
+	}
+
+	private static void await(Vertx vertx, Verticle verticle) throws Exception {
+
+		CompletableFuture<Void> deployed = new CompletableFuture<>();
+		vertx.deployVerticle(verticle, res -> {
+			if (res.succeeded()) {
+				deployed.complete(null);
+			} else {
+				deployed.completeExceptionally(res.cause());
+			}
+		});
+		deployed.get();
+	}
+
+	private static void close(Vertx vertx) throws Exception {
+
+		CompletableFuture<Void> closed = new CompletableFuture<>();
+		vertx.close(res -> closed.complete(null));
+		closed.get();
+	}
+}
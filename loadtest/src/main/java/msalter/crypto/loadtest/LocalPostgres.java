@@ -0,0 +1,129 @@
+package msalter.crypto.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * A throwaway Postgres server run from a local installation's binaries (initdb, pg_ctl) in a temporary data directory, with 
+ * trust authentication for user postgres. Must not be run as root (Postgres refuses to).
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LocalPostgres {
+
+	private final File binDir;
+	private final int port;
+	private File dataDir;
+
+	/**
+	 * Create a server
+	 * 
+	 * @param binDir	the directory holding the initdb and pg_ctl binaries
+	 * @param port		the port to listen on
+	 */
+	public LocalPostgres(String binDir, int port) {
+		this.binDir = new File(binDir);
+		this.port = port;
+	}
+
+	/**
+	 * Initialise a new cluster and start the server
+	 * 
+	 * @throws IOException	if the server could not be started
+	 */
+	public void start() throws IOException {
+
+		dataDir = Files.createTempDirectory("crypto-loadtest-pg").toFile();
+
+		run("initdb", "-A", "trust", "-U", "postgres", "-E", "UTF-8", "-D", dataDir.getPath());
+		run("pg_ctl", "-D", dataDir.getPath(), "-o", "-p " + port + " -k " + dataDir.getPath(), "-l", new File(dataDir, "server.log").getPath(), "-w", "start");
+	}
+
+	/**
+	 * Create the crypto database and load the DB objects script into it
+	 * 
+	 * @param script		the DB objects script (sql/CREATE_DB_Objects.sql)
+	 * @throws IOException	if the script could not be read
+	 * @throws SQLException	if the script failed
+	 */
+	public void createDatabase(File script) throws IOException, SQLException {
+
+		try (Connection connection = DriverManager.getConnection(url("postgres"), "postgres", "");
+				Statement statement = connection.createStatement()) {
+			statement.execute("CREATE DATABASE crypto");
+		}
+
+		String sql = new String(Files.readAllBytes(script.toPath()), StandardCharsets.UTF_8);
+
+		try (Connection connection = DriverManager.getConnection(url("crypto"), "postgres", "");
+				Statement statement = connection.createStatement()) {
+			statement.execute(sql);
+		}
+	}
+
+	/**
+	 * Stop the server and delete its data directory
+	 */
+	public void stop() {
+
+		if (dataDir == null) {
+			return;
+		}
+
+		try {
+			run("pg_ctl", "-D", dataDir.getPath(), "-m", "fast", "-w", "stop");
+		} catch (IOException e) {
+			System.out.println( "LocalPostgres - failed to stop : " + e.getMessage() );
+		}
+
+		try (Stream<Path> files = Files.walk(dataDir.toPath())) {
+			files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+		} catch (IOException e) {
+			System.out.println( "LocalPostgres - failed to delete " + dataDir + " : " + e.getMessage() );
+		}
+		dataDir = null;
+	}
+
+	/**
+	 * Get the JDBC url of a database
+	 * 
+	 * @param database		the database name
+	 * @return				the url
+	 */
+	public String url(String database) {
+		return "jdbc:postgresql://localhost:" + port + "/" + database;
+	}
+
+	private void run(String binary, String... args) throws IOException {
+
+		String[] command = new String[args.length + 1];
+		command[0] = new File(binDir, binary).getPath();
+		System.arraycopy(args, 0, command, 1, args.length);
+
+		Process process = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(new File(dataDir.getParentFile(), dataDir.getName() + "-" + binary + ".log"))
+				.start();
+
+		try {
+			if (process.waitFor() != 0) {
+				throw new IOException(binary + " failed : " + Arrays.toString(command));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(binary + " interrupted");
+		}
+	}
+}
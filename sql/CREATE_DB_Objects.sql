@@ -69,7 +69,9 @@ CREATE TABLE account_balance
 	account_id BIGINT REFERENCES account(id) NOT NULL,
 	balance_date DATE NOT NULL DEFAULT CURRENT_DATE,
 	balance DECIMAL(27,18), -- yes, 18 dec places for ETH (!)
-	created TIMESTAMP DEFAULT CURRENT_TIMESTAMP
+	created TIMESTAMP DEFAULT CURRENT_TIMESTAMP,
+	-- one balance snapshot per account and day, also the index for the latest balance lookup
+	CONSTRAINT account_balance_account_date_key UNIQUE (account_id, balance_date)
 );
 ALTER TABLE account_balance OWNER to postgres;
 
@@ -93,6 +95,11 @@ CREATE TABLE client_order
 );
 ALTER TABLE client_order OWNER to postgres;
 
+-- an account's order history, paged on id (keyset pagination)
+CREATE INDEX client_order_account_id_id_idx ON client_order (account_id, id);
+-- open orders by price
+CREATE INDEX client_order_status_limit_price_idx ON client_order (status, limit_price);
+
 
 -- entry
 DROP TABLE IF EXISTS entry CASCADE ;
@@ -196,6 +203,35 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+DROP FUNCTION IF EXISTS apply_balance_delta;
+CREATE OR REPLACE FUNCTION apply_balance_delta (account_id BIGINT, value_date DATE, amount DECIMAL(27,18))
+RETURNS VOID AS $$
+#variable_conflict use_variable
+BEGIN
+	-- incremental balance maintenance - the cost is constant whatever the length of the account's history
+
+	-- add the amount to the value date's snapshot, creating it from the latest earlier snapshot if there is none yet
+	INSERT INTO account_balance(
+		account_id,
+		balance_date,
+		balance
+	) VALUES (
+		account_id,
+		value_date,
+		COALESCE(
+			(SELECT balance FROM account_balance WHERE account_balance.account_id = account_id AND balance_date < value_date ORDER BY balance_date DESC LIMIT 1),
+			CAST(0 as NUMERIC(27,18))) + amount
+	)
+	ON CONFLICT ON CONSTRAINT account_balance_account_date_key
+	DO UPDATE SET balance = account_balance.balance + amount;
+
+	-- backdated entry - carry the amount forward into any later snapshots (none in the normal, same day case)
+	UPDATE account_balance SET balance = balance + amount
+	WHERE account_balance.account_id = account_id AND balance_date > value_date;
+
+END;
+$$ LANGUAGE plpgsql;
+
 DROP FUNCTION IF EXISTS create_entry;
 CREATE OR REPLACE FUNCTION create_entry (account_id BIGINT, value_date DATE, amount DECIMAL(27,18), order_id BIGINT)
 RETURNS SETOF entry_details AS $$
@@ -215,6 +251,9 @@ BEGIN
 		order_id
 	) RETURNING ID INTO new_entry_id;
 
+	-- update the running balance
+	PERFORM apply_balance_delta(account_id, value_date, amount);
+
 	RETURN QUERY SELECT * FROM fetch_entry_details(new_entry_id);
 	
 END;
@@ -225,65 +264,38 @@ CREATE OR REPLACE FUNCTION revalue_account (account_id BIGINT, value_date DATE)
 RETURNS VOID AS $$
 #variable_conflict use_variable
 DECLARE 
-	current_balance DECIMAL(27,18);
-	cur_entry CURSOR FOR 	
-		SELECT account_balance.id AS balance_id, entry.account_id, entry.value_date, SUM(entry.amount) AS amount FROM entry 
-		LEFT OUTER JOIN account_balance ON account_balance.account_id = entry.account_id
-		WHERE entry.account_id = account_id AND entry.value_date >= value_date
-		GROUP BY account_balance.id, entry.account_id, entry.value_date ORDER BY entry.value_date DESC;
-	rec_entry   RECORD;
+	opening_balance DECIMAL(27,18);
 BEGIN
+	-- full rebuild of an account's balances from its entries, from the value date on
+	-- NOTE : balances are maintained incrementally by create_entry, this is only needed to repair them
 
-	-- get most recent balance	
+	-- get most recent balance before the value date
 	SELECT COALESCE(
 			(SELECT balance FROM account_balance WHERE account_balance.account_id = account_id AND balance_date < value_date ORDER BY balance_date DESC LIMIT 1),
-			CAST(0 as NUMERIC(27,18))) INTO current_balance;
+			CAST(0 as NUMERIC(27,18))) INTO opening_balance;
+
+	-- replace the balances from the value date on with the running total of the entries
+	DELETE FROM account_balance WHERE account_balance.account_id = account_id AND balance_date >= value_date;
+
+	INSERT INTO account_balance(
+		account_id,
+		balance_date,
+		balance
+	)
+	SELECT account_id, daily.value_date, opening_balance + SUM(daily.amount) OVER (ORDER BY daily.value_date)
+	FROM (
+		SELECT entry.value_date, SUM(entry.amount) AS amount FROM entry
+		WHERE entry.account_id = account_id AND entry.value_date >= value_date
+		GROUP BY entry.value_date
+	) AS daily;
 
- 	-- go through entries inserting / updating balances 
-	OPEN cur_entry;
-   
-	LOOP
-    	-- fetch row into the film
-      	FETCH cur_entry INTO rec_entry;
-		
-    	-- exit when no more row to fetch
-      	EXIT WHEN NOT FOUND;
- 
- 		-- update current balance
-		current_balance = current_balance + rec_entry.amount;
-		
-      	IF rec_entry.balance_id IS NULL THEN 
-         	RAISE NOTICE 'missing balance';
-		 
-		 	-- create new balance
-			INSERT INTO account_balance(		
-				account_id,
-				balance_date,
-				balance
-			) VALUES (
-				rec_entry.account_id,
-				rec_entry.value_date,
-				current_balance
-			);		 
-	 ELSE
-         RAISE NOTICE 'existing balance';	
-		 
-		 -- update existing balance
-		 UPDATE account_balance SET balance = current_balance WHERE id = rec_entry.balance_id;
-		 
-      END IF;
-   END LOOP;
-  
-   -- Close the cursor
-   CLOSE cur_entry;			
-	
 END;
 $$ LANGUAGE plpgsql;
 
 
 
 DROP FUNCTION IF EXISTS create_account;
-CREATE OR REPLACE FUNCTION create_account (xname VARCHAR(100) , usd_balance DECIMAL(27,18))
+CREATE OR REPLACE FUNCTION create_account (xname VARCHAR(100) , usd_balance DECIMAL(27,18), trading_ccy CHAR(3) DEFAULT 'XBT')
 RETURNS SETOF account_details AS $$
 DECLARE 
 new_client_id BIGINT;
@@ -298,25 +310,21 @@ BEGIN
 	-- TODO : move this out into own function
 	INSERT INTO client(name) VALUES (xname) RETURNING ID INTO new_client_id;
 	
-	-- create 2 accounts, one funding account for USD and one trading account for XBT
+	-- create 2 accounts, one funding account for USD and one trading account for the instrument traded (XBT, ETH, ...)
 	
 	-- USD account
 	INSERT INTO account(client_id, name, ccy, is_trading_account, default_settlement_account_id) VALUES (new_client_id, xname, 'USD',false, NULL) RETURNING ID INTO new_settlement_account_id;
-  -- XBT account
-	INSERT INTO account(client_id, name, ccy, is_trading_account, default_settlement_account_id) VALUES (new_client_id, xname, 'XBT',true, new_settlement_account_id) RETURNING ID INTO new_trading_account_id;
+  -- trading account
+	INSERT INTO account(client_id, name, ccy, is_trading_account, default_settlement_account_id) VALUES (new_client_id, xname, trading_ccy,true, new_settlement_account_id) RETURNING ID INTO new_trading_account_id;
 	
 	-- post opening balance entries
 	
 	-- USD opening balance
 	PERFORM create_entry(new_settlement_account_id, CURRENT_DATE, usd_balance, NULL);
-	-- XBT opening balance
+	-- trading account opening balance
 	PERFORM create_entry(new_trading_account_id, CURRENT_DATE, 0, NULL);
 	
-	-- revalue account balances
-	PERFORM revalue_account(new_settlement_account_id, CURRENT_DATE);
-	PERFORM revalue_account(new_trading_account_id, CURRENT_DATE);
-	
-	-- return account details of XBT account
+	-- return account details of trading account
 	RETURN QUERY SELECT * FROM fetch_account_details(new_trading_account_id);
 	
 END;
@@ -351,6 +359,37 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+DROP FUNCTION IF EXISTS fetch_account_orders;
+CREATE OR REPLACE FUNCTION fetch_account_orders (account_id BIGINT, after_order_id BIGINT, max_orders INT)
+RETURNS SETOF order_details AS $$
+BEGIN
+	-- one page of an account's order history, the orders after the given id in id order - a range scan of client_order_account_id_id_idx
+	RETURN QUERY SELECT	
+		client_order.id AS id,
+		client_order.account_id,
+		settlement_account_id,
+		client_account.client_id AS client_id,
+		transaction_type,
+		client_account.ccy AS ccy, 
+		amount,
+		order_type,
+		limit_price,
+		stop_price,
+		execution_date,
+		execution_price,
+		client_settlement_account.ccy AS settlement_ccy, 
+		settlement_amount,
+		client_order.status AS status,
+		client_order.created AS created	
+	FROM client_order 
+	LEFT OUTER JOIN account AS client_account ON client_account.id = client_order.account_id
+	LEFT OUTER JOIN account AS client_settlement_account ON client_settlement_account.id = settlement_account_id
+	WHERE client_order.account_id = fetch_account_orders.account_id AND client_order.id > after_order_id
+	ORDER BY client_order.id
+	LIMIT max_orders;
+END;
+$$ LANGUAGE plpgsql;
+
 DROP FUNCTION IF EXISTS create_limit_order;
 CREATE OR REPLACE FUNCTION create_limit_order (account_id BIGINT, price_limit DECIMAL (19, 9)) -- but where is amount?
 RETURNS SETOF order_details AS $$
@@ -390,6 +429,161 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+DROP FUNCTION IF EXISTS create_limit_orders;
+CREATE OR REPLACE FUNCTION create_limit_orders (account_ids BIGINT[], price_limits DECIMAL (19, 9)[])
+RETURNS SETOF order_details AS $$
+DECLARE
+	new_ids BIGINT[];
+	missing_account_id BIGINT;
+BEGIN
+	-- creates a whole batch of orders with one insert, all or none, returning them in the order passed
+
+	IF array_length(account_ids, 1) IS DISTINCT FROM array_length(price_limits, 1) THEN
+		RAISE EXCEPTION 'account_ids and price_limits differ in length';
+	END IF;
+
+	SELECT batch.account_id INTO missing_account_id FROM unnest(account_ids) AS batch(account_id)
+	LEFT OUTER JOIN account ON account.id = batch.account_id
+	WHERE account.id IS NULL
+	LIMIT 1;
+
+	IF FOUND THEN
+		RAISE EXCEPTION 'Account not found : %', missing_account_id;
+	END IF;
+
+	-- ids are generated in row order, so ordering by id keeps the order passed
+	WITH created AS (
+		INSERT INTO client_order(
+			account_id,
+			settlement_account_id,
+			transaction_type,
+			amount,
+			order_type,
+			limit_price,
+			status
+		)
+		SELECT
+			batch.account_id,
+			account.default_settlement_account_id,
+			'buy',
+			CAST(50 as numeric(27,18)),
+			'limit',
+			batch.price_limit,
+			'created'
+		FROM unnest(account_ids, price_limits) WITH ORDINALITY AS batch(account_id, price_limit, position)
+		INNER JOIN account ON account.id = batch.account_id
+		ORDER BY batch.position
+		RETURNING id
+	)
+	SELECT array_agg(created.id ORDER BY created.id) INTO new_ids FROM created;
+
+	RETURN QUERY SELECT details.* FROM unnest(new_ids) AS created(id), LATERAL fetch_order_details(created.id) AS details;
+
+END;
+$$ LANGUAGE plpgsql;
+
+
+DROP FUNCTION IF EXISTS fetch_order_account;
+CREATE OR REPLACE FUNCTION fetch_order_account (account_id BIGINT)
+RETURNS TABLE (client_id BIGINT, ccy CHAR(3), settlement_account_id BIGINT, settlement_ccy CHAR(3)) AS $$
+BEGIN
+	-- what an order needs of its account, none of which ever changes - for the order journal (see OrderJournal)
+	RETURN QUERY SELECT
+		client_account.client_id,
+		client_account.ccy,
+		client_account.default_settlement_account_id,
+		client_settlement_account.ccy
+	FROM account AS client_account
+	LEFT OUTER JOIN account AS client_settlement_account ON client_settlement_account.id = client_account.default_settlement_account_id
+	WHERE client_account.id = fetch_order_account.account_id;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP FUNCTION IF EXISTS reserve_order_ids;
+CREATE OR REPLACE FUNCTION reserve_order_ids (id_count INT)
+RETURNS SETOF BIGINT AS $$
+BEGIN
+	-- take order ids from the client_order identity, for orders created outside the DB and inserted later
+	RETURN QUERY SELECT nextval(pg_get_serial_sequence('client_order', 'id')) FROM generate_series(1, id_count);
+END;
+$$ LANGUAGE plpgsql;
+
+DROP FUNCTION IF EXISTS persist_limit_orders;
+CREATE OR REPLACE FUNCTION persist_limit_orders (order_ids BIGINT[], account_ids BIGINT[], price_limits DECIMAL (19, 9)[], created_at TIMESTAMP[])
+RETURNS TABLE (id BIGINT, settlement_account_id BIGINT, ccy CHAR(3)) AS $$
+#variable_conflict use_column
+BEGIN
+	-- inserts limit orders already acknowledged from the order journal, with their reserved ids. Orders already inserted are skipped, 
+	-- so the journal can be replayed after a crash. Returns the orders inserted, with what routes them to their order book.
+
+	IF array_length(order_ids, 1) IS DISTINCT FROM array_length(account_ids, 1) 
+		OR array_length(order_ids, 1) IS DISTINCT FROM array_length(price_limits, 1) 
+		OR array_length(order_ids, 1) IS DISTINCT FROM array_length(created_at, 1) THEN
+		RAISE EXCEPTION 'order_ids, account_ids, price_limits and created_at differ in length';
+	END IF;
+
+	RETURN QUERY WITH inserted AS (INSERT INTO client_order(
+		id,
+		account_id,
+		settlement_account_id,
+		transaction_type,
+		amount,
+		order_type,
+		limit_price,
+		status,
+		created
+	)
+	OVERRIDING SYSTEM VALUE
+	SELECT
+		batch.id,
+		batch.account_id,
+		account.default_settlement_account_id,
+		'buy',
+		CAST(50 as numeric(27,18)),
+		'limit',
+		batch.price_limit,
+		'created',
+		batch.created
+	FROM unnest(order_ids, account_ids, price_limits, created_at) AS batch(id, account_id, price_limit, created)
+	INNER JOIN account ON account.id = batch.account_id
+	ON CONFLICT (id) DO NOTHING
+	RETURNING client_order.id, client_order.account_id, client_order.settlement_account_id)
+	SELECT inserted.id, inserted.settlement_account_id, account.ccy
+	FROM inserted
+	INNER JOIN account ON account.id = inserted.account_id;
+
+END;
+$$ LANGUAGE plpgsql;
+
+
+DROP FUNCTION IF EXISTS fetch_account_states;
+CREATE OR REPLACE FUNCTION fetch_account_states (account_ids BIGINT[] DEFAULT NULL)
+RETURNS TABLE (account_id BIGINT, settlement_account_id BIGINT, balance NUMERIC, reserved NUMERIC) AS $$
+#variable_conflict use_column
+BEGIN
+	-- the accounts (all if account_ids is NULL) with their latest balance and the funds held by their open orders, for the account 
+	-- state engine which keeps them up to date in memory from then on (see AccountState)
+	RETURN QUERY SELECT
+		account.id,
+		account.default_settlement_account_id,
+		COALESCE(latest.balance, CAST(0 as NUMERIC(27,18))),
+		COALESCE(open_orders.reserved, CAST(0 as NUMERIC(27,18)))
+	FROM account
+	LEFT OUTER JOIN (
+		SELECT DISTINCT ON (account_balance.account_id) account_balance.account_id, account_balance.balance FROM account_balance
+		ORDER BY account_balance.account_id, account_balance.balance_date DESC
+	) AS latest ON latest.account_id = account.id
+	LEFT OUTER JOIN (
+		SELECT client_order.settlement_account_id, SUM(client_order.amount * client_order.limit_price) AS reserved FROM client_order
+		WHERE client_order.status = 'created'
+		GROUP BY client_order.settlement_account_id
+	) AS open_orders ON open_orders.settlement_account_id = account.id
+	WHERE fetch_account_states.account_ids IS NULL 
+		OR account.id = ANY(fetch_account_states.account_ids)
+		-- and the settlement accounts of the accounts passed
+		OR account.id IN (SELECT trading.default_settlement_account_id FROM account AS trading WHERE trading.id = ANY(fetch_account_states.account_ids));
+END;
+$$ LANGUAGE plpgsql;
 
 DROP FUNCTION IF EXISTS execute_limit_order;
 CREATE OR REPLACE FUNCTION execute_limit_order (order_id BIGINT, price_execution DECIMAL (19, 9)) 
@@ -417,16 +611,90 @@ BEGIN
 	PERFORM create_entry(o_details.settlement_account_id, o_details.execution_date, o_details.settlement_amount, order_id);
 	-- XBT opening balance
 	PERFORM create_entry(o_details.account_id, o_details.execution_date, o_details.amount, order_id);
-	
-	-- revalue account balances
-	PERFORM revalue_account(o_details.settlement_account_id, o_details.execution_date);
-	PERFORM revalue_account(o_details.account_id, o_details.execution_date);	
 
 	RETURN QUERY SELECT * FROM fetch_order_details(order_id);
 	
 END;
 $$ LANGUAGE plpgsql;
 
+DROP FUNCTION IF EXISTS execute_limit_orders;
+CREATE OR REPLACE FUNCTION execute_limit_orders (order_ids BIGINT[], price_execution DECIMAL (19, 9))
+RETURNS SETOF order_details AS $$
+DECLARE
+	executed_ids BIGINT[];
+	rec_account RECORD;
+BEGIN
+	-- settles a whole batch of orders at the same price in one transaction, set-based rather than order by order
+
+	-- update orders - only those still open, so an order can never be executed twice
+	WITH executed AS (
+		UPDATE client_order SET
+		execution_date = CURRENT_DATE,
+		execution_price = price_execution,
+		settlement_amount = amount * price_execution,
+		status = 'processed'
+		WHERE id = ANY(order_ids) AND status = 'created'
+		RETURNING id
+	)
+	SELECT array_agg(executed.id) INTO executed_ids FROM executed;
+
+	IF executed_ids IS NULL THEN
+		RETURN;
+	END IF;
+
+	-- post entries, settlement (USD) and trading (XBT) for every order
+	INSERT INTO entry(
+		account_id,
+		value_date,
+		amount,
+		order_id
+	)
+	SELECT settlement_account_id, execution_date, settlement_amount, id FROM client_order WHERE id = ANY(executed_ids)
+	UNION ALL
+	SELECT account_id, execution_date, amount, id FROM client_order WHERE id = ANY(executed_ids);
+
+	-- update the running balances, once per account touched
+	FOR rec_account IN
+		SELECT batch.account_id, batch.value_date, SUM(batch.amount) AS amount FROM (
+			SELECT settlement_account_id AS account_id, execution_date AS value_date, settlement_amount AS amount FROM client_order WHERE id = ANY(executed_ids)
+			UNION ALL
+			SELECT account_id, execution_date, amount FROM client_order WHERE id = ANY(executed_ids)
+		) AS batch
+		GROUP BY batch.account_id, batch.value_date
+	LOOP
+		PERFORM apply_balance_delta(rec_account.account_id, rec_account.value_date, rec_account.amount);
+	END LOOP;
+
+	RETURN QUERY SELECT details.* FROM unnest(executed_ids) AS executed(id), LATERAL fetch_order_details(executed.id) AS details;
+
+END;
+$$ LANGUAGE plpgsql;
+
+-- resting order type - the minimum needed to load the in-memory order book
+DROP TYPE IF EXISTS resting_order CASCADE;
+CREATE TYPE resting_order AS (
+	id BIGINT,
+	limit_price DECIMAL (19, 9)
+);
+
+DROP FUNCTION IF EXISTS fetch_resting_limit_orders;
+CREATE OR REPLACE FUNCTION fetch_resting_limit_orders (shard_count INT DEFAULT 1, shard INT DEFAULT 0, instrument CHAR(3) DEFAULT NULL)
+RETURNS SETOF resting_order AS $$
+BEGIN
+	-- called once at matcher startup, the order book is maintained in memory from then on
+	-- matching is by instrument (the ccy of the trading account, all instruments if NULL) and sharded by settlement account, each 
+	-- shard loads the orders of its own accounts (see ExecuteLimitOrders.shardOf)
+	RETURN QUERY SELECT
+		client_order.id,
+		client_order.limit_price
+		FROM client_order
+		INNER JOIN account ON account.id = client_order.account_id
+		WHERE client_order.status = 'created' AND client_order.order_type = 'limit' AND client_order.settlement_account_id % shard_count = shard
+			AND (instrument IS NULL OR account.ccy = instrument)
+		ORDER BY client_order.id;
+END;
+$$ LANGUAGE plpgsql;
+
 --
 -- Tests
 --
@@ -468,6 +736,52 @@ END;
 $$ LANGUAGE plpgsql;
 
 
+DROP FUNCTION IF EXISTS test_create_limit_orders;
+CREATE OR REPLACE FUNCTION test_create_limit_orders()
+RETURNS BIGINT AS $$
+DECLARE 
+	created_count BIGINT;
+	account_id BIGINT;
+BEGIN
+	SELECT account.id  INTO account_id FROM account WHERE is_trading_account = true AND account.name = 'Crypto Fund AG' LIMIT 1;
+	SELECT count(*) INTO created_count FROM create_limit_orders(ARRAY[account_id, account_id], CAST(ARRAY[8719.16, 8719.17] AS DECIMAL(19, 9)[]));
+	RETURN(created_count);
+END;
+$$ LANGUAGE plpgsql;
+
+
+DROP FUNCTION IF EXISTS test_persist_limit_orders;
+CREATE OR REPLACE FUNCTION test_persist_limit_orders()
+RETURNS BIGINT AS $$
+DECLARE 
+	persisted_count BIGINT;
+	account_id BIGINT;
+	order_ids BIGINT[];
+BEGIN
+	SELECT account.id  INTO account_id FROM account WHERE is_trading_account = true AND account.name = 'Crypto Fund AG' LIMIT 1;
+	SELECT array_agg(id) INTO order_ids FROM reserve_order_ids(2) AS reserved(id);
+	-- the second call inserts nothing
+	PERFORM persist_limit_orders(order_ids, ARRAY[account_id, account_id], CAST(ARRAY[8719.16, 8719.17] AS DECIMAL(19, 9)[]), ARRAY[now()::TIMESTAMP, now()::TIMESTAMP]);
+	SELECT count(*) INTO persisted_count FROM persist_limit_orders(order_ids, ARRAY[account_id, account_id], CAST(ARRAY[8719.16, 8719.17] AS DECIMAL(19, 9)[]), ARRAY[now()::TIMESTAMP, now()::TIMESTAMP]);
+	RETURN(persisted_count);
+END;
+$$ LANGUAGE plpgsql;
+
+
+DROP FUNCTION IF EXISTS test_fetch_account_states;
+CREATE OR REPLACE FUNCTION test_fetch_account_states()
+RETURNS BIGINT AS $$
+DECLARE 
+	state_count BIGINT;
+	account_id BIGINT;
+BEGIN
+	SELECT account.id  INTO account_id FROM account WHERE is_trading_account = true AND account.name = 'Crypto Fund AG' LIMIT 1;
+	SELECT count(*) INTO state_count FROM fetch_account_states(ARRAY[account_id]);
+	RETURN(state_count);
+END;
+$$ LANGUAGE plpgsql;
+
+
 DROP FUNCTION IF EXISTS test_fetch_order_details;
 CREATE OR REPLACE FUNCTION test_fetch_order_details()
 RETURNS BIGINT AS $$
@@ -481,6 +795,19 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+DROP FUNCTION IF EXISTS test_fetch_account_orders;
+CREATE OR REPLACE FUNCTION test_fetch_account_orders()
+RETURNS BIGINT AS $$
+DECLARE 
+	fetched_count BIGINT;
+	account_id BIGINT;
+BEGIN
+	SELECT account.id  INTO account_id FROM account WHERE is_trading_account = true AND account.name = 'Crypto Fund AG' LIMIT 1;
+	SELECT count(*) INTO fetched_count FROM fetch_account_orders(account_id, 0, 100);
+	RETURN(fetched_count);
+END;
+$$ LANGUAGE plpgsql;
+
 DROP FUNCTION IF EXISTS test_execute_limit_order;
 CREATE OR REPLACE FUNCTION test_execute_limit_order()
 RETURNS BIGINT AS $$
@@ -493,12 +820,32 @@ BEGIN
 END;
 $$ LANGUAGE plpgsql;
 
+DROP FUNCTION IF EXISTS test_execute_limit_orders;
+CREATE OR REPLACE FUNCTION test_execute_limit_orders()
+RETURNS BIGINT AS $$
+DECLARE
+	order_ids BIGINT[];
+	executed_count BIGINT;
+BEGIN
+	SELECT array_agg(client_order.id) INTO order_ids FROM client_order
+	INNER JOIN account ON account.id = client_order.account_id
+	WHERE account.name = 'Crypto Fund AG' AND client_order.status = 'created';
+	SELECT count(*) INTO executed_count FROM execute_limit_orders(order_ids, CAST(8720.16 AS DECIMAL(19, 9)));
+	RETURN(executed_count);
+END;
+$$ LANGUAGE plpgsql;
+
 /*
 -- Execute Tests
 SELECT test_create_account();
 SELECT test_fetch_account_details();
 SELECT test_create_limit_order();
+SELECT test_create_limit_orders();
+SELECT test_persist_limit_orders();
+SELECT test_fetch_account_states();
 SELECT test_fetch_order_details();
+SELECT test_fetch_account_orders();
 SELECT test_execute_limit_order();
+SELECT test_execute_limit_orders();
 */
 
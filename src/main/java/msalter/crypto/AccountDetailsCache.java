@@ -0,0 +1,185 @@
+package msalter.crypto;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.Shareable;
+
+/**
+ * <p>
+ * Bounded in-process cache of account details, keyed by account id. Entries are evicted least recently used first once the cache is 
+ * full, and expire after a fixed time to live. Accounts must be invalidated whenever their details (ie their balance) change.
+ * </p>
+ * <p>
+ * A DB read which was in flight while any account was invalidated must not be cached, as it may predate the change - callers take a 
+ * version before reading and pass it back with the value.
+ * </p>
+ * <p>
+ * The cache is thread safe and may be shared by several verticle instances through a local map.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class AccountDetailsCache implements Shareable {
+
+	private final int maxSize;
+	private final long ttlMillis;
+
+	// identifies this cache on the event bus, eg to skip its own invalidations
+	private final String id = UUID.randomUUID().toString();
+
+	// access-ordered, so the eldest entry is the least recently used
+	private final LinkedHashMap<Long, Entry> entries;
+
+	// incremented on every invalidation
+	private long version = 0;
+
+	// statistics
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	private long invalidations = 0;
+
+	/**
+	 * Create a cache
+	 * 
+	 * @param maxSize		the maximum number of accounts held
+	 * @param ttlMillis		the time to live of an entry in ms
+	 */
+	public AccountDetailsCache(int maxSize, long ttlMillis) {
+
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				if (size() > AccountDetailsCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Get the cached details of an account
+	 * 
+	 * @param accountId		the account id
+	 * @return				the account details, or null if not cached or expired
+	 */
+	public synchronized JsonObject get(long accountId) {
+
+		Entry entry = entries.get(accountId);
+
+		if (entry == null) {
+			misses++;
+			return null;
+		}
+
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(accountId);
+			evictions++;
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.details;
+	}
+
+	/**
+	 * Get the current version, to be taken before reading account details from the DB
+	 * 
+	 * @return		the version
+	 */
+	public synchronized long version() {
+		return version;
+	}
+
+	/**
+	 * Cache the details of an account, unless any account was invalidated since the passed version was taken
+	 * 
+	 * @param accountId		the account id
+	 * @param details		the account details
+	 * @param readVersion	the version taken before the details were read
+	 */
+	public synchronized void put(long accountId, JsonObject details, long readVersion) {
+
+		if (readVersion != version) {
+			return;
+		}
+
+		entries.put(accountId, new Entry(details, System.currentTimeMillis() + ttlMillis));
+	}
+
+	/**
+	 * Drop the details of an account
+	 * 
+	 * @param accountId		the account id
+	 */
+	public synchronized void invalidate(long accountId) {
+
+		version++;
+		invalidations++;
+		entries.remove(accountId);
+	}
+
+	/**
+	 * Get the id of this cache, unique across processes
+	 * 
+	 * @return		the id
+	 */
+	public String id() {
+		return id;
+	}
+
+	/**
+	 * Get the number of cached accounts (including any expired but not yet evicted)
+	 * 
+	 * @return		the number of cached accounts
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Get the cache statistics
+	 * 
+	 * @return		the statistics - size, hits, misses, hit ratio, evictions and invalidations
+	 */
+	public synchronized JsonObject getStats() {
+
+		long requests = hits + misses;
+
+		return new JsonObject()
+				.put("size", entries.size())
+				.put("maxSize", maxSize)
+				.put("hits", hits)
+				.put("misses", misses)
+				.put("hitRatio", requests == 0 ? 0.0 : hits / (double) requests)
+				.put("evictions", evictions)
+				.put("invalidations", invalidations);
+	}
+
+	/**
+	 * <p>
+	 * Cached account details with their expiry time
+	 * </p>
+	 */
+	private static final class Entry {
+
+		final JsonObject details;
+		final long expires;
+
+		Entry(JsonObject details, long expires) {
+			this.details = details;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package msalter.crypto;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+/**
+ * <p>
+ * Fan-out of order executions to the clients subscribed to an account, so clients are told of fills rather than polling for them.
+ * Each executed order is encoded once and queued to every subscriber of its trading and settlement accounts.
+ * </p>
+ * <p>
+ * Every subscriber has a bounded queue, written out only as fast as its connection takes it. When a slow client's queue is full the
+ * overflow policy applies :
+ *
+ * 	DROP_OLDEST - the oldest queued event is dropped, and a "dropped" event with the number dropped is sent ahead of the next event
+ * 	CONFLATE - all queued events are replaced by a single "resync" event, telling the client to fetch the account's details and order
+ * 	history once instead
+ * </p>
+ * <p>
+ * Not thread safe - an instance is owned by one verticle instance and used on its event loop only. The statistics are process-wide.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class AccountEvents {
+
+	/**
+	 * What to do when a subscriber's queue is full
+	 */
+	public enum Overflow { DROP_OLDEST, CONFLATE }
+
+	// statistics of all instances
+	private static final AtomicInteger subscriberCount = new AtomicInteger();
+	private static final AtomicLong delivered = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	private static final AtomicLong conflated = new AtomicLong();
+
+	private final int maxQueued;
+	private final Overflow overflow;
+
+	// account id -> subscribers
+	private final Map<Long, Set<Subscriber>> subscribers = new HashMap<>();
+
+	/**
+	 * Create a fan-out
+	 *
+	 * @param maxQueued		the maximum number of events queued per subscriber
+	 * @param overflow		what to do when a subscriber's queue is full
+	 */
+	public AccountEvents(int maxQueued, Overflow overflow) {
+
+		this.maxQueued = maxQueued;
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Subscribe a connection to the events of an account
+	 *
+	 * @param accountId		the account id
+	 * @param stream		the connection, for its back-pressure
+	 * @param writer		writes one event (json) to the connection
+	 * @return				the subscription, to be unsubscribed when the connection closes
+	 */
+	public Subscriber subscribe(long accountId, WriteStream<?> stream, Handler<String> writer) {
+
+		Subscriber subscriber = new Subscriber(accountId, stream, writer);
+		subscribers.computeIfAbsent(accountId, id -> new LinkedHashSet<>()).add(subscriber);
+		subscriberCount.incrementAndGet();
+		return subscriber;
+	}
+
+	/**
+	 * End a subscription - safe to call more than once
+	 *
+	 * @param subscriber	the subscription
+	 */
+	public void unsubscribe(Subscriber subscriber) {
+
+		Set<Subscriber> accountSubscribers = subscribers.get(subscriber.accountId);
+
+		if (accountSubscribers != null && accountSubscribers.remove(subscriber)) {
+			subscriberCount.decrementAndGet();
+			subscriber.queue.clear();
+			if (accountSubscribers.isEmpty()) {
+				subscribers.remove(subscriber.accountId);
+			}
+		}
+	}
+
+	/**
+	 * Publish executed orders to the subscribers of their trading and settlement accounts
+	 *
+	 * @param executedOrders	the Order Details of the executed orders
+	 */
+	public void publishExecuted(JsonArray executedOrders) {
+
+		if (subscribers.isEmpty()) {
+			return;
+		}
+
+		for (Object element : executedOrders) {
+
+			JsonObject order = (JsonObject) element;
+			Long accountId = order.getLong("account_id");
+			Long settlementAccountId = order.getLong("settlement_account_id");
+
+			Set<Subscriber> trading = subscribers.get(accountId);
+			Set<Subscriber> settlement = subscribers.get(settlementAccountId);
+
+			if (trading == null && settlement == null) {
+				continue;
+			}
+
+			String event = new JsonObject().put("type", "order.executed").put("order", order).encode();
+
+			if (trading != null) {
+				for (Subscriber subscriber : trading) {
+					subscriber.offer(event);
+				}
+			}
+			if (settlement != null && !settlementAccountId.equals(accountId)) {
+				for (Subscriber subscriber : settlement) {
+					subscriber.offer(event);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Get the number of subscriptions of this instance
+	 *
+	 * @return		the count
+	 */
+	public int size() {
+
+		int size = 0;
+		for (Set<Subscriber> accountSubscribers : subscribers.values()) {
+			size += accountSubscribers.size();
+		}
+		return size;
+	}
+
+	/**
+	 * Get the statistics of all instances in the process
+	 *
+	 * @return		the subscriber count and the events delivered, dropped and conflated
+	 */
+	public static JsonObject getStats() {
+
+		return new JsonObject()
+				.put("subscribers", subscriberCount.get())
+				.put("delivered", delivered.get())
+				.put("dropped", dropped.get())
+				.put("conflated", conflated.get());
+	}
+
+	/**
+	 * <p>
+	 * The subscription of one connection to one account
+	 * </p>
+	 */
+	public final class Subscriber {
+
+		private final long accountId;
+		private final WriteStream<?> stream;
+		private final Handler<String> writer;
+
+		// events waiting for the connection
+		private final ArrayDeque<String> queue = new ArrayDeque<>();
+
+		// events dropped since the last one written (DROP_OLDEST)
+		private int droppedSinceWrite = 0;
+
+		// is a drain handler set?
+		private boolean draining = false;
+
+		Subscriber(long accountId, WriteStream<?> stream, Handler<String> writer) {
+
+			this.accountId = accountId;
+			this.stream = stream;
+			this.writer = writer;
+		}
+
+		/**
+		 * Queue an event and write out what the connection takes
+		 *
+		 * @param event		the event (json)
+		 */
+		void offer(String event) {
+
+			if (queue.size() >= maxQueued) {
+
+				if (overflow == Overflow.DROP_OLDEST) {
+					queue.poll();
+					droppedSinceWrite++;
+					dropped.incrementAndGet();
+				} else {
+					conflated.addAndGet(queue.size() + 1);
+					queue.clear();
+					queue.add(new JsonObject().put("type", "resync").put("account_id", accountId).encode());
+					return;
+				}
+			}
+
+			queue.add(event);
+			flush();
+		}
+
+		/**
+		 * Write queued events until the connection's write queue is full, then wait for it to drain
+		 */
+		private void flush() {
+
+			while (!queue.isEmpty() && !stream.writeQueueFull()) {
+
+				if (droppedSinceWrite > 0) {
+					writer.handle(new JsonObject().put("type", "dropped").put("account_id", accountId).put("count", droppedSinceWrite).encode());
+					droppedSinceWrite = 0;
+				}
+
+				writer.handle(queue.poll());
+				delivered.incrementAndGet();
+			}
+
+			if (!queue.isEmpty() && !draining) {
+				draining = true;
+				stream.drainHandler(v -> {
+					draining = false;
+					flush();
+				});
+			}
+		}
+
+		/**
+		 * Get the number of events waiting for the connection
+		 *
+		 * @return		the count
+		 */
+		public int queued() {
+			return queue.size();
+		}
+	}
+}
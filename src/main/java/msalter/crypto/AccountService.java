@@ -3,20 +3,52 @@ package msalter.crypto;
 import java.math.BigDecimal;
 
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
 import io.vertx.ext.web.Router;
-import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * <p>
  * Account service hosting all Account-related endpoints
  * </p>
+ * <p>
+ * Account details are served from a bounded in-process cache, written through on account creation and invalidated by the account ids 
+ * published on ACCOUNTS_CHANGED whenever an account's balance changes.
+ * </p>
  * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
  * @version     0.1
  */
 public class AccountService extends BaseVerticle {
 
+	private static final Logger log = LoggerFactory.getLogger(AccountService.class);
+
+	// event bus address on which the ids (a json array) of accounts whose details have changed are published
+	public static final String ACCOUNTS_CHANGED = "accounts.changed";
+
+	// header of an ACCOUNTS_CHANGED message naming the cache (see AccountDetailsCache.id) which already holds the change
+	private static final String ORIGIN_HEADER = "origin";
+
+	// data access
+	private DB db;
+
+	// local map holding the account details cache shared by all instances
+	private static final String CACHE_MAP = "accounts.cache";
+
+	// account details, invalidated by ACCOUNTS_CHANGED
+	private AccountDetailsCache accountCache;
+
+	// true for the instance which created the shared cache and invalidates it
+	private boolean ownsCache;
+
 	/**
 	 * Service endpoint - create an account
 	 * 
@@ -24,31 +56,54 @@ public class AccountService extends BaseVerticle {
 	 * 
 	 * 	name - the name of the account to open
 	 * 	usd_balance - the opening usd balance
+	 * 	ccy - the instrument traded (optional, one of instruments in config.properties, default XBT)
 	 * 
-	 * @param routingContext	the Vertx routing context
+	 * @param request			the request
+	 * @param handler			a handler called with the Result
 	 * 
 	 * TODO : Add parameter validation
 	 * TODO : Implement top level try catch exception handling for any non-sql exceptions
 	 */
-	private void createAccount(RoutingContext routingContext) {
+	private void createAccount(ServiceRequest request, Handler<Result> handler) {
 
-        System.out.println( "AccountService - createAccount called..." );
+		log.debug("createAccount request_id={}", request.requestId());
 
         // get params
-		final String name = routingContext.request().getParam("name");
-		final BigDecimal usd_balance = new BigDecimal(routingContext.request().getParam("usd_balance"));
+		final String name = request.getParam("name");
+		final BigDecimal usd_balance = new BigDecimal(request.getParam("usd_balance"));
+		final String ccy = request.getParam("ccy") == null ? "XBT" : request.getParam("ccy");
+
+		// the trading account must have an order book
+		if (!Config.getList("instruments", "XBT").contains(ccy)) {
+			handler.handle(new Result(false, "Unknown instrument : " + ccy, null));
+			return;
+		}
 
         // define sql
-		String sql = "SELECT * FROM create_account(?,?)";
+		String sql = "SELECT * FROM create_account(?,?,?)";
 		
 		// set params
-		JsonArray params = new JsonArray().add(name).add(usd_balance.toString());
+		JsonArray params = DB.params(name, usd_balance, ccy);
 
 		// execute and return single row representing the Account Details
-		DB.execAndReturnRow(sql, params, vertx, result -> {
+		db.execAndReturnRow(sql, params, result -> {
+
+			if (result.isOk() && result.data != null) {
+
+				// the client's accounts are new - let other processes drop anything they hold under these ids, tagged so the cache 
+				// shared by this process does not drop the account written through below
+				JsonObject account = (JsonObject) result.data;
+				vertx.eventBus().publish(ACCOUNTS_CHANGED, new JsonArray()
+						.add(account.getLong("id"))
+						.add(account.getLong("default_settlement_account_id")),
+						new DeliveryOptions().addHeader(ORIGIN_HEADER, accountCache.id()));
+
+				// write through
+				accountCache.put(account.getLong("id"), account, accountCache.version());
+			}
 
 	        // create the response
-			setResponse(routingContext, result);
+			handler.handle(result);
 
 		});
 	}
@@ -60,34 +115,61 @@ public class AccountService extends BaseVerticle {
 	 * 
 	 * 	account_id - the name of the account to open
 	 * 
-	 * @param routingContext	the Vertx routing context
+	 * @param request			the request
+	 * @param handler			a handler called with the Result
 	 * 
 	 * TODO : Add parameter validation
 	 * TODO : Implement top level try catch exception handling for any non-sql exceptions
 	 */
-	private void fetchAccountDetails(RoutingContext routingContext) {			
+	private void fetchAccountDetails(ServiceRequest request, Handler<Result> handler) {			
 		
-        System.out.println( "AccountService - fetchAccountDetails called..." );
+		log.debug("fetchAccountDetails request_id={}", request.requestId());
 
         // get params
-		final long account_id = new Long(routingContext.request().getParam("account_id"));
+		final long account_id = Long.parseLong(request.getParam("account_id"));
+
+		// serve from the cache if possible
+		JsonObject cached = accountCache.get(account_id);
+		if (cached != null) {
+			handler.handle(new Result(cached));
+			return;
+		}
+
+		long cacheVersion = accountCache.version();
 
         // define sql
-		String sql = "SELECT * FROM fetch_account_details(?)";
+		String sql = "SELECT * FROM fetch_account_details(?::BIGINT)";
 		
 		// set params
-		JsonArray params = new JsonArray().add(Long.toString(account_id));
+		JsonArray params = DB.params(account_id);
 
 		// execute and return single row representing the Account Details
-		DB.execAndReturnRow(sql, params, vertx, result -> {
+		db.execAndReturnRow(sql, params, result -> {
+
+			if (result.isOk() && result.data != null) {
+				accountCache.put(account_id, (JsonObject) result.data, cacheVersion);
+			}
 
 	        // create the response
-			setResponse(routingContext, result);
+			handler.handle(result);
 
 		});				
 
 	} 
 
+	/**
+	 * Get the statistics of the account details cache shared by the instances running on a Vertx
+	 * 
+	 * @param vertx		the Vertx object
+	 * @return			the statistics (see AccountDetailsCache.getStats), or null if no instance was started yet
+	 */
+	public static JsonObject getCacheStats(Vertx vertx) {
+
+		LocalMap<String, AccountDetailsCache> caches = vertx.sharedData().getLocalMap(CACHE_MAP);
+		AccountDetailsCache cache = caches.get(CACHE_MAP);
+		return cache == null ? null : cache.getStats();
+	}
+
 	/**
 	 * Start the server after defining the routes
 	 * 
@@ -99,18 +181,54 @@ public class AccountService extends BaseVerticle {
 	@Override
 	public void start(Future<Void> fut) { 
 
+		db = new DB(vertx);
+
+		// one cache for all instances, so hits do not depend on which instance gets the request
+		LocalMap<String, AccountDetailsCache> caches = vertx.sharedData().getLocalMap(CACHE_MAP);
+		ownsCache = caches.putIfAbsent(CACHE_MAP, new AccountDetailsCache(config().getInteger("accountCache.maxSize", 10000), 
+				config().getLong("accountCache.ttl", 60000L))) == null;
+		accountCache = caches.get(CACHE_MAP);
+
+		// drop accounts changed by order execution or account creation - once per process, not once per instance
+		if (ownsCache) {
+			vertx.eventBus().<JsonArray>consumer(ACCOUNTS_CHANGED, message -> {
+				if (accountCache.id().equals(message.headers().get(ORIGIN_HEADER))) {
+					return;
+				}
+				for (Object account_id : message.body()) {
+					if (account_id != null) {
+						accountCache.invalidate(((Number) account_id).longValue());
+					}
+				}
+			});
+		}
+
 		// Create a router object.
 		Router router = Router.router(vertx);
 
 		router.route().handler(BodyHandler.create());
 		
-		router.post("/account/").handler(this::createAccount);
-		router.get("/accountdetails/:account_id").handler(this::fetchAccountDetails); 	
+		route(router, HttpMethod.POST, "/account/", this::createAccount);
+		route(router, HttpMethod.GET, "/accountdetails/:account_id", this::fetchAccountDetails);
 		
+		// serve the same endpoints to the gateway over the event bus
+		serveLocal("accounts");
+
 		// start server
 		startServer(fut, router, 8082);
 		
-        System.out.println( "AccountService - started" );
+		log.info("started");
 		
 	}
+
+	/**
+	 * Release the DB connection pool, and the shared cache if its consumer goes with this instance
+	 */
+	@Override
+	public void stop() {
+		db.close();
+		if (ownsCache) {
+			vertx.sharedData().<String, AccountDetailsCache>getLocalMap(CACHE_MAP).remove(CACHE_MAP, accountCache);
+		}
+	}
 }
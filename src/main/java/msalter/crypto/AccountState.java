@@ -0,0 +1,656 @@
+package msalter.crypto;
+
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Resident account state engine for the pre-trade balance check. The balance of every account and the funds reserved on it by open
+ * orders are loaded once from the DB (see fetch_account_states) and then kept up to date in memory, so an order's funds are reserved
+ * on its settlement account without a DB round trip. A buy limit order reserves its amount at its limit price, and is rejected if that
+ * exceeds the settlement account's available balance (balance less reserved).
+ * </p>
+ * <p>
+ * The funds are released if the order cannot be created, or when it is executed - the balances then change by the entries
+ * execute_limit_orders posts, as published on ExecuteLimitOrders.ORDERS_EXECUTED. Accounts created after the load are loaded on their
+ * first order. Amounts are held as longs scaled to 9 decimal places (see FixedPoint), balances being rounded down.
+ * </p>
+ * <p>
+ * Thread safe. One engine is shared by all OrderService instances through a local map, and is only current as long as executions are
+ * published to it, ie while ExecuteLimitOrders runs in the same process. Reservations made while it is loading wait for the load.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class AccountState implements Shareable {
+
+	private static final Logger log = LoggerFactory.getLogger(AccountState.class);
+
+	// local map holding the engine shared by all instances
+	private static final String STATE_MAP = "accounts.state";
+
+	// the amount of every limit order, as create_limit_order sets it
+	public static final long ORDER_AMOUNT = 50;
+
+	private static final String STATES_QUERY = "SELECT * FROM fetch_account_states(?::BIGINT[])";
+	private static final String ALL_STATES_QUERY = "SELECT * FROM fetch_account_states()";
+
+	// statistics
+	private final AtomicLong reservations = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+
+	// account id -> slot, open addressing with linear probing - account ids are never 0, which marks a free slot
+	private long[] ids = new long[1024];
+
+	// state by slot - the settlement account id (0 if none), balance and reserved funds
+	private long[] settlementIds = new long[1024];
+	private long[] balances = new long[1024];
+	private long[] reserved = new long[1024];
+
+	private int size = 0;
+
+	// interval between attempts to load the accounts in ms
+	private static final long LOAD_RETRY_INTERVAL = 5000;
+
+	// loading - the accounts executed while loading, reloaded once loaded (opener's event loop only), and the reservations waiting for 
+	// the load (guarded by loadWaiters)
+	private Vertx vertx;
+	private Context context;
+	private DB db;
+	private volatile boolean loaded = false;
+	private Set<Long> executedWhileLoading = new LinkedHashSet<>();
+	private final List<Handler<Result>> loadWaiters = new ArrayList<>();
+
+	/**
+	 * The outcome of a reservation
+	 */
+	public enum Check { OK, UNKNOWN_ACCOUNT, NOT_TRADING_ACCOUNT, INSUFFICIENT_FUNDS }
+
+	/**
+	 * Create an empty engine - see open() for the engine of a Vertx
+	 */
+	AccountState() {
+	}
+
+	/**
+	 * Get the engine shared by the instances running on a Vertx, loading it on first use. Must be called on the event loop of a verticle.
+	 *
+	 * @param vertx		the Vertx object
+	 * @return			the engine
+	 */
+	public static synchronized AccountState open(Vertx vertx) {
+
+		LocalMap<String, AccountState> states = vertx.sharedData().getLocalMap(STATE_MAP);
+		AccountState state = states.get(STATE_MAP);
+
+		if (state == null) {
+			state = new AccountState();
+			state.start(vertx);
+			states.put(STATE_MAP, state);
+		}
+
+		return state;
+	}
+
+	/**
+	 * Follow executions and load all accounts
+	 */
+	private void start(Vertx vertx) {
+
+		this.vertx = vertx;
+		this.context = vertx.getOrCreateContext();
+		this.db = new DB(vertx);
+
+		vertx.eventBus().<JsonArray>consumer(ExecuteLimitOrders.ORDERS_EXECUTED, message -> onExecuted(message.body()));
+		vertx.eventBus().<JsonObject>consumer(OrderJournal.ORDERS_REJECTED, message -> onRejected(message.body()));
+
+		load();
+	}
+
+	/**
+	 * Load all accounts
+	 */
+	private void load() {
+		db.execAndReturnRows(ALL_STATES_QUERY, null, result -> context.runOnContext(v -> onLoaded(result)));
+	}
+
+	/**
+	 * Accounts loaded - reload any executed meanwhile, as the load may or may not include their executions. On failure the waiting
+	 * reservations fail and the load is tried again later.
+	 */
+	private void onLoaded(Result result) {
+
+		if (!result.isOk()) {
+			log.error("failed to load account states, retrying in {} ms : {}", LOAD_RETRY_INTERVAL, result.message);
+			executedWhileLoading.clear();
+			notifyLoadWaiters(new Result(false, "Account balances not loaded : " + result.message, null));
+			vertx.setTimer(LOAD_RETRY_INTERVAL, id -> load());
+			return;
+		}
+
+		put(result);
+
+		if (!executedWhileLoading.isEmpty()) {
+			String ids = toArrayLiteral(executedWhileLoading);
+			executedWhileLoading = new LinkedHashSet<>();
+			db.execAndReturnRows(STATES_QUERY, DB.params(ids), reloaded -> context.runOnContext(v -> onLoaded(reloaded)));
+			return;
+		}
+
+		log.info("loaded {} account states", size());
+
+		synchronized (loadWaiters) {
+			loaded = true;
+		}
+		notifyLoadWaiters(result);
+	}
+
+	private void notifyLoadWaiters(Result result) {
+
+		List<Handler<Result>> waiters;
+		synchronized (loadWaiters) {
+			waiters = new ArrayList<>(loadWaiters);
+			loadWaiters.clear();
+		}
+		waiters.forEach(waiter -> waiter.handle(result));
+	}
+
+	/**
+	 * Reserve the funds of a limit order, loading the account first if it is not known yet
+	 *
+	 * @param accountId		the id of the trading account
+	 * @param priceLimit	the limit price, scaled (see FixedPoint)
+	 * @param handler		a handler called on the caller's context with an ok Result once reserved, or with the reason not
+	 */
+	public void reserve(long accountId, long priceLimit, Handler<Result> handler) {
+		reserve(new long[] { accountId }, new long[] { priceLimit }, handler);
+	}
+
+	/**
+	 * Reserve the funds of limit orders, all or none, loading any accounts not known yet
+	 *
+	 * @param accountIds	the ids of the trading accounts
+	 * @param priceLimits	the limit prices, scaled (see FixedPoint)
+	 * @param handler		a handler called on the caller's context with an ok Result once reserved, or with the reason not
+	 */
+	public void reserve(long[] accountIds, long[] priceLimits, Handler<Result> handler) {
+
+		long[] costs = new long[priceLimits.length];
+		for (int i = 0; i < priceLimits.length; i++) {
+			try {
+				costs[i] = orderCost(priceLimits[i]);
+			} catch (ArithmeticException e) {
+				// no balance could cover it
+				rejections.incrementAndGet();
+				handler.handle(new Result(false, "price_limit out of range : " + FixedPoint.toPlainString(priceLimits[i], FixedPoint.SCALE), 
+						null));
+				return;
+			}
+		}
+
+		if (!loaded) {
+
+			// wait for the load
+			Context callerContext = vertx.getOrCreateContext();
+
+			synchronized (loadWaiters) {
+				if (!loaded) {
+					loadWaiters.add(loadResult -> callerContext.runOnContext(v -> {
+						if (loadResult.isOk()) {
+							reserve(accountIds, priceLimits, handler);
+						} else {
+							handler.handle(loadResult);
+						}
+					}));
+					return;
+				}
+			}
+		}
+
+		int failed = reserveAll(accountIds, costs);
+		if (failed < 0 || check(accountIds[failed], costs[failed]) != Check.UNKNOWN_ACCOUNT) {
+			handler.handle(result(accountIds, costs, failed));
+			return;
+		}
+
+		// load the unknown accounts, then try again
+		Set<Long> unknown = new LinkedHashSet<>();
+		for (long accountId : accountIds) {
+			if (check(accountId, 0) == Check.UNKNOWN_ACCOUNT) {
+				unknown.add(accountId);
+			}
+		}
+
+		Context callerContext = vertx.getOrCreateContext();
+
+		db.execAndReturnRows(STATES_QUERY, DB.params(toArrayLiteral(unknown)), loadResult -> {
+
+			Result result;
+			if (!loadResult.isOk()) {
+				result = loadResult;
+			} else {
+				putIfAbsent(loadResult);
+				result = result(accountIds, costs, reserveAll(accountIds, costs));
+			}
+
+			callerContext.runOnContext(v -> handler.handle(result));
+		});
+	}
+
+	/**
+	 * Release the funds of a limit order which could not be created
+	 *
+	 * @param accountId		the id of the trading account
+	 * @param priceLimit	the limit price, scaled (see FixedPoint)
+	 */
+	public void release(long accountId, long priceLimit) {
+		releaseCost(accountId, orderCost(priceLimit));
+	}
+
+	/**
+	 * Release the funds of limit orders which could not be created
+	 *
+	 * @param accountIds	the ids of the trading accounts
+	 * @param priceLimits	the limit prices, scaled (see FixedPoint)
+	 */
+	public void release(long[] accountIds, long[] priceLimits) {
+
+		for (int i = 0; i < accountIds.length; i++) {
+			releaseCost(accountIds[i], orderCost(priceLimits[i]));
+		}
+	}
+
+	/**
+	 * Get the statistics of the engine shared by the instances running on a Vertx
+	 *
+	 * @param vertx		the Vertx object
+	 * @return			the number of accounts, of orders reserved and of rejected requests, or null if the engine is not open
+	 */
+	public static JsonObject getStats(Vertx vertx) {
+
+		LocalMap<String, AccountState> states = vertx.sharedData().getLocalMap(STATE_MAP);
+		AccountState state = states.get(STATE_MAP);
+
+		return state == null ? null : new JsonObject()
+				.put("accounts", state.size())
+				.put("reservations", state.reservations.get())
+				.put("rejections", state.rejections.get());
+	}
+
+	/**
+	 * Get the funds a limit order reserves
+	 *
+	 * @param priceLimit	the limit price, scaled
+	 * @return				the order amount at the limit price, scaled
+	 * @throws ArithmeticException	if the amount overflows a long, ie the limit price is above about 184467440
+	 */
+	static long orderCost(long priceLimit) {
+		return Math.multiplyExact(ORDER_AMOUNT, priceLimit);
+	}
+
+	/**
+	 * Scale an amount returned by the DB to a long with 9 decimal places
+	 *
+	 * @param amount		the amount
+	 * @param rounding		how to round any further decimal places
+	 * @return				the scaled amount
+	 */
+	static long toUnits(String amount, RoundingMode rounding) {
+		return FixedPoint.parse(amount, FixedPoint.SCALE, rounding);
+	}
+
+	/**
+	 * Executed orders - release their funds and apply the entries posted for them
+	 */
+	private void onExecuted(JsonArray executedOrders) {
+
+		for (Object element : executedOrders) {
+
+			JsonObject order = (JsonObject) element;
+
+			if (!loaded) {
+				executedWhileLoading.add(order.getLong("account_id"));
+				continue;
+			}
+
+			// an order whose amounts overflow was never reserved here - skip it rather than the orders after it
+			try {
+				executed(order.getLong("account_id"),
+						orderCost(toUnits(order.getString("limit_price"), RoundingMode.UP)),
+						toUnits(order.getString("amount"), RoundingMode.DOWN),
+						toUnits(order.getString("settlement_amount"), RoundingMode.DOWN));
+			} catch (ArithmeticException | NumberFormatException e) {
+				log.warn("executed order {} not applied to the account states : {}", order.getLong("id"), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * A journaled order was set aside as rejected by the DB - release its funds
+	 */
+	void onRejected(JsonObject order) {
+
+		// reservations are only made once loaded, and are never released below 0
+		try {
+			release(order.getLong("account_id"), FixedPoint.parse(order.getString("limit_price"), FixedPoint.SCALE, RoundingMode.UNNECESSARY));
+		} catch (ArithmeticException | NumberFormatException e) {
+			log.warn("rejected order {} not released : {}", order.getLong("id"), e.getMessage());
+		}
+	}
+
+	/**
+	 * Store the rows of fetch_account_states
+	 */
+	@SuppressWarnings("unchecked")
+	void put(Result result) {
+
+		for (JsonObject row : (List<JsonObject>) result.data) {
+			put(row);
+		}
+	}
+
+	/**
+	 * Store the rows of fetch_account_states of accounts not known yet - the state of those known is more recent than the DB's
+	 */
+	@SuppressWarnings("unchecked")
+	private synchronized void putIfAbsent(Result result) {
+
+		for (JsonObject row : (List<JsonObject>) result.data) {
+			if (slot(row.getLong("account_id")) < 0) {
+				put(row);
+			}
+		}
+	}
+
+	/**
+	 * Store a row of fetch_account_states - an account whose amounts do not fit is left out, so its orders are not checked here
+	 */
+	private void put(JsonObject row) {
+
+		long balance;
+		long reservedFunds;
+		try {
+			balance = toUnits(row.getString("balance"), RoundingMode.DOWN);
+			reservedFunds = toUnits(row.getString("reserved"), RoundingMode.UP);
+		} catch (ArithmeticException | NumberFormatException e) {
+			log.warn("account {} not loaded into the account states : {}", row.getLong("account_id"), e.getMessage());
+			return;
+		}
+
+		Long settlementAccountId = row.getLong("settlement_account_id");
+		put(row.getLong("account_id"), settlementAccountId == null ? 0 : settlementAccountId, balance, reservedFunds);
+	}
+
+	/**
+	 * Get the Result of a reservation
+	 */
+	private Result result(long[] accountIds, long[] costs, int failed) {
+
+		if (failed < 0) {
+			return new Result(true, null, null);
+		}
+
+		rejections.incrementAndGet();
+
+		long accountId = accountIds[failed];
+		switch (check(accountId, costs[failed])) {
+		case UNKNOWN_ACCOUNT:
+			return new Result(false, "Account not found : " + accountId, null);
+		case NOT_TRADING_ACCOUNT:
+			return new Result(false, "Not a trading account : " + accountId, null);
+		default:
+			return new Result(false, "Insufficient funds : account " + accountId, null);
+		}
+	}
+
+	private static String toArrayLiteral(Set<Long> ids) {
+
+		StringBuilder literal = new StringBuilder(ids.size() * 8).append('{');
+		for (Long id : ids) {
+			if (literal.length() > 1) {
+				literal.append(',');
+			}
+			literal.append(id);
+		}
+		return literal.append('}').toString();
+	}
+
+	//
+	// state - all amounts scaled (see toUnits)
+	//
+
+	/**
+	 * Set the state of an account
+	 *
+	 * @param accountId				the account id
+	 * @param settlementAccountId	the id of its settlement account, 0 if none
+	 * @param balance				the balance
+	 * @param reservedFunds			the funds reserved on it
+	 */
+	synchronized void put(long accountId, long settlementAccountId, long balance, long reservedFunds) {
+
+		int slot = slot(accountId);
+
+		if (slot < 0) {
+			if ((size + 1) * 2 > ids.length) {
+				grow();
+			}
+			slot = -slot(accountId) - 1;
+			ids[slot] = accountId;
+			size++;
+		}
+
+		settlementIds[slot] = settlementAccountId;
+		balances[slot] = balance;
+		reserved[slot] = reservedFunds;
+	}
+
+	/**
+	 * Reserve the funds of orders on their settlement accounts, all or none
+	 *
+	 * @param accountIds	the ids of the trading accounts
+	 * @param costs			the funds of each order
+	 * @return				-1 if reserved, otherwise the index of the first order which could not be
+	 */
+	synchronized int reserveAll(long[] accountIds, long[] costs) {
+
+		for (int i = 0; i < accountIds.length; i++) {
+
+			if (check(accountIds[i], costs[i]) != Check.OK || !addReserved(accountIds[i], costs[i])) {
+
+				// undo the orders reserved so far
+				for (int j = 0; j < i; j++) {
+					releaseCost(accountIds[j], costs[j]);
+				}
+				return i;
+			}
+		}
+
+		reservations.addAndGet(accountIds.length);
+		return -1;
+	}
+
+	/**
+	 * Add the funds of a checked order to the reserved funds of its settlement account
+	 *
+	 * @return		false if the reserved funds would overflow, leaving them unchanged
+	 */
+	private boolean addReserved(long accountId, long cost) {
+
+		int settlementSlot = settlementSlot(accountId);
+		try {
+			reserved[settlementSlot] = Math.addExact(reserved[settlementSlot], cost);
+			return true;
+		} catch (ArithmeticException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Check whether an order could be reserved
+	 *
+	 * @param accountId		the id of the trading account
+	 * @param cost			the funds of the order
+	 * @return				the outcome
+	 */
+	synchronized Check check(long accountId, long cost) {
+
+		int slot = slot(accountId);
+		if (slot < 0) {
+			return Check.UNKNOWN_ACCOUNT;
+		}
+		if (settlementIds[slot] == 0) {
+			return Check.NOT_TRADING_ACCOUNT;
+		}
+
+		int settlementSlot = slot(settlementIds[slot]);
+		if (settlementSlot < 0) {
+			return Check.UNKNOWN_ACCOUNT;
+		}
+
+		return cost > balances[settlementSlot] - reserved[settlementSlot] ? Check.INSUFFICIENT_FUNDS : Check.OK;
+	}
+
+	/**
+	 * Release the funds of an order on its settlement account
+	 *
+	 * @param accountId		the id of the trading account
+	 * @param cost			the funds of the order
+	 */
+	synchronized void releaseCost(long accountId, long cost) {
+
+		int settlementSlot = settlementSlot(accountId);
+		if (settlementSlot >= 0) {
+			// never below 0, eg for orders created before the load but executed after it
+			reserved[settlementSlot] = Math.max(0, reserved[settlementSlot] - cost);
+		}
+	}
+
+	/**
+	 * An order was executed - release its funds and apply the entries posted for it, as execute_limit_orders does
+	 *
+	 * @param accountId			the id of the trading account
+	 * @param cost				the funds reserved by the order
+	 * @param amount			the amount posted to the trading account
+	 * @param settlementAmount	the amount posted to the settlement account
+	 * @throws ArithmeticException	if a balance would overflow, leaving the accounts unchanged
+	 */
+	synchronized void executed(long accountId, long cost, long amount, long settlementAmount) {
+
+		int slot = slot(accountId);
+		if (slot < 0) {
+			// loaded on its next order
+			return;
+		}
+
+		int settlementSlot = settlementSlot(accountId);
+		long balance = Math.addExact(balances[slot], amount);
+		long settlementBalance = settlementSlot < 0 ? 0 : Math.addExact(balances[settlementSlot], settlementAmount);
+
+		releaseCost(accountId, cost);
+		balances[slot] = balance;
+		if (settlementSlot >= 0) {
+			balances[settlementSlot] = settlementBalance;
+		}
+	}
+
+	/**
+	 * Get the available balance of an account
+	 *
+	 * @param accountId		the account id
+	 * @return				the balance less the reserved funds, 0 if the account is not known
+	 */
+	synchronized long available(long accountId) {
+
+		int slot = slot(accountId);
+		return slot < 0 ? 0 : balances[slot] - reserved[slot];
+	}
+
+	/**
+	 * Get the funds reserved on an account
+	 *
+	 * @param accountId		the account id
+	 * @return				the reserved funds, 0 if the account is not known
+	 */
+	synchronized long reserved(long accountId) {
+
+		int slot = slot(accountId);
+		return slot < 0 ? 0 : reserved[slot];
+	}
+
+	/**
+	 * Get the number of accounts
+	 *
+	 * @return		the count
+	 */
+	synchronized int size() {
+		return size;
+	}
+
+	private int settlementSlot(long accountId) {
+
+		int slot = slot(accountId);
+		return slot < 0 || settlementIds[slot] == 0 ? -1 : slot(settlementIds[slot]);
+	}
+
+	/**
+	 * Find the slot of an account
+	 *
+	 * @param accountId		the account id
+	 * @return				the slot if found, otherwise (-(free slot) - 1)
+	 */
+	private int slot(long accountId) {
+
+		int mask = ids.length - 1;
+		int slot = Long.hashCode(accountId * 0x9E3779B97F4A7C15L) & mask;
+
+		while (ids[slot] != 0) {
+			if (ids[slot] == accountId) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -slot - 1;
+	}
+
+	/**
+	 * Double the slots, rehashing all accounts
+	 */
+	private void grow() {
+
+		long[] oldIds = ids;
+		long[] oldSettlementIds = settlementIds;
+		long[] oldBalances = balances;
+		long[] oldReserved = reserved;
+
+		ids = new long[oldIds.length * 2];
+		settlementIds = new long[ids.length];
+		balances = new long[ids.length];
+		reserved = new long[ids.length];
+
+		for (int i = 0; i < oldIds.length; i++) {
+			if (oldIds[i] != 0) {
+				int slot = -slot(oldIds[i]) - 1;
+				ids[slot] = oldIds[i];
+				settlementIds[slot] = oldSettlementIds[i];
+				balances[slot] = oldBalances[i];
+				reserved[slot] = oldReserved[i];
+			}
+		}
+	}
+}
@@ -1,29 +1,115 @@
 package msalter.crypto;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Verticle;
 import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>
  * The Crypto App. Launches 2 microservices, one for Account-related actions, the other for Order-related actions. A third service is launched 
- * as a reverse proxy Gateway to the other two. 
+ * as a reverse proxy Gateway to the other two, 
+ * and a fourth executes limit orders as the price moves. A fifth serves the metrics of all the others. 
+ * </p>
+ * <p>
+ * The http services are deployed as several instances, by default one per core, sharing their port. Vert.x hands the connections 
+ * accepted on a shared port round robin to the instances, each of which runs on its own event loop. Limit order execution is 
+ * by instrument and sharded by settlement account, one instance per shard each with its own order book (see ExecuteLimitOrders).
+ * </p>
+ * <p>
+ * Configuration (config.properties) :
+ *
+ * 	eventLoopPoolSize - the number of event loop threads, default 2 per core
+ * 	accountService.instances, orderService.instances, gatewayService.instances - the number of instances of each service, default 1 per core
+ * 	instruments - the instruments traded, the ccys of the trading accounts, comma separated, default XBT
+ * 	execution.shards - the number of limit order execution shards per instrument, default 1 per core
+ * 	price.&lt;instrument&gt;.* - the price service of an instrument (see ExecuteLimitOrders.priceConfig)
  * </p>
  * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
  * @version     0.1
  */
 public class App 
 {
+    private static final Logger log = LoggerFactory.getLogger(App.class);
+
+    static {
+        // route Vert.x's own logging through SLF4J as well
+        if (System.getProperty("vertx.logger-delegate-factory-class-name") == null) {
+            System.setProperty("vertx.logger-delegate-factory-class-name", "io.vertx.core.logging.SLF4JLogDelegateFactory");
+        }
+    }
  
     public static void main( String[] args )
     {
-        System.out.println( "Starting...!" );        
+        log.info("starting");
 	
         Vertx vertx;
-        vertx = Vertx.vertx();
-        vertx.deployVerticle(AccountService.class.getName()); // account-related service on 8082
-        vertx.deployVerticle(OrderService.class.getName()); // order-related service on 8083
-        vertx.deployVerticle(GatewayService.class.getName()); // api gateway service on 8081
+        vertx = createVertx();
+        deploy(vertx, res -> {
+            if (res.succeeded()) {
+                log.info("started");
+            } else {
+                log.error("failed to start", res.cause());
+            }
+        });
+
+    }
+
+    /**
+     * Create the Vertx object with the configured event loop pool size
+     * 
+     * @return          the Vertx object
+     */
+    public static Vertx createVertx()
+    {
+        return Vertx.vertx(new VertxOptions()
+                .setEventLoopPoolSize(Config.getInt("eventLoopPoolSize", VertxOptions.DEFAULT_EVENT_LOOP_POOL_SIZE)));
+    }
+
+    /**
+     * Deploy all services
+     * 
+     * @param vertx     the Vertx object
+     * @param handler   a handler called once all services are deployed, or any one failed
+     */
+    @SuppressWarnings("rawtypes")
+    public static void deploy(Vertx vertx, Handler<AsyncResult<Void>> handler)
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Future> deployments = new ArrayList<>();
+
+        deployments.add(deploy(vertx, AccountService.class, Config.getInt("accountService.instances", cores))); // account-related service on 8082
+        deployments.add(deploy(vertx, OrderService.class, Config.getInt("orderService.instances", cores))); // order-related service on 8083
+        deployments.add(deploy(vertx, GatewayService.class, Config.getInt("gatewayService.instances", cores))); // api gateway service on 8081
+        deployments.add(deployShards(vertx, Config.getList("instruments", "XBT"), Config.getInt("execution.shards", cores))); // limit order matching, following the price service on 5000
+        deployments.add(deploy(vertx, MetricsService.class, 1)); // metrics of all services on 127.0.0.1:8084
 
-        System.out.println( "Started!" );
+        CompositeFuture.all(deployments).setHandler(res -> handler.handle(res.mapEmpty()));
+    }
+
+    private static Future<Void> deployShards(Vertx vertx, List<String> instruments, int shards)
+    {
+        Future<Void> deployment = Future.future();
+        ExecuteLimitOrders.deploy(vertx, instruments, shards, deployment);
+        return deployment;
+    }
+
+    private static Future<String> deploy(Vertx vertx, Class<? extends Verticle> verticle, int instances)
+    {
+        log.info("deploying {} x {}", instances, verticle.getSimpleName());
 
+        Future<String> deployment = Future.future();
+        vertx.deployVerticle(verticle.getName(), new DeploymentOptions().setInstances(instances), deployment);
+        return deployment;
     }
 }
@@ -2,10 +2,14 @@ package msalter.crypto;
 
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * <p>
  * Wrapper of verticle adding helper methods
@@ -15,45 +19,224 @@ import io.vertx.ext.web.RoutingContext;
  */
 public class BaseVerticle extends AbstractVerticle {
 
+	private static final Logger log = LoggerFactory.getLogger(BaseVerticle.class);
+
+	// header holding the correlation id of a request, set by the gateway
+	public static final String REQUEST_ID = "X-Request-Id";
+
+	// routing context key of the request start (System.nanoTime)
+	protected static final String REQUEST_START = "metrics.requestStart";
+
+	// interval of the event loop lag probe, ms
+	private static final long LAG_PROBE_INTERVAL = 100;
+
+	// the endpoints added with route(), for calls delivered over the event bus
+	private final LocalRoutes<ServiceEndpoint> localRoutes = new LocalRoutes<>();
+
 	/**
-	 * Set the HTTP response with a json body
+	 * Set the HTTP response with a json body - compact, or pretty printed if the request has the query parameter pretty=true
 	 * 
 	 * @param routingContext	the Vertx routing context
 	 * @param result     		a Result object wrapping the outcome
 	 */
 	public void setResponse(RoutingContext routingContext, Result result) {
 
+		int status = status(result, routingContext.request().method());
+
+		if (!result.isOk()) {
+			log.warn("request failed request_id={} path={} message={}", requestId(routingContext), routingContext.request().path(), result.message);
+		}
+
+		recordRequest(routingContext, status);
+
+		routingContext.response()
+				.setStatusCode(status)
+				.putHeader("content-type", "application/json; charset=utf-8")
+				.end(result.toBuffer("true".equals(routingContext.request().getParam("pretty"))));
+	}
+
+	/**
+	 * Get the HTTP status of a result
+	 * 
+	 * @param result     		a Result object wrapping the outcome
+	 * @param method			the request method
+	 * @return					400 on failure, otherwise 201 for a POST and 200 for anything else
+	 */
+	protected static int status(Result result, HttpMethod method) {
+
 		if (!result.isOk()) {
 			// TODO : correctly set all http failure status codes based on result...
-			routingContext.response().setStatusCode(400).end();
+			return 400;
+		} else if (method == HttpMethod.POST) {
+			// create ok
+			return 201;
 		} else {
-			if(routingContext.request().method() == HttpMethod.POST) {
-				// create ok
-				routingContext.response().setStatusCode(201).end();			
-			}
-			else {
-				// ok
-				routingContext.response().setStatusCode(200).end();				
-			}			
-			routingContext.response()
-					            .putHeader("content-type", "application/json; charset=utf-8")
-					            .end(result.toJson().encodePrettily());
+			// ok
+			return 200;
 		}
+	}
 
+	/**
+	 * Add an endpoint, served over HTTP by the router and to the gateway over the event bus once serveLocal() is called
+	 * 
+	 * @param router		the router
+	 * @param method		the HTTP method
+	 * @param path			the path
+	 * @param endpoint		the endpoint
+	 */
+	protected void route(Router router, HttpMethod method, String path, ServiceEndpoint endpoint) {
+
+		router.route(method, path).handler(routingContext -> 
+				endpoint.handle(ServiceRequest.fromRoutingContext(routingContext), result -> setResponse(routingContext, result)));
+
+		localRoutes.add(method, path, endpoint);
 	}
 
 	/**
-	 * Start the server
+	 * Serve the endpoints added with route() to the gateway over the event bus, under a backend name. Calls to any other path are 
+	 * failed with LocalCall.NO_LOCAL_ROUTE, and the gateway sends them over HTTP instead.
+	 * 
+	 * @param backend		the backend name, as configured in the gateway
+	 */
+	protected void serveLocal(String backend) {
+
+		LocalCall.registerCodecs(vertx);
+		vertx.eventBus().<LocalCall.Request>consumer(LocalCall.address(backend), this::handleLocal);
+	}
+
+	/**
+	 * Handle a call delivered over the event bus, replying with the status and json body the endpoint would have sent over HTTP
+	 * 
+	 * @param message		the call
+	 */
+	private void handleLocal(Message<LocalCall.Request> message) {
+
+		long start = System.nanoTime();
+		LocalCall.Request call = message.body();
+		HttpMethod method = HttpMethod.valueOf(call.method);
+
+		LocalRoutes.Match<ServiceEndpoint> match = localRoutes.match(method, call.uri);
+		if (match == null) {
+			message.fail(LocalCall.NO_LOCAL_ROUTE, "No local route : " + call.method + " " + call.uri);
+			return;
+		}
+
+		try {
+
+			ServiceRequest request = ServiceRequest.fromLocalCall(call, match.params);
+
+			match.target.handle(request, result -> {
+
+				int status = status(result, method);
+
+				if (!result.isOk()) {
+					log.warn("request failed request_id={} path={} message={}", request.requestId(), call.uri, result.message);
+				}
+
+				recordRequest(match.path, start, status);
+
+				message.reply(new LocalCall.Response(status, result.toBuffer(request.isPretty())));
+			});
+
+		} catch (RuntimeException e) {
+			// as the router would for an HTTP request
+			log.error("request failed request_id={} path={}", call.requestId, call.uri, e);
+			recordRequest(match.path, start, 500);
+			message.fail(500, String.valueOf(e.getMessage()));
+		}
+	}
+
+	/**
+	 * Get the correlation id of a request
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 * @return					the id, or "-" if the request did not come through the gateway
+	 */
+	protected String requestId(RoutingContext routingContext) {
+
+		String requestId = routingContext.request().getHeader(REQUEST_ID);
+		return requestId != null ? requestId : "-";
+	}
+
+	/**
+	 * Record the latency of a request in http_server_requests_seconds
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 * @param status			the response status code
+	 */
+	protected void recordRequest(RoutingContext routingContext, int status) {
+
+		Long start = routingContext.get(REQUEST_START);
+		if (start == null) {
+			return;
+		}
+
+		String route = routingContext.currentRoute() != null ? routingContext.currentRoute().getPath() : null;
+
+		recordRequest(route != null ? route : "other", start, status);
+	}
+
+	/**
+	 * Record the latency of a request in http_server_requests_seconds
+	 * 
+	 * @param route				the route path
+	 * @param start				the request start (System.nanoTime)
+	 * @param status			the response status code
+	 */
+	protected void recordRequest(String route, long start, int status) {
+
+		Metrics.record("http_server_requests_seconds", "Service endpoint latency", start, 
+				"service", getClass().getSimpleName(), 
+				"route", route, 
+				"status", Integer.toString(status));
+	}
+
+	/**
+	 * Schedule a timer and record how late it fires in event_loop_lag_seconds, which shows how long the event loop was busy. Timers are 
+	 * cancelled when the verticle is undeployed.
+	 */
+	private void probeEventLoopLag() {
+
+		long due = System.nanoTime() + LAG_PROBE_INTERVAL * 1000000;
+
+		vertx.setTimer(LAG_PROBE_INTERVAL, id -> {
+			Metrics.timer("event_loop_lag_seconds", "Delay of a timer on the service event loops").record(Math.max(0, System.nanoTime() - due));
+			probeEventLoopLag();
+		});
+	}
+
+	/**
+	 * Start the server, timing every request and probing the event loop lag
 	 * 
 	 * @param fut		the Vertx future object
 	 * @param router    a router containing the routes to be served
 	 * @param port     	the port
 	 */
 	public void startServer(Future<Void> fut, Router router, int port) {
+		startServer(fut, router, port, "0.0.0.0");
+	}
+
+	/**
+	 * Start the server on one interface, timing every request and probing the event loop lag
+	 * 
+	 * @param fut		the Vertx future object
+	 * @param router    a router containing the routes to be served
+	 * @param port     	the port
+	 * @param host     	the interface to listen on
+	 */
+	public void startServer(Future<Void> fut, Router router, int port, String host) {
+
+		// first of all routes
+		router.route().order(-1).handler(routingContext -> {
+			routingContext.put(REQUEST_START, System.nanoTime());
+			routingContext.next();
+		});
+
+		probeEventLoopLag();
 
 		vertx.createHttpServer()
 		.requestHandler(router::accept)
-		.listen(port, result -> {
+		.listen(port, host, result -> {
 			if (result.succeeded()) {
 				fut.complete();
 			} else {
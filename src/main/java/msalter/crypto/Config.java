@@ -0,0 +1,79 @@
+package msalter.crypto;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * The app configuration (config.properties), read once per process. The file is read from the working directory unless another path 
+ * is given in the crypto.config system property.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class Config {
+
+	private static final Logger log = LoggerFactory.getLogger(Config.class);
+
+	private static Properties properties;
+
+	/**
+	 * Get the configuration, reading the config file on first use
+	 *
+	 * @return		the configuration, empty if the file could not be read
+	 */
+	public static synchronized Properties getProperties() {
+
+		if (properties == null) {
+
+			properties = new Properties();
+
+			try (FileReader reader = new FileReader(new File(System.getProperty("crypto.config", "config.properties")))) {
+				properties.load(reader);
+			} catch (IOException ex) {
+				// file does not exist or I/O error - use defaults
+				log.warn("unable to read config : {}", ex.getMessage());
+			}
+		}
+
+		return properties;
+	}
+
+	/**
+	 * Get an int setting
+	 *
+	 * @param key			the setting
+	 * @param defaultValue	the value if the setting is missing
+	 * @return				the value
+	 */
+	public static int getInt(String key, int defaultValue) {
+
+		String value = getProperties().getProperty(key);
+		return value == null ? defaultValue : Integer.parseInt(value.trim());
+	}
+
+	/**
+	 * Get a comma separated list setting
+	 *
+	 * @param key			the setting
+	 * @param defaultValue	the value if the setting is missing
+	 * @return				the values, trimmed
+	 */
+	public static List<String> getList(String key, String defaultValue) {
+
+		List<String> values = new ArrayList<>();
+		for (String value : getProperties().getProperty(key, defaultValue).split(",")) {
+			if (!value.trim().isEmpty()) {
+				values.add(value.trim());
+			}
+		}
+		return values;
+	}
+}
@@ -1,134 +1,310 @@
 package msalter.crypto;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
 import io.vertx.ext.asyncsql.PostgreSQLClient;
 import io.vertx.ext.sql.SQLClient;
 import io.vertx.ext.sql.SQLConnection;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * <p>
- * Data Access Layer
+ * Data Access Layer. One instance is created per verticle; the configuration is read once per process and the underlying connection
+ * pool is shared by all instances running on the same Vertx.
+ * </p>
+ * <p>
+ * Configuration (config.properties) :
+ *
+ * 	host, port, username, password - the DB server and credentials
+ * 	database - the DB name, default crypto
+ * 	maxPoolSize - the maximum number of pooled connections, default 20
+ * 	maxQueueSize - the maximum number of requests waiting for a connection before new requests are rejected, default 1000
+ * 	connectTimeout - the connect timeout in ms, default 10000
+ * 	queryTimeout - the query timeout in ms, default none
+ * 
+ * The file is located as described in Config.
  * </p>
  * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
  * @version     0.1
  */
 public class DB {
 
+	private static final Logger log = LoggerFactory.getLogger(DB.class);
+
+	// name of the shared connection pool
+	private static final String POOL_NAME = "crypto";
+
+	// local map holding the usage statistics of the shared pool
+	private static final String POOL_STATS_MAP = "db.poolStats";
+
+	// the DB function called by a statement, eg SELECT * FROM create_account(?,?)
+	private static final Pattern FUNCTION_CALL = Pattern.compile("(?i)\\bFROM\\s+(\\w+)\\s*\\(");
+
+	// metrics label by sql statement, see functionName()
+	private static final Map<String, String> functionNames = new ConcurrentHashMap<>();
+
+	// parameters of a statement without any
+	private static final JsonArray NO_PARAMS = new JsonArray();
+
+	// configuration, read once
+	private static JsonObject config;
+
+	private final SQLClient client;
+
+	private final int maxQueueSize;
+
+	// usage statistics of the shared pool
+	private final PoolStats stats;
+
 	/**
-	 * Connect to the PostgreSQL database
+	 * Create the data access component for a verticle, using the configuration from config.properties
+	 *
 	 * @param vertx     the Vertx object
+	 */
+	public DB(Vertx vertx) {
+		this(vertx, DB.getConfig());
+	}
+
+	/**
+	 * Create the data access component for a verticle
+	 *
+	 * @param vertx     the Vertx object
+	 * @param config	the DB client configuration
+	 */
+	public DB(Vertx vertx, JsonObject config) {
+
+		this.maxQueueSize = config.getInteger("maxQueueSize", 1000);
+		this.client = PostgreSQLClient.createShared(vertx, config, POOL_NAME);
+		this.stats = getPoolStats(vertx, true);
+	}
+
+	/**
+	 * Get the DB client configuration
+	 *
+	 * @return		the configuration
+	 */
+	public static synchronized JsonObject getConfig() {
+
+		if (config == null) {
+
+			Properties props = Config.getProperties();
+
+			config = new JsonObject()
+					.put("host", props.getProperty("host", "localhost"))
+					.put("port", Integer.parseInt(props.getProperty("port", "5432")))
+					.put("username", props.getProperty("username", "postgres"))
+					.put("password", props.getProperty("password", ""))
+					.put("database", props.getProperty("database", "crypto"))
+					.put("maxPoolSize", Integer.parseInt(props.getProperty("maxPoolSize", "20")))
+					.put("maxQueueSize", Integer.parseInt(props.getProperty("maxQueueSize", "1000")))
+					.put("connectTimeout", Long.parseLong(props.getProperty("connectTimeout", "10000")));
+
+			if (props.getProperty("queryTimeout") != null) {
+				config.put("queryTimeout", Long.parseLong(props.getProperty("queryTimeout")));
+			}
+
+			log.info("host={} port={} database={}", config.getString("host"), config.getInteger("port"), config.getString("database"));
+		}
+
+		return config;
+	}
+
+	/**
+	 * Get a connection from the pool. The connection must be closed to return it to the pool. If too many requests are already waiting
+	 * for a connection the request is rejected straight away.
+	 *
      * @param handler   handler to process the async result
 	 */
-	
-	
-	public static void getConnection(Vertx vertx, Handler<AsyncResult<SQLConnection>> handler) {
-		
-		File configFile = new File("config.properties");
-		 
-		String host="";
-		int port=0;
-		String username="";
-		String password="";
+	public void getConnection(Handler<AsyncResult<SQLConnection>> handler) {
 
-		try {
-		    FileReader reader = new FileReader(configFile);
-		    Properties props = new Properties();
-		    props.load(reader);		 
-
-		    host = props.getProperty("host");
-		    port = Integer.parseInt(props.getProperty("port"));
-		    username = props.getProperty("username");
-		    password = props.getProperty("password");
-		 
-		    System.out.print("Host name is: " + host);
-		    reader.close();
-		} catch (FileNotFoundException ex) {
-		    // file does not exist
-		} catch (IOException ex) {
-		    // I/O error
-		}	
-
-		JsonObject postgreSQLClientConfig = new JsonObject()
-				.put("host", host)
-				.put("port", port)
-				.put("username", username)
-				.put("password", password)
-				.put("database", "crypto");
-
-		SQLClient postgreSQLClient = PostgreSQLClient.createShared(vertx, postgreSQLClientConfig);     
-
-		postgreSQLClient.getConnection(res -> {
+		if (stats.waiting.get() >= maxQueueSize) {
+			stats.rejected.incrementAndGet();
+			handler.handle(Future.failedFuture("DB connection queue full"));
+			return;
+		}
+
+		long start = System.nanoTime();
+		stats.waiting.incrementAndGet();
+
+		client.getConnection(res -> {
+
+			stats.waiting.decrementAndGet();
+
+			if (res.succeeded()) {
+
+				long waited = System.nanoTime() - start;
+				stats.acquired.incrementAndGet();
+				stats.totalWaitNanos.addAndGet(waited);
+				stats.maxWaitNanos.accumulateAndGet(waited, Math::max);
+				stats.inUse.incrementAndGet();
+				Metrics.timer("db_pool_wait_seconds", "Wait for a pooled DB connection").record(waited);
+
+			} else {
+				stats.failed.incrementAndGet();
+			}
 
 			handler.handle(res);
 
-		});  
+		});
 
 	}
 
 	/**
-	 * Execute an sql statement with optional parameters. Any sql exceptions will be handled here and wrapped in Result
+	 * Return a connection to the pool
+	 *
+	 * @param connection	the connection
+	 */
+	private void release(SQLConnection connection) {
+
+		connection.close();
+		stats.inUse.decrementAndGet();
+	}
+
+	/**
+	 * Get the usage statistics of the shared pool
+	 *
+	 * @return		the statistics - connections in use, requests waiting, connections acquired, requests rejected because the queue was full,
+	 * 				failed connection attempts, and average and maximum wait for a connection in ms
+	 */
+	public JsonObject getPoolStats() {
+		return stats.toJson();
+	}
+
+	/**
+	 * Get the usage statistics of the pool shared by all instances running on a Vertx
+	 *
+	 * @param vertx     the Vertx object
+	 * @return			the statistics as for getPoolStats(), or null if no instance was created yet
+	 */
+	public static JsonObject getPoolStats(Vertx vertx) {
+
+		PoolStats stats = getPoolStats(vertx, false);
+		return stats == null ? null : stats.toJson();
+	}
+
+	private static PoolStats getPoolStats(Vertx vertx, boolean create) {
+
+		LocalMap<String, PoolStats> pools = vertx.sharedData().getLocalMap(POOL_STATS_MAP);
+		if (create) {
+			pools.putIfAbsent(POOL_NAME, new PoolStats());
+		}
+		return pools.get(POOL_NAME);
+	}
+
+	/**
+	 * Get the metrics label of a statement - the DB function it calls, or "sql" for a plain statement
+	 *
+	 * @param sql     	the sql statement
+	 * @return			the label
+	 */
+	static String functionName(String sql) {
+
+		String name = functionNames.get(sql);
+
+		if (name == null) {
+			Matcher matcher = FUNCTION_CALL.matcher(sql);
+			name = matcher.find() ? matcher.group(1) : "sql";
+
+			// statements are normally constants - do not let generated ones grow the map
+			if (functionNames.size() < 1000) {
+				functionNames.put(sql, name);
+			}
+		}
+		return name;
+	}
+
+	/**
+	 * Record the latency of a statement in db_query_seconds
+	 */
+	private static void recordQuery(String sql, long start, AsyncResult<?> ar) {
+		Metrics.record("db_query_seconds", "DB statement latency, by DB function", start, "function", functionName(sql), "ok", Boolean.toString(ar.succeeded()));
+	}
+
+	/**
+	 * Release this instance's reference to the shared pool - the pool is closed when the last instance is closed
+	 */
+	public void close() {
+		client.close();
+	}
+
+	/**
+	 * Build statement parameters, keeping their types - Long, Integer, BigDecimal, Double, String, Boolean or null. Unlike 
+	 * JsonArray.add, BigDecimal values are accepted. Values are bound with their own type, so they need not be converted to strings.
 	 * 
+	 * NOTE : the driver binds all java numbers as numeric, so bigint parameters must be cast in the sql, eg fetch_order_details(?::BIGINT)
+	 *
+	 * @param values	the parameter values, in placeholder order
+	 * @return			the parameters, to pass to execSQL etc.
+	 */
+	@SuppressWarnings("unchecked")
+	public static JsonArray params(Object... values) {
+
+		JsonArray params = new JsonArray(new ArrayList<>(values.length));
+		for (Object value : values) {
+			// NOTE : added to the backing list, as JsonArray.add rejects BigDecimal
+			params.getList().add(value);
+		}
+		return params;
+	}
+
+	/**
+	 * Execute an sql statement with optional parameters. Any sql exceptions will be handled here and wrapped in Result
+	 *
+	 * Statements are run as prepared statements, which the DB driver parses once per pooled connection and caches by sql text. The sql 
+	 * must therefore be a constant with ? placeholders - never built with values in it - or every call is parsed and planned anew and 
+	 * the cache of every connection grows.
+	 *
 	 * @param sql     	the sql statement to be executed
-     * @param params   	an array of parameters which may be null or empty
-	 * @param vertx     the Vertx object
+     * @param params   	the parameters (see params()), which may be null or empty
      * @param handler   a handler to process the async result
      * @param resultCreator   a method to create a Result for the data returned in AsyncResult
-     * 
+     *
 	 * NOTE : Use of Vert.x SQL 'call', 'callWithParams' to call functions does not seem to work (Not Implemented) for postgresql
 	 */
-	public static void execSQL(String sql, JsonArray params, Vertx vertx, Handler<Result> handler, DataResultCreator resultCreator) {
+	public void execSQL(String sql, JsonArray params, Handler<Result> handler, DataResultCreator resultCreator) {
 
-		try {		
+		try {
 
 			// get DB connection
-			DB.getConnection(vertx, res -> {				
+			getConnection(res -> {
 
 				if (res.succeeded()) {
 
 					// got connection
 					SQLConnection connection = res.result();
+					long start = System.nanoTime();
 
-					if (params == null || params.size() == 0) {
-
-						// run query - without params					
+					// run query - always as a prepared statement, which the driver parses once per connection and reuses
 
-						connection.query(sql,   ar -> {
+					connection.queryWithParams(sql, params != null ? params : NO_PARAMS,  ar -> {
 
-							// close connection
-							connection.close();
+						recordQuery(sql, start, ar);
 
-							// return result by calling handler with standard Result object wrapping ResultSet data
-							handler.handle( resultCreator.createResult(ar));
+						// close connection
+						release(connection);
 
-						});    	    
+						// return result by calling handler with standard Result object wrapping ResultSet data
+						handler.handle( resultCreator.createResult(ar));
 
-					}
-					else {
-
-						// run query - with params					
-
-						connection.queryWithParams(sql, params,  ar -> {
-
-							
-							// close connection
-							connection.close();
-
-							// return result by calling handler with standard Result object wrapping ResultSet data
-							handler.handle( resultCreator.createResult(ar));
-
-						});    	    
-
-					}
+					});
 
 				} else {
 
@@ -137,29 +313,129 @@ public class DB {
 					// return result by calling handler with standard Result object wrapping failure
 					handler.handle( new Result(res, false));
 
-				}				
+				}
 
-			});     
+			});
 
 		} catch (Exception e) {
 
 			// return result by calling handler with standard Result object wrapping exception message
 			handler.handle(new Result(e));
 
-		} 			
+		}
+
+	}
+
+	/**
+	 * Execute a batch of statements one after the other on a single connection, optionally in one transaction, so a multi-step operation 
+	 * takes a single connection from the pool. Execution stops at the first failed statement - in a transaction the statements already 
+	 * run are rolled back.
+	 *
+	 * NOTE : the driver runs one statement at a time on a connection, so the statements are not pipelined - each still takes a round trip
+	 *
+	 * @param batch			the statements
+	 * @param transaction	run the statements in one transaction?
+	 * @param handler   	a handler to process the async result - if ok its data is a List holding the data of each statement's 
+	 * 						Result, in order, otherwise its message is the message of the failed statement
+	 */
+	public void execBatch(Batch batch, boolean transaction, Handler<Result> handler) {
+
+		getConnection(res -> {
 
+			if (res.failed()) {
+				// Failed to get connection
+				handler.handle( new Result(res, false));
+				return;
+			}
+
+			SQLConnection connection = res.result();
+
+			execBatch(connection, batch, transaction, result -> {
+				release(connection);
+				handler.handle(result);
+			});
+		});
+	}
+
+	/**
+	 * Execute a batch of statements on a connection, beginning and committing the transaction if asked, or rolling it back on any 
+	 * failure. The connection is left open.
+	 *
+	 * @param connection	the connection
+	 * @param batch			the statements
+	 * @param transaction	run the statements in one transaction?
+	 * @param handler   	a handler to process the async result, as for execBatch(Batch, boolean, Handler)
+	 */
+	static void execBatch(SQLConnection connection, Batch batch, boolean transaction, Handler<Result> handler) {
+
+		List<Object> data = new ArrayList<>(batch.statements.size());
+
+		if (!transaction) {
+			execBatchStatement(connection, batch, 0, data, handler);
+			return;
+		}
+
+		// BEGIN
+		connection.setAutoCommit(false, begun -> {
+
+			if (begun.failed()) {
+				handler.handle(new Result(false, begun.cause().getMessage(), null));
+				return;
+			}
+
+			execBatchStatement(connection, batch, 0, data, result -> {
+
+				Handler<AsyncResult<Void>> ended = done -> {
+					handler.handle(result.isOk() && done.failed() ? new Result(false, done.cause().getMessage(), null) : result);
+				};
+
+				// COMMIT, or ROLLBACK - the driver's autocommit is restored when the connection is closed
+				if (result.isOk()) {
+					connection.commit(ended);
+				} else {
+					connection.rollback(ended);
+				}
+			});
+		});
+	}
+
+	/**
+	 * Run the statements of a batch from the passed one on
+	 */
+	private static void execBatchStatement(SQLConnection connection, Batch batch, int index, List<Object> data, Handler<Result> handler) {
+
+		if (index == batch.statements.size()) {
+			handler.handle(new Result(data));
+			return;
+		}
+
+		Batch.Statement statement = batch.statements.get(index);
+		long start = System.nanoTime();
+
+		connection.queryWithParams(statement.sql, statement.params != null ? statement.params : NO_PARAMS, ar -> {
+
+			recordQuery(statement.sql, start, ar);
+
+			Result result = statement.resultCreator.createResult(ar);
+			if (!result.isOk()) {
+				handler.handle(result);
+				return;
+			}
+
+			data.add(result.data);
+			execBatchStatement(connection, batch, index + 1, data, handler);
+		});
 	}
 
 	/**
 	 * Execute an SQL statement and return multiple rows
 	 * @param sql     	the sql statement to be executed
-     * @param params   	an array of parameters which may be null or empty
-	 * @param vertx     the Vertx object
+     * @param params   	the parameters (see params()), which may be null or empty
      * @param handler   a handler to process the async result
 	 */
-	public static void execAndReturnRows(String sql, JsonArray params, Vertx vertx, Handler<Result> handler) {
+	public void execAndReturnRows(String sql, JsonArray params, Handler<Result> handler) {
 
-		DB.execSQL(sql, params, vertx, handler, ar -> {
+		execSQL(sql, params, handler, ar -> {
 			return Result.createForRowsData(ar);
 		} ) ;
 
@@ -168,13 +444,12 @@ public class DB {
 	/**
 	 * Execute an SQL statement and return a single row
 	 * @param sql     	the sql statement to be executed
-     * @param params   	an array of parameters which may be null or empty
-	 * @param vertx     the Vertx object
+     * @param params   	the parameters (see params()), which may be null or empty
      * @param handler   a handler to process the async result
 	 */
-	public static void execAndReturnRow(String sql, JsonArray params, Vertx vertx, Handler<Result> handler) {
+	public void execAndReturnRow(String sql, JsonArray params, Handler<Result> handler) {
 
-		DB.execSQL(sql, params, vertx, handler, ar -> {
+		execSQL(sql, params, handler, ar -> {
 			return Result.createForRowData(ar);
 		} ) ;
 
@@ -183,13 +458,12 @@ public class DB {
 	/**
 	 * Execute an SQL statement and return a single value
 	 * @param sql     	the sql statement to be executed
-     * @param params   	an array of parameters which may be null or empty
-	 * @param vertx     the Vertx object
+     * @param params   	the parameters (see params()), which may be null or empty
      * @param handler   a handler to process the async result
 	 */
-	public static void execAndReturnValue(String sql, JsonArray params, Vertx vertx, Handler<Result> handler) {
+	public void execAndReturnValue(String sql, JsonArray params, Handler<Result> handler) {
 
-		DB.execSQL(sql, params, vertx, handler, ar -> {
+		execSQL(sql, params, handler, ar -> {
 			return Result.createForValueData(ar);
 		} ) ;
 
@@ -198,15 +472,120 @@ public class DB {
 	/**
 	 * Execute an SQL statement without any returned data
 	 * @param sql     	the sql statement to be executed
-     * @param params   	an array of parameters which may be null or empty
-	 * @param vertx     the Vertx object
+     * @param params   	the parameters (see params()), which may be null or empty
      * @param handler   a handler to process the async result
 	 */
-	public static void exec(String sql, JsonArray params, Vertx vertx, Handler<Result> handler) {
+	public void exec(String sql, JsonArray params, Handler<Result> handler) {
 
-		DB.execSQL(sql, params, vertx, handler, ar -> {
+		execSQL(sql, params, handler, ar -> {
 			return Result.createNoData(ar);
 		} ) ;
 
 	}
+
+	/**
+	 * <p>
+	 * Usage statistics of a pool, shared by all DB instances using it
+	 * </p>
+	 */
+	private static final class PoolStats implements Shareable {
+
+		final AtomicInteger inUse = new AtomicInteger();
+		final AtomicInteger waiting = new AtomicInteger();
+		final AtomicLong acquired = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final AtomicLong failed = new AtomicLong();
+		final AtomicLong totalWaitNanos = new AtomicLong();
+		final AtomicLong maxWaitNanos = new AtomicLong();
+
+		JsonObject toJson() {
+
+			long count = acquired.get();
+
+			return new JsonObject()
+					.put("inUse", inUse.get())
+					.put("waiting", waiting.get())
+					.put("acquired", count)
+					.put("rejected", rejected.get())
+					.put("failed", failed.get())
+					.put("avgWaitMs", count == 0 ? 0.0 : totalWaitNanos.get() / (double) count / 1000000.0)
+					.put("maxWaitMs", maxWaitNanos.get() / 1000000.0);
+		}
+	}
+
+	/**
+	 * <p>
+	 * A list of statements to be run by execBatch, each with the form of Result data it returns
+	 * </p>
+	 */
+	public static final class Batch {
+
+		private final List<Statement> statements = new ArrayList<>();
+
+		/**
+		 * Add a statement returning multiple rows
+		 * @param sql     	the sql statement to be executed
+		 * @param params   	the parameters (see params()), which may be null or empty
+		 * @return			this batch
+		 */
+		public Batch returnRows(String sql, JsonArray params) {
+			return add(sql, params, Result::createForRowsData);
+		}
+
+		/**
+		 * Add a statement returning a single row
+		 * @param sql     	the sql statement to be executed
+		 * @param params   	the parameters (see params()), which may be null or empty
+		 * @return			this batch
+		 */
+		public Batch returnRow(String sql, JsonArray params) {
+			return add(sql, params, Result::createForRowData);
+		}
+
+		/**
+		 * Add a statement returning a single value
+		 * @param sql     	the sql statement to be executed
+		 * @param params   	the parameters (see params()), which may be null or empty
+		 * @return			this batch
+		 */
+		public Batch returnValue(String sql, JsonArray params) {
+			return add(sql, params, Result::createForValueData);
+		}
+
+		/**
+		 * Add a statement without any returned data
+		 * @param sql     	the sql statement to be executed
+		 * @param params   	the parameters (see params()), which may be null or empty
+		 * @return			this batch
+		 */
+		public Batch exec(String sql, JsonArray params) {
+			return add(sql, params, Result::createNoData);
+		}
+
+		/**
+		 * Get the number of statements
+		 * @return			the number of statements
+		 */
+		public int size() {
+			return statements.size();
+		}
+
+		private Batch add(String sql, JsonArray params, DataResultCreator resultCreator) {
+			statements.add(new Statement(sql, params, resultCreator));
+			return this;
+		}
+
+		private static final class Statement {
+
+			final String sql;
+			final JsonArray params;
+			final DataResultCreator resultCreator;
+
+			Statement(String sql, JsonArray params, DataResultCreator resultCreator) {
+				this.sql = sql;
+				this.params = params;
+				this.resultCreator = resultCreator;
+			}
+		}
+	}
 }
@@ -1,123 +1,508 @@
 package msalter.crypto;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-
+import java.util.Set;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.DeploymentOptions;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
-import io.vertx.core.http.HttpClient;
-import io.vertx.core.http.HttpClientRequest;
-import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * <p>
- * Execute Limit Orders App. Retrieves current price from external service and executes all unprocessed limit orders where the current price is less than the limit price 
+ * Execute Limit Orders service. Follows the current price from the external price service and executes all unprocessed limit orders 
+ * where the current price is less than the limit price 
+ * </p>
+ * <p>
+ * Resting orders are held in an in-memory OrderBook, loaded once from the DB and then kept up to date with the orders published by 
+ * the OrderService, so a price tick only touches the orders which actually cross. A match pass is triggered by every price change and 
+ * every new order; ticks arriving while a pass is running are coalesced so the next pass always runs at the latest price.
+ * Crossed orders are settled in bounded batches, one execute_limit_orders call per batch, several batches at a time run in one 
+ * transaction on one pooled connection (see DB.execBatch). If one of them fails they are all rolled back and retried with a growing
+ * delay (execute_limit_orders skips orders no longer open, so a retry is safe), and put back into the order book if they still fail,
+ * so their orders stay open and keep their reserved funds until they are executed at a later price. Prices are scaled longs throughout 
+ * (see FixedPoint), converted from the price service's json once per tick and to a decimal once per batch.
+ * </p>
+ * <p>
+ * Every instrument (XBT, ETH, ..., the ccy of the trading account) has its own order books and price feed. An instance only consumes 
+ * the new orders and prices of its instrument, so adding an instrument adds instances rather than load on the existing ones.
+ * </p>
+ * <p>
+ * Matching and settlement are sharded by settlement account. Each instance is one shard of an instrument, with its own order book 
+ * holding only the orders of the settlement accounts it owns (and so of their trading accounts), and settles its batches one at a time 
+ * on its own event loop. No two batches in flight ever touch the same account, so the shards never wait on each other's row locks in 
+ * the DB and settlement scales with the number of shards. Shard 0 of an instrument follows its price service and publishes every price 
+ * to all shards of the instrument. Configuration (deployment config, see deploy()) :
+ * 
+ * 	execution.instrument - the instrument of the instance, default XBT
+ * 	execution.shard - the shard of the instance, default 0
+ * 	execution.shards - the number of shards, default 1
+ * 	price.* - the price feed of the instrument (see PriceFeed), from price.&lt;instrument&gt;.* in config.properties
  * </p>
  * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
  * @version     0.1
- * 
- * TODO: Refactor as a scheduled service
  */
-public class ExecuteLimitOrders {
+public class ExecuteLimitOrders extends AbstractVerticle {
+
+	private static final Logger log = LoggerFactory.getLogger(ExecuteLimitOrders.class);
+
+	// event bus address on which the Order Details (a json array) of every batch of executed orders are published
+	public static final String ORDERS_EXECUTED = "orders.executed";
+
+	// event bus address prefix on which shard 0 of an instrument publishes every price received (scaled), to all shards of the instrument
+	private static final String PRICE_TICK = "orders.execution.price";
+
+	// price feed settings which may be set per instrument, text and numeric
+	private static final String[] PRICE_TEXT_SETTINGS = { "host", "path", "streamPath" };
+	private static final String[] PRICE_NUMBER_SETTINGS = { "port", "pollInterval", "pollTimeout", "reconnectInterval" };
+
+	// data access
+	private DB db;
 
+	// the resting limit orders
+	private final OrderBook orderBook = new OrderBook();
+
+	// the price feed
+	private PriceFeed priceFeed;
+
+	// marks no price - prices are positive
+	private static final long NO_PRICE = -1;
+
+	// the latest price received, NO_PRICE until the first tick
+	private long latestPrice = NO_PRICE;
+
+	// the price for the next match pass, NO_PRICE if no pass is due
+	private long pendingPrice = NO_PRICE;
+
+	// is a match pass in progress?
+	private boolean matching = false;
+
+	// maximum number of orders settled per DB call, and of DB calls per transaction
+	private int batchSize;
+	private int batchesPerCall;
+
+	// retries of a failed transaction, and the delay before the first one in ms, doubled for every further one
+	private int maxRetries;
+	private long retryDelay;
+
+	// this instance's instrument and shard, and the number of shards of the instrument
+	private String instrument;
+	private int shard;
+	private int shardCount;
+
+	/**
+	 * Run the service standalone, with execution.shards (config.properties) shards of each of the instruments (config.properties)
+	 * 
+	 * @param args		not used
+	 */
 	public static void main(String[] args) {
 
-		System.out.println( "ExecuteLimitOrders" );
+		log.info("starting");
+
+		Vertx vertx;
+		vertx = Vertx.vertx();
+		deploy(vertx, Config.getList("instruments", "XBT"), Config.getInt("execution.shards", Runtime.getRuntime().availableProcessors()), res -> {
+			if (res.failed()) {
+				log.error("failed to start", res.cause());
+			}
+		});
+	}
+
+	/**
+	 * Deploy the shards of every instrument, one instance each
+	 * 
+	 * @param vertx			the Vertx object
+	 * @param instruments	the instruments
+	 * @param shards		the number of shards per instrument
+	 * @param handler		a handler called once all shards are deployed, or any one failed
+	 */
+	@SuppressWarnings("rawtypes")
+	public static void deploy(Vertx vertx, List<String> instruments, int shards, Handler<AsyncResult<Void>> handler) {
+
+		log.info("deploying {} shards of {}", shards, instruments);
+
+		List<Future> deployments = new ArrayList<>();
+
+		for (String instrument : instruments) {
+			for (int i = 0; i < shards; i++) {
+				Future<String> deployment = Future.future();
+				JsonObject config = priceConfig(instrument)
+						.put("execution.instrument", instrument)
+						.put("execution.shard", i)
+						.put("execution.shards", shards);
+				vertx.deployVerticle(ExecuteLimitOrders.class.getName(), new DeploymentOptions().setConfig(config), deployment);
+				deployments.add(deployment);
+			}
+		}
+
+		CompositeFuture.all(deployments).setHandler(res -> handler.handle(res.mapEmpty()));
+	}
 
-		executeLimitOrders();
+	/**
+	 * Get the price feed configuration of an instrument from config.properties (price.&lt;instrument&gt;.port etc). The price service 
+	 * paths default to /btc-price for XBT and /&lt;instrument&gt;-price (lower case) for any other instrument.
+	 * 
+	 * @param instrument	the instrument
+	 * @return				the PriceFeed configuration
+	 */
+	static JsonObject priceConfig(String instrument) {
+
+		String path = "XBT".equals(instrument) ? "/btc-price" : "/" + instrument.toLowerCase() + "-price";
+
+		JsonObject config = new JsonObject()
+				.put("price.path", path)
+				.put("price.streamPath", path + "/stream");
+
+		for (String setting : PRICE_TEXT_SETTINGS) {
+			String value = Config.getProperties().getProperty("price." + instrument + "." + setting);
+			if (value != null) {
+				config.put("price." + setting, value.trim());
+			}
+		}
+		for (String setting : PRICE_NUMBER_SETTINGS) {
+			String value = Config.getProperties().getProperty("price." + instrument + "." + setting);
+			if (value != null) {
+				config.put("price." + setting, Long.parseLong(value.trim()));
+			}
+		}
+
+		return config;
+	}
+
+	/**
+	 * Get the event bus address on which shard 0 of an instrument publishes its prices
+	 * 
+	 * @param instrument	the instrument
+	 * @return				the address
+	 */
+	private static String priceTick(String instrument) {
+		return PRICE_TICK + "." + instrument;
 	}
 
 	/**
-	 * Execute limit orders where current price is less than limit price
+	 * Get the shard of an order
+	 * 
+	 * @param settlementAccountId	the id of the order's settlement account
+	 * @param shards				the number of shards
+	 * @return						the shard, as fetch_resting_limit_orders computes it
+	 */
+	static int shardOf(long settlementAccountId, int shards) {
+		return (int) Math.floorMod(settlementAccountId, (long) shards);
+	}
+
+	/**
+	 * Load the order book and start following the price
 	 * 
 	 * @param fut		the Vertx future object
-	 * @param router    a router containing the routes to be served
-	 * @param port     	the port
 	 */
-	@SuppressWarnings("deprecation")
-	private static void executeLimitOrders() {
+	@Override
+	public void start(Future<Void> fut) {
+
+		db = new DB(vertx);
+
+		batchSize = config().getInteger("execution.batchSize", 500);
+		batchesPerCall = config().getInteger("execution.batchesPerCall", 8);
+		maxRetries = config().getInteger("execution.maxRetries", 3);
+		retryDelay = config().getLong("execution.retryDelay", 100L);
+		instrument = config().getString("execution.instrument", "XBT");
+		shard = config().getInteger("execution.shard", 0);
+		shardCount = config().getInteger("execution.shards", 1);
+
+		// keep the book up to date with the new orders of this instrument and shard
+		vertx.eventBus().<JsonObject>consumer(OrderService.limitOrderCreated(instrument), message -> {
+			if (addToOrderBook(message.body())) {
+				matchNewOrders();
+			}
+		});
+		vertx.eventBus().<JsonArray>consumer(OrderService.limitOrdersCreated(instrument), message -> {
+			boolean added = false;
+			for (Object order : message.body()) {
+				added |= addToOrderBook((JsonObject) order);
+			}
+			if (added) {
+				matchNewOrders();
+			}
+		});
+
+		// the price, from shard 0
+		vertx.eventBus().<Long>consumer(priceTick(instrument), message -> onPrice(message.body()));
+
+		loadOrderBook(loaded -> {
+
+			if (!loaded.isOk()) {
+				fut.fail(loaded.message);
+				return;
+			}
+
+			if (shard == 0) {
+				priceFeed = new PriceFeed(vertx, config(), price -> vertx.eventBus().publish(priceTick(instrument), price));
+				priceFeed.start();
+			}
+
+			log.info("started {} shard {} of {}", instrument, shard, shardCount);
+
+			fut.complete();
+		});
+	}
 
-		System.out.println( "executeLimitOrders");
+	/**
+	 * Stop following the price and release the DB connection pool
+	 */
+	@Override
+	public void stop() {
 
-		//
-		// get the current price from the external service
-		//
-		
-		String path = "/btc-price";
-		int port = 5000;
+		if (priceFeed != null) {
+			priceFeed.stop();
+		}
+		db.close();
+	}
 
-		Vertx vertx;
-		vertx = Vertx.vertx();
+	/**
+	 * Load the resting limit orders of this instrument and shard from the DB into the order book
+	 * 
+	 * @param handler   a handler called once the book is loaded
+	 */
+	@SuppressWarnings("unchecked")
+	private void loadOrderBook(Handler<Result> handler) {
 
-		HttpClient client = vertx.createHttpClient();
+		// set sql
+		String sql = "SELECT * FROM fetch_resting_limit_orders(?::INT,?::INT,?)";
 
-		HttpClientRequest toReq = client
-				.request(HttpMethod.GET, port, "127.0.0.1", path,   response -> { // (1)
-					response.bodyHandler(body -> {
-						if (response.statusCode() >= 500) { 
-							//???
-						} else {
+		// execute and return rows representing the resting orders
+		db.execAndReturnRows(sql, DB.params(shardCount, shard, instrument), result -> {
 
-							JsonObject data = body.toJsonObject();
+			if (result.ok) {
 
-							Double price = data.getDouble("price");
-							
-							//
-							// get any unprocessed, uncancelled orders whre current price less than limit price
-							//
+				List<JsonObject> rows = (List<JsonObject>)(result.data);
 
-							// set sql
-							String sql = "SELECT * FROM client_order WHERE ? < limit_price AND status = 'created'";
+				for (JsonObject row : rows) {
+					orderBook.add(row.getLong("id"), OrderBook.toPriceKey(row.getString("limit_price")));
+				}
 
-							// set params
-							JsonArray params = new JsonArray().add(price.toString());
+				log.info("loaded {} resting {} orders", orderBook.size(), instrument);
+			}
 
-							// execute and return rows representing the Order Details
-							DB.execAndReturnRows(sql, params, vertx, result -> {
+			handler.handle(result);
+		});
+	}
 
-								if(result.ok) {
+	/**
+	 * Add a new order to the order book if it belongs to this shard
+	 * 
+	 * @param order     the Order Details
+	 * @return			true if added
+	 */
+	private boolean addToOrderBook(JsonObject order) {
 
-									List<JsonObject> rows = (List<JsonObject>)(result.data);
+		if (shardOf(order.getLong("settlement_account_id"), shardCount) != shard) {
+			return false;
+		}
 
-									if(rows != null && rows.size() != 0) {
+		orderBook.add(order.getLong("id"), OrderBook.toPriceKey(order.getString("limit_price")));
+		return true;
+	}
 
-										for (JsonObject row : rows) {
+	/**
+	 * New orders may already cross the latest price - match them unless a pass is already due
+	 */
+	private void matchNewOrders() {
 
-											// get order id
-											long order_id = row.getLong("id");
+		if (latestPrice != NO_PRICE && pendingPrice == NO_PRICE) {
+			pendingPrice = latestPrice;
+			scheduleMatch();
+		}
+	}
 
-											//
-											// execute the order at this price, updating account balances
-											//
+	/**
+	 * Price feed tick - schedule a match pass if the price changed
+	 * 
+	 * @param price		the current price, scaled
+	 */
+	private void onPrice(long price) {
 
-											// set sql
-											String executionSql = "SELECT * FROM execute_limit_order(?,?)";
+		if (price == latestPrice) {
+			return;
+		}
 
-											// set params
-											JsonArray executionParams = new JsonArray().add(Long.toString(order_id)).add(price.toString());
+		latestPrice = price;
+		pendingPrice = price;
+		scheduleMatch();
+	}
 
-											// execute and return rows representing the Order Details
-											DB.execAndReturnRows(executionSql, executionParams, vertx, resultOfExecution -> {
+	/**
+	 * Start a match pass unless one is already running - a running pass picks up the pending price when it completes
+	 */
+	private void scheduleMatch() {
 
-												//System.out.println( "ExecuteLimitOrders - done! ");
+		if (!matching && pendingPrice != NO_PRICE) {
+			executeLimitOrders();
+		}
+	}
 
-											});
+	/**
+	 * Execute limit orders where the pending price is less than limit price
+	 */
+	private void executeLimitOrders() {
 
+		matching = true;
+
+		long price = pendingPrice;
+		pendingPrice = NO_PRICE;
+
+		//
+		// take any resting orders where current price less than limit price out of the book
+		//
 
-										}
+		OrderBook.Matched matched = orderBook.take(price);
 
-									}
-								}
+		if (matched.orderIds.length == 0) {
+			matchDone();
+			return;
+		}
 
-							});
+		//
+		// execute the orders at this price in batches
+		//
 
-						}
+		executeBatches(matched, 0, price);
+	}
 
-					});
-				});
+	/**
+	 * Execute the crossed orders from an index on, one transaction at a time - the shard is the only writer of its accounts, so its 
+	 * transactions never wait on each other's row locks
+	 * 
+	 * @param matched		the crossed orders
+	 * @param from			index of the first order of the next transaction
+	 * @param price			the execution price, scaled
+	 */
+	private void executeBatches(OrderBook.Matched matched, int from, long price) {
 
-		// send request
-		toReq.end();
+		if (from == matched.orderIds.length) {
+			matchDone();
+			return;
+		}
+
+		int to = (int) Math.min(from + (long) batchSize * batchesPerCall, matched.orderIds.length);
+
+		executeBatch(matched.orderIds, from, to, price, 0, batchDone -> {
+
+			if (!batchDone.isOk()) {
+				// still open in the DB - back into the book, to be matched again
+				log.error("failed to execute {} orders, returned to the order book : {}", to - from, batchDone.message);
+				orderBook.restore(matched, from, to);
+			}
+
+			executeBatches(matched, to, price);
+		});
+	}
+
+	/**
+	 * Execute orders at the passed price, updating account balances, one execute_limit_orders call per batch of batchSize orders, all in 
+	 * one transaction on one connection
+	 * 
+	 * @param orderIds		the crossed order ids
+	 * @param from			index of the first order id
+	 * @param to			index after the last order id
+	 * @param price			the execution price, scaled
+	 * @param attempt		the number of failed attempts so far
+	 * @param handler		a handler called with the Result, once executed or out of retries
+	 */
+	@SuppressWarnings("unchecked")
+	private void executeBatch(long[] orderIds, int from, int to, long price, int attempt, Handler<Result> handler) {
+
+		// set sql
+		String executionSql = "SELECT * FROM execute_limit_orders(?::BIGINT[],?)";
+
+		DB.Batch batch = new DB.Batch();
+		for (int start = from; start < to; start += batchSize) {
+
+			int end = Math.min(start + batchSize, to);
+
+			// set params - the ids are passed as a single postgres array literal
+			StringBuilder ids = new StringBuilder((end - start) * 8).append('{');
+			for (int i = start; i < end; i++) {
+				if (i > start) {
+					ids.append(',');
+				}
+				ids.append(orderIds[i]);
+			}
+			ids.append('}');
+
+			// execute and return rows representing the Order Details
+			batch.returnRows(executionSql, DB.params(ids.toString(), FixedPoint.toBigDecimal(price, FixedPoint.SCALE)));
+		}
+
+		db.execBatch(batch, true, resultOfExecution -> {
+
+			if (!resultOfExecution.isOk() && attempt < maxRetries) {
+				long delay = retryDelay << attempt;
+				log.warn("failed to execute {} orders, retrying in {} ms : {}", to - from, delay, resultOfExecution.message);
+				vertx.setTimer(delay, id -> executeBatch(orderIds, from, to, price, attempt + 1, handler));
+				return;
+			}
+
+			// the Order Details of the executed orders of each batch, published once committed
+			if (resultOfExecution.isOk()) {
+				for (Object executed : (List<Object>) resultOfExecution.data) {
+					publishAccountsChanged((List<JsonObject>) executed);
+					publishExecuted((List<JsonObject>) executed);
+				}
+			}
+
+			handler.handle(resultOfExecution);
+		});
+	}
+
+	/**
+	 * Publish the ids of the trading and settlement accounts of executed orders, so cached account details are dropped
+	 * 
+	 * @param executedOrders	the Order Details of the executed orders
+	 */
+	private void publishAccountsChanged(List<JsonObject> executedOrders) {
+
+		if (executedOrders == null || executedOrders.isEmpty()) {
+			return;
+		}
+
+		Set<Long> accountIds = new HashSet<>();
+		for (JsonObject order : executedOrders) {
+			accountIds.add(order.getLong("account_id"));
+			accountIds.add(order.getLong("settlement_account_id"));
+		}
+
+		vertx.eventBus().publish(AccountService.ACCOUNTS_CHANGED, new JsonArray(new ArrayList<>(accountIds)));
+	}
+
+	/**
+	 * Publish the executed orders, which the gateway pushes to the clients subscribed to their accounts
+	 * 
+	 * @param executedOrders	the Order Details of the executed orders
+	 */
+	private void publishExecuted(List<JsonObject> executedOrders) {
+
+		if (executedOrders == null || executedOrders.isEmpty()) {
+			return;
+		}
+
+		vertx.eventBus().publish(ORDERS_EXECUTED, new JsonArray(new ArrayList<>(executedOrders)));
+	}
+
+	/**
+	 * Match pass complete - run the next one if ticks arrived in the meantime
+	 */
+	private void matchDone() {
 
+		matching = false;
+		scheduleMatch();
 	}
 }
@@ -0,0 +1,253 @@
+package msalter.crypto;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * <p>
+ * Fixed-point decimals held as longs - a value is its number of units of 10^-scale, eg 3124.12 at scale 9 is 3124120000000. Prices
+ * and amounts are held this way on the matching and settlement path, at the 9 decimal places of client_order.limit_price (SCALE), and
+ * are only converted from and to decimal text or BigDecimal where they are read from or passed to json and the DB.
+ * </p>
+ * <p>
+ * Amounts are held at the same scale as prices, not at the 18 decimal places of the DB's amount and balance columns - a long holds no
+ * more than 9.2 at 18 decimal places. The DB keeps the exact amounts, the 9 places held here being enough for USD funds and for the
+ * order amounts. Arithmetic overflowing a long throws an ArithmeticException (see Math.multiplyExact and Math.addExact).
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class FixedPoint {
+
+	// number of decimal places of prices and amounts (see DECIMAL(19, 9) in client_order)
+	public static final int SCALE = 9;
+
+	// 10^n for every scale a long can hold
+	private static final long[] POWERS_OF_TEN = new long[19];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	// largest exponent read - anything beyond overflows or rounds to 0
+	private static final int MAX_EXPONENT = 1000;
+
+	/**
+	 * Parse a decimal, as returned by the DB or passed to an endpoint, without creating any objects. The text may have a sign, a
+	 * decimal point and an exponent, as BigDecimal.toString writes them, eg -3124.12, 3124 or 0E-18.
+	 *
+	 * @param text			the decimal
+	 * @param scale			the number of decimal places of the result, 0 to 18
+	 * @param rounding		how to round any further decimal places
+	 * @return				the value in units of 10^-scale
+	 * @throws NumberFormatException	if the text is not a decimal
+	 * @throws ArithmeticException		if the value overflows a long, or is not exact and the rounding is UNNECESSARY
+	 */
+	public static long parse(CharSequence text, int scale, RoundingMode rounding) {
+
+		int length = text.length();
+
+		// the exponent, if any, ends the digits
+		int end = length;
+		int exponent = 0;
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			if (c == 'e' || c == 'E') {
+				end = i;
+				exponent = parseExponent(text, i + 1);
+				break;
+			}
+		}
+
+		int start = 0;
+		boolean negative = false;
+		if (start < end && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+			negative = text.charAt(start) == '-';
+			start++;
+		}
+
+		int point = end;
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) == '.') {
+				point = i;
+				break;
+			}
+		}
+
+		// power of ten of the first digit
+		int power = point - start - 1 + exponent;
+
+		long units = 0;
+		int roundingDigit = 0;
+		boolean sticky = false;
+		int digits = 0;
+
+		for (int i = start; i < end; i++) {
+
+			char c = text.charAt(i);
+			if (i == point) {
+				continue;
+			}
+			if (c < '0' || c > '9') {
+				throw invalid(text);
+			}
+
+			int digit = c - '0';
+			if (power >= -scale) {
+				units = Math.addExact(Math.multiplyExact(units, 10), digit);
+			} else if (power == -scale - 1) {
+				roundingDigit = digit;
+			} else if (digit != 0) {
+				sticky = true;
+			}
+			power--;
+			digits++;
+		}
+
+		if (digits == 0) {
+			throw invalid(text);
+		}
+
+		// the digits end before the last decimal place
+		if (units != 0) {
+			for (; power >= -scale; power--) {
+				units = Math.multiplyExact(units, 10);
+			}
+		}
+
+		if (roundUp(rounding, negative, units, roundingDigit, sticky)) {
+			units = Math.addExact(units, 1);
+		}
+
+		return negative ? -units : units;
+	}
+
+	/**
+	 * Convert a double, as read from the price service's json, to a fixed-point value. The double's shortest decimal representation
+	 * (see Double.toString) is converted, so a price sent as 3124.12 is read as exactly 3124.12.
+	 *
+	 * @param value			the value
+	 * @param scale			the number of decimal places of the result, 0 to 18
+	 * @param rounding		how to round any further decimal places
+	 * @return				the value in units of 10^-scale
+	 * @throws NumberFormatException	if the value is NaN or infinite
+	 * @throws ArithmeticException		if the value overflows a long, or is not exact and the rounding is UNNECESSARY
+	 */
+	public static long fromDouble(double value, int scale, RoundingMode rounding) {
+		return parse(Double.toString(value), scale, rounding);
+	}
+
+	/**
+	 * Convert a fixed-point value to a BigDecimal, eg for a DB parameter
+	 *
+	 * @param units			the value in units of 10^-scale
+	 * @param scale			the number of decimal places of the value
+	 * @return				the BigDecimal
+	 */
+	public static BigDecimal toBigDecimal(long units, int scale) {
+		return BigDecimal.valueOf(units, scale);
+	}
+
+	/**
+	 * Format a fixed-point value as a plain decimal with all its decimal places, as BigDecimal.toPlainString does
+	 *
+	 * @param units			the value in units of 10^-scale
+	 * @param scale			the number of decimal places of the value, 0 to 18
+	 * @return				the decimal
+	 */
+	public static String toPlainString(long units, int scale) {
+		return append(new StringBuilder(24), units, scale).toString();
+	}
+
+	/**
+	 * Append a fixed-point value as a plain decimal with all its decimal places, eg to a postgres array literal
+	 *
+	 * @param out			the builder appended to
+	 * @param units			the value in units of 10^-scale
+	 * @param scale			the number of decimal places of the value, 0 to 18
+	 * @return				the builder
+	 */
+	public static StringBuilder append(StringBuilder out, long units, int scale) {
+
+		if (scale == 0) {
+			return out.append(units);
+		}
+
+		// the sign of the integer part is lost if it is 0
+		if (units < 0) {
+			out.append('-');
+		}
+
+		long integer = Math.abs(units / POWERS_OF_TEN[scale]);
+		long fraction = Math.abs(units % POWERS_OF_TEN[scale]);
+
+		out.append(integer).append('.');
+		for (int place = scale - 1; place > 0 && fraction < POWERS_OF_TEN[place]; place--) {
+			out.append('0');
+		}
+		return out.append(fraction);
+	}
+
+	/**
+	 * Should a value be rounded away from zero?
+	 */
+	private static boolean roundUp(RoundingMode rounding, boolean negative, long units, int roundingDigit, boolean sticky) {
+
+		boolean inexact = roundingDigit != 0 || sticky;
+
+		switch (rounding) {
+		case UP:
+			return inexact;
+		case DOWN:
+			return false;
+		case CEILING:
+			return inexact && !negative;
+		case FLOOR:
+			return inexact && negative;
+		case HALF_UP:
+			return roundingDigit >= 5;
+		case HALF_DOWN:
+			return roundingDigit > 5 || (roundingDigit == 5 && sticky);
+		case HALF_EVEN:
+			return roundingDigit > 5 || (roundingDigit == 5 && (sticky || (units & 1) == 1));
+		default:
+			if (inexact) {
+				throw new ArithmeticException("Rounding necessary");
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Read the exponent following the e of a decimal
+	 */
+	private static int parseExponent(CharSequence text, int start) {
+
+		int length = text.length();
+		boolean negative = false;
+		if (start < length && (text.charAt(start) == '-' || text.charAt(start) == '+')) {
+			negative = text.charAt(start) == '-';
+			start++;
+		}
+		if (start == length) {
+			throw invalid(text);
+		}
+
+		int exponent = 0;
+		for (int i = start; i < length; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9') {
+				throw invalid(text);
+			}
+			exponent = Math.min(exponent * 10 + (c - '0'), MAX_EXPONENT);
+		}
+
+		return negative ? -exponent : exponent;
+	}
+
+	private static NumberFormatException invalid(CharSequence text) {
+		return new NumberFormatException("Invalid decimal : " + text);
+	}
+}
@@ -1,97 +1,381 @@
 package msalter.crypto;
 
-import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.DeliveryOptions;
+import io.vertx.core.eventbus.ReplyException;
+import io.vertx.core.eventbus.ReplyFailure;
 import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
 import io.vertx.core.http.HttpClientRequest;
-import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
-import io.vertx.ext.web.handler.BodyHandler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * <p>
  * Gateway service - a reverse proxy that allows clients to access all microservices over a single endpoint
  * </p>
+ * <p>
+ * Requests are routed on the longest matching path prefix of a routing table loaded from the verticle configuration, and dispatched 
+ * over one long-lived, keep-alive, pipelining client per backend. Request and response bodies are streamed through, not buffered. Configuration (all optional, the defaults shown) :
+ * 
+ * 	"backends" : { "accounts" : { "host" : "127.0.0.1", "port" : 8082 }, "orders" : { "host" : "127.0.0.1", "port" : 8083 } }
+ * 	"routes" : { "/account" : "accounts", "/accountdetails/" : "accounts", "/limitorder" : "orders", "/orderdetails/" : "orders", "/accounts/" : "orders" }
+ * 	"backendMaxPoolSize" : 20
+ * 	"events.maxQueued" : 256, "events.overflow" : "CONFLATE" (see AccountEvents)
+ * 	"localDelivery" : true, "localMaxBody" : 1048576, "localTimeout" : 30000
+ * </p>
+ * <p>
+ * When the services run in the same process, requests are delivered to them over the event bus (see LocalCall) rather than over 
+ * loopback HTTP, saving an HTTP encode and decode each way. The request body, if any and at most localMaxBody, is read first. A 
+ * request falls back to HTTP if no service instance consumes its backend's calls - the services run in another process - or if the 
+ * service only serves its path over HTTP.
+ * </p>
+ * <p>
+ * The gateway also pushes order executions to clients, so they need not poll for fills. A client subscribes to an account at 
+ * /events/accounts/:account_id, either as a WebSocket (one text message per event) or as Server-Sent Events (one data line per event). 
+ * Each event is json - {"type":"order.executed","order":{Order Details}}, or "dropped"/"resync" when the client did not keep up.
+ * </p>
  * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
  * @version     0.1
  */
 public class GatewayService extends BaseVerticle {
 
+	private static final Logger log = LoggerFactory.getLogger(GatewayService.class);
+
+	// correlation ids - unique per process start, then sequential
+	private static final String ID_PREFIX = Long.toString(System.currentTimeMillis(), 36) + "-";
+	private static final AtomicLong ids = new AtomicLong();
+
+	// path prefix -> backend
+	private RouteTable<Backend> routes;
+
+	// backend name -> backend
+	private final Map<String, Backend> backends = new HashMap<>();
+
+	// clients subscribed to account events on this instance
+	private AccountEvents accountEvents;
+
+	// deliver requests over the event bus when the services are local?
+	private boolean localDelivery;
+
+	// largest request body delivered over the event bus
+	private long localMaxBody;
+
+	// event bus delivery options of local calls
+	private DeliveryOptions localOptions;
+
 	/**
 	 * Gateway service endpoint - routes and dispatches all requests to appropriate microservice
 	 * 
 	 * @param routingContext	the Vertx routing context
-	 * 
-	 * TODO : Add path validation and centralised service discovery / routing service
 	 */
 	private void routeRequest(RoutingContext context) {
 
-		System.out.println( "GatewayService called...");
-
 		// get request path
 		String path = context.request().uri();
 
-		int port = 0;
+		// get the backend
+		Backend backend = routes.resolve(path);
+
+		// correlation id, passed to the backend and returned to the client - kept if the client sent one
+		String requestId = context.request().getHeader(REQUEST_ID);
+		if (requestId == null) {
+			requestId = ID_PREFIX + Long.toString(ids.incrementAndGet(), 36);
+		}
+		context.put(REQUEST_ID, requestId);
+		context.response().putHeader(REQUEST_ID, requestId);
 
-		// get the port - crude - we obviously need a better service discovery process...!
-		if(Arrays.stream(new String[]{"/account","/accountdetails/"}).parallel().anyMatch(path::contains)) {
-			port = 8082;
+		if (log.isDebugEnabled()) {
+			log.debug("route request_id={} method={} path={} backend={}", requestId, context.request().method(), path, 
+					backend != null ? backend.name : null);
 		}
-		else if (Arrays.stream(new String[]{"/limitorder","/orderdetails/"}).parallel().anyMatch(path::contains)) {
-			port = 8083;			
-		}		
 
-		HttpClient client = vertx.createHttpClient();
+		// time the whole exchange, until the response is streamed or the connection is lost
+		Long start = context.get(REQUEST_START);
+		String backendName = backend != null ? backend.name : "none";
+		context.response().endHandler(v -> Metrics.record("gateway_requests_seconds", "Gateway latency, by backend", start, 
+				"backend", backendName, "status", Integer.toString(context.response().getStatusCode())));
+
+		if (backend == null) {
+			context.response().setStatusCode(404).end();
+			return;
+		}
 
-		dispatch(context, port, path, client); 
+		if (localDelivery && canDeliverLocally(context.request())) {
+			dispatchLocal(context, path, backend);
+		} else {
+			dispatch(context, path, backend, null); 
+		}
 
 	}	
 
 	/**
-	 * Dispatch the request
+	 * Can a request be delivered over the event bus - is its body, if any, of known and bounded size?
+	 * 
+	 * @param request	the request
+	 * @return			true if it can
+	 */
+	private boolean canDeliverLocally(HttpServerRequest request) {
+
+		String contentLength = request.getHeader(HttpHeaders.CONTENT_LENGTH);
+
+		if (contentLength == null) {
+			return request.getHeader(HttpHeaders.TRANSFER_ENCODING) == null;
+		}
+
+		try {
+			return Long.parseLong(contentLength) <= localMaxBody;
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Dispatch the request to a service instance in this process over the event bus, falling back to HTTP if there is none or it does 
+	 * not serve the path locally
 	 * 
 	 * @param routingContext	the Vertx routing context
-	 * @param port     			the port
 	 * @param path				the endpoint path
-	 * @param client			the Http client
+	 * @param backend			the backend
+	 */
+	private void dispatchLocal(RoutingContext context, String path, Backend backend) {
+
+		HttpServerRequest fromReq = context.request();
+		HttpServerResponse toRsp = context.response();
+		Long start = context.get(REQUEST_START);
+
+		fromReq.bodyHandler(body -> {
+
+			LocalCall.Request call = new LocalCall.Request(fromReq.method().name(), path, fromReq.getHeader(HttpHeaders.CONTENT_TYPE), 
+					context.get(REQUEST_ID), body);
+
+			vertx.eventBus().<LocalCall.Response>send(backend.address, call, localOptions, reply -> {
+
+				// the client went away in the meantime
+				if (toRsp.closed()) {
+					return;
+				}
+
+				if (reply.succeeded()) {
+
+					// time to the backend response
+					Metrics.record("gateway_backend_seconds", "Gateway latency until the backend response headers, by backend", start, 
+							"backend", backend.name, "transport", "local");
+
+					LocalCall.Response response = reply.result().body();
+
+					toRsp.setStatusCode(response.status)
+							.putHeader(HttpHeaders.CONTENT_TYPE, "application/json; charset=utf-8")
+							.end(response.body);
+					return;
+				}
+
+				ReplyFailure failure = reply.cause() instanceof ReplyException ? ((ReplyException) reply.cause()).failureType() : null;
+
+				if (failure == ReplyFailure.NO_HANDLERS 
+						|| (failure == ReplyFailure.RECIPIENT_FAILURE && ((ReplyException) reply.cause()).failureCode() == LocalCall.NO_LOCAL_ROUTE)) {
+					// the service is not in this process, or only serves the path over HTTP
+					dispatch(context, path, backend, body);
+				} else if (failure == ReplyFailure.TIMEOUT) {
+					toRsp.setStatusCode(504).end();
+				} else {
+					toRsp.setStatusCode(500).end();
+				}
+			});
+		});
+	}
+
+	/**
+	 * Gateway endpoint - subscribe to the events of an account, over a WebSocket if the request is an upgrade, otherwise as Server-Sent 
+	 * Events. The subscription lasts until the connection is closed.
+	 * 
+	 * Params : 
 	 * 
-	 * TODO : Add centralised service discovery / routing service
+	 * 	account_id - the id of the account
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 */
+	private void subscribeAccountEvents(RoutingContext context) {
+
+		HttpServerRequest request = context.request();
+
+		final long accountId;
+		try {
+			accountId = Long.parseLong(request.getParam("account_id"));
+		} catch (NumberFormatException e) {
+			context.response().setStatusCode(400).end();
+			return;
+		}
+
+		if ("websocket".equalsIgnoreCase(request.getHeader(HttpHeaders.UPGRADE))) {
+
+			ServerWebSocket socket = request.upgrade();
+			AccountEvents.Subscriber subscriber = accountEvents.subscribe(accountId, socket, socket::writeTextMessage);
+			socket.closeHandler(v -> accountEvents.unsubscribe(subscriber));
+
+		} else {
+
+			HttpServerResponse response = context.response()
+					.setChunked(true)
+					.putHeader(HttpHeaders.CONTENT_TYPE, "text/event-stream; charset=utf-8")
+					.putHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+
+			// a comment, so the client has the response head straight away
+			response.write(":subscribed\n\n");
+
+			AccountEvents.Subscriber subscriber = accountEvents.subscribe(accountId, response, event -> response.write(
+					Buffer.buffer(event.length() + 8).appendString("data: ").appendString(event).appendString("\n\n")));
+			response.closeHandler(v -> accountEvents.unsubscribe(subscriber));
+		}
+
+		log.debug("subscribed account_id={} subscribers={}", accountId, accountEvents.size());
+	}
+
+	/**
+	 * Dispatch the request over HTTP, streaming the request body to the backend and the backend response body back to the client with 
+	 * back-pressure, so neither is ever held in memory in full
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 * @param path				the endpoint path
+	 * @param backend			the backend
+	 * @param body				the request body if already read, otherwise null to stream it
 	 */
 	@SuppressWarnings("deprecation")
-	private void dispatch(RoutingContext context, int port, String path, HttpClient client) {
-
-		HttpClientRequest toReq = client
-				.request(context.request().method(), port, "127.0.0.1", path,   response -> { 
-						response.bodyHandler(body -> {
-
-						if (response.statusCode() >= 500) { 
-							//???
-						} else {
-							HttpServerResponse toRsp = context.response()
-									.setStatusCode(response.statusCode());
-							response.headers().forEach(header -> {
-								toRsp.putHeader(header.getKey(), header.getValue());
-							});
-							// send response
-							toRsp.end(body); 
-						}
-
-					});
+	private void dispatch(RoutingContext context, String path, Backend backend, Buffer body) {
+
+		HttpServerRequest fromReq = context.request();
+		HttpServerResponse toRsp = context.response();
+		Long start = context.get(REQUEST_START);
+
+		HttpClientRequest toReq = backend.client
+				.request(fromReq.method(), path, response -> { 
+
+					// time to the backend response, which includes the hop
+					Metrics.record("gateway_backend_seconds", "Gateway latency until the backend response headers, by backend", start, 
+							"backend", backend.name, "transport", "http");
+
+					toRsp.setStatusCode(response.statusCode());
+					copyHeaders(response.headers(), toRsp.headers());
+					toRsp.putHeader(REQUEST_ID, context.<String>get(REQUEST_ID));
+					if (response.getHeader(HttpHeaders.CONTENT_LENGTH) == null) {
+						toRsp.setChunked(true);
+					}
+
+					// stream the response
+					response.pipeTo(toRsp);
 				});
+
 		// set headers
-		context.request().headers().forEach(header -> { 
-			toReq.putHeader(header.getKey(), header.getValue());
-		});
+		copyHeaders(fromReq.headers(), toReq.headers());
+		toReq.putHeader(REQUEST_ID, context.<String>get(REQUEST_ID));
+		if (fromReq.getHeader(HttpHeaders.CONTENT_LENGTH) == null && fromReq.getHeader(HttpHeaders.TRANSFER_ENCODING) != null) {
+			toReq.setChunked(true);
+		}
 		if (context.user() != null) {
 			    toReq.putHeader("user-principal", context.user().principal().encode());
 		}
-		// send request
-		if (context.getBody() == null) {
-			toReq.end();
+
+		Handler<Throwable> exceptionHandler = err -> {
+
+			// backend unreachable or failed mid-request
+			if (!toRsp.headWritten()) {
+				toRsp.setStatusCode(502).end();
+			} else {
+				toRsp.close();
+			}
+		};
+
+		if (body != null) {
+
+			// already read - NOTE : the handler cannot be set once the request is ended
+			toReq.exceptionHandler(exceptionHandler);
+			toReq.end(body);
+
 		} else {
-			toReq.end(context.getBody());
+
+			// stream the request
+			fromReq.pipeTo(toReq);
+
+			// NOTE : set after piping, as the pipe replaces the handler and stops listening once the request body is sent
+			toReq.exceptionHandler(exceptionHandler);
+		}
+	}
+
+	/**
+	 * Copy the end to end headers of a request or response - hop by hop headers apply to one connection only
+	 * 
+	 * @param from		the headers to copy
+	 * @param to		the headers to copy to
+	 */
+	private static void copyHeaders(MultiMap from, MultiMap to) {
+
+		from.forEach(header -> {
+			String name = header.getKey();
+			if (!name.equalsIgnoreCase("connection") 
+					&& !name.equalsIgnoreCase("keep-alive") 
+					&& !name.equalsIgnoreCase("transfer-encoding")) {
+				to.add(name, header.getValue());
+			}
+		});
+	}
+
+	/**
+	 * Create the backend clients and the routing table from the configuration
+	 */
+	private void loadRoutes() {
+
+		JsonObject backendsConfig = config().getJsonObject("backends", new JsonObject()
+				.put("accounts", new JsonObject().put("host", "127.0.0.1").put("port", 8082))
+				.put("orders", new JsonObject().put("host", "127.0.0.1").put("port", 8083)));
+
+		JsonObject routesConfig = config().getJsonObject("routes", new JsonObject()
+				.put("/account", "accounts")
+				.put("/accountdetails/", "accounts")
+				.put("/limitorder", "orders")
+				.put("/orderdetails/", "orders")
+				.put("/accounts/", "orders"));
+
+		int maxPoolSize = config().getInteger("backendMaxPoolSize", 20);
+
+		for (String name : backendsConfig.fieldNames()) {
+
+			JsonObject backendConfig = backendsConfig.getJsonObject(name);
+
+			HttpClient client = vertx.createHttpClient(new HttpClientOptions()
+					.setDefaultHost(backendConfig.getString("host", "127.0.0.1"))
+					.setDefaultPort(backendConfig.getInteger("port"))
+					.setKeepAlive(true)
+					.setPipelining(true)
+					.setMaxPoolSize(maxPoolSize));
+
+			backends.put(name, new Backend(name, client));
+		}
+
+		routes = new RouteTable<>();
+
+		for (String prefix : routesConfig.fieldNames()) {
+
+			Backend backend = backends.get(routesConfig.getString(prefix));
+			if (backend == null) {
+				throw new IllegalArgumentException("Unknown backend for route " + prefix + " : " + routesConfig.getString(prefix));
+			}
+			routes.add(prefix, backend);
 		}
 	}
 
@@ -101,22 +385,71 @@ public class GatewayService extends BaseVerticle {
 	 * @param fut		the Vertx future object
 	 * 
 	 * TODO : Outsource service routes, location and port to centralised service discovery point
-	 * TODO : Implement exception handling
 	 */
 	@Override
 	public void start(Future<Void> fut) { 
 
+		try {
+			loadRoutes();
+		} catch (Exception e) {
+			fut.fail(e);
+			return;
+		}
+
+		// deliver to services in this process over the event bus
+		localDelivery = config().getBoolean("localDelivery", true);
+		localMaxBody = config().getLong("localMaxBody", 1048576L);
+		localOptions = new DeliveryOptions().setSendTimeout(config().getLong("localTimeout", 30000L));
+		LocalCall.registerCodecs(vertx);
+
+		// push order executions to the subscribed clients
+		accountEvents = new AccountEvents(config().getInteger("events.maxQueued", 256), 
+				AccountEvents.Overflow.valueOf(config().getString("events.overflow", "CONFLATE")));
+		vertx.eventBus().<JsonArray>consumer(ExecuteLimitOrders.ORDERS_EXECUTED, message -> accountEvents.publishExecuted(message.body()));
+
 		// Create a router object.
 		Router router = Router.router(vertx);
 
-		router.route().handler(BodyHandler.create());
+		router.get("/events/accounts/:account_id").handler(this::subscribeAccountEvents);
 
+		// NOTE : no BodyHandler - bodies are streamed, not aggregated
 		router.route("/*").handler(this::routeRequest); 
 
 		// start server
 		startServer(fut, router, 8081);
 
-		System.out.println("GatewayService - started");
+		log.info("started");
+
+	}
+
+	/**
+	 * Close the backend clients
+	 */
+	@Override
+	public void stop() {
+
+		for (Backend backend : backends.values()) {
+			backend.client.close();
+		}
+	}
+
+	/**
+	 * <p>
+	 * A backend service and its pooled client
+	 * </p>
+	 */
+	private static final class Backend {
+
+		final String name;
+		final HttpClient client;
 
+		// event bus address of local calls
+		final String address;
+
+		Backend(String name, HttpClient client) {
+			this.name = name;
+			this.client = client;
+			this.address = LocalCall.address(name);
+		}
 	}
 }
@@ -0,0 +1,402 @@
+package msalter.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Write-ahead journal - an append-only log of records in memory-mapped segment files of a fixed size. A record is durable, and its
+ * append handler called, once its segment has been forced to disk. Appends are written by a single journal thread, which writes all
+ * the records queued since its last force and then forces once, so the cost of a force is shared by all appends arriving meanwhile.
+ * </p>
+ * <p>
+ * Every record is numbered in append order. Records are read back from the segments left over by the last run on open (see recovered),
+ * and segments are deleted once the records in them are no longer needed (see truncate). A record is framed by its length, number and
+ * CRC, so a record torn by a crash ends the recovery of its segment.
+ * </p>
+ * <p>
+ * Thread safe.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class Journal {
+
+	private static final Logger log = LoggerFactory.getLogger(Journal.class);
+
+	// record header - length, number, crc
+	private static final int HEADER_SIZE = 4 + 8 + 4;
+
+	private static final String SUFFIX = ".journal";
+
+	private final File dir;
+	private final int segmentSize;
+
+	// segments, oldest first - the last one is written to
+	private final List<Segment> segments = new ArrayList<>();
+
+	// records found on open
+	private final List<Record> recovered = new ArrayList<>();
+
+	// appends waiting for the journal thread
+	private final BlockingQueue<Append> appends = new LinkedBlockingQueue<>();
+
+	private final Thread thread;
+
+	// number of the next record appended - journal thread only
+	private long nextNumber;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Open a journal, recovering the records of any existing segments. New records are appended to a new segment.
+	 *
+	 * @param dir			the directory of the segment files, created if need be
+	 * @param segmentSize	the size of a segment file in bytes
+	 * @throws IOException	if the directory or a segment cannot be read
+	 */
+	public Journal(File dir, int segmentSize) throws IOException {
+
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + dir);
+		}
+
+		File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+		Arrays.sort(files);
+
+		long next = 1;
+		for (File file : files) {
+			Segment segment = new Segment(file, Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length())));
+			int count = recovered.size();
+			next = Math.max(next, segment.recover(recovered));
+
+			if (recovered.size() > count) {
+				segments.add(segment);
+			} else {
+				// nothing in it, and its name may be taken by the next segment
+				segment.delete();
+			}
+		}
+
+		nextNumber = next;
+
+		log.info("opened {} with {} segments, {} records recovered", dir, segments.size(), recovered.size());
+
+		thread = new Thread(this::run, "journal-" + dir.getName());
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the records found in existing segments on open, in append order
+	 *
+	 * @return		the records
+	 */
+	public List<Record> recovered() {
+		return Collections.unmodifiableList(recovered);
+	}
+
+	/**
+	 * Append a record
+	 *
+	 * @param data		the record
+	 * @param handler	called on the journal thread once the record is durable, with its number, or on failure - keep it short
+	 */
+	public void append(byte[] data, Handler<AsyncResult<Long>> handler) {
+
+		if (data.length + HEADER_SIZE > segmentSize) {
+			handler.handle(Future.failedFuture("Journal record of " + data.length + " bytes exceeds the segment size"));
+			return;
+		}
+		if (closed) {
+			handler.handle(Future.failedFuture("Journal closed"));
+			return;
+		}
+
+		appends.add(new Append(data, handler));
+	}
+
+	/**
+	 * Delete the segments holding only records up to a number, which are no longer needed. The segment being written is kept.
+	 *
+	 * @param number	the record number
+	 */
+	public void truncate(long number) {
+
+		synchronized (segments) {
+
+			// a segment ends where the next one starts
+			while (segments.size() > 1 && segments.get(1).first - 1 <= number) {
+				Segment segment = segments.remove(0);
+				segment.delete();
+			}
+		}
+	}
+
+	/**
+	 * Get the number of segment files
+	 *
+	 * @return		the count
+	 */
+	public int segmentCount() {
+
+		synchronized (segments) {
+			return segments.size();
+		}
+	}
+
+	/**
+	 * Is the journal taking appends?
+	 *
+	 * @return		false once closed, or after a failed write
+	 */
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	/**
+	 * Stop the journal thread, failing any appends not yet written
+	 */
+	public void close() {
+
+		closed = true;
+		thread.interrupt();
+	}
+
+	/**
+	 * The journal thread - write whatever is queued, force, then complete the appends
+	 */
+	private void run() {
+
+		List<Append> batch = new ArrayList<>();
+
+		while (!closed) {
+
+			try {
+				batch.add(appends.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			appends.drainTo(batch);
+
+			try {
+
+				Segment segment = current();
+				for (Append append : batch) {
+					if (!segment.fits(append.data.length)) {
+						segment.force();
+						segment = roll();
+					}
+					append.number = nextNumber++;
+					segment.write(append.number, append.data);
+				}
+				segment.force();
+
+				for (Append append : batch) {
+					append.handler.handle(Future.succeededFuture(append.number));
+				}
+
+			} catch (IOException | RuntimeException e) {
+
+				// the records may or may not be on disk - stop taking more, so no later record is acknowledged after a lost one
+				log.error("journal write failed, closing", e);
+				closed = true;
+				for (Append append : batch) {
+					append.handler.handle(Future.failedFuture(e));
+				}
+			}
+
+			batch.clear();
+		}
+
+		// closed
+		Append append;
+		while ((append = appends.poll()) != null) {
+			append.handler.handle(Future.failedFuture("Journal closed"));
+		}
+	}
+
+	/**
+	 * Get the segment written to, starting one if there is none
+	 */
+	private Segment current() throws IOException {
+
+		synchronized (segments) {
+			if (segments.isEmpty() || !segments.get(segments.size() - 1).writable()) {
+				return roll();
+			}
+			return segments.get(segments.size() - 1);
+		}
+	}
+
+	/**
+	 * Start a new segment with the next record number
+	 */
+	private Segment roll() throws IOException {
+
+		Segment segment = new Segment(new File(dir, String.format("%020d", nextNumber) + SUFFIX), nextNumber);
+		segment.create(segmentSize);
+
+		synchronized (segments) {
+			if (!segments.isEmpty()) {
+				segments.get(segments.size() - 1).buffer = null;
+			}
+			segments.add(segment);
+		}
+		return segment;
+	}
+
+	/**
+	 * <p>
+	 * A record read back on open
+	 * </p>
+	 */
+	public static final class Record {
+
+		public final long number;
+		public final byte[] data;
+
+		Record(long number, byte[] data) {
+			this.number = number;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * <p>
+	 * An append waiting for the journal thread
+	 * </p>
+	 */
+	private static final class Append {
+
+		final byte[] data;
+		final Handler<AsyncResult<Long>> handler;
+		long number;
+
+		Append(byte[] data, Handler<AsyncResult<Long>> handler) {
+			this.data = data;
+			this.handler = handler;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A segment file, mapped while written to
+	 * </p>
+	 */
+	private static final class Segment {
+
+		final File file;
+
+		// number of the first record
+		final long first;
+
+		// mapping of the file, null unless written to
+		MappedByteBuffer buffer;
+
+		Segment(File file, long first) {
+			this.file = file;
+			this.first = first;
+		}
+
+		void create(int size) throws IOException {
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(size);
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}
+		}
+
+		boolean writable() {
+			return buffer != null;
+		}
+
+		boolean fits(int length) {
+			return buffer.remaining() >= HEADER_SIZE + length;
+		}
+
+		void write(long number, byte[] data) {
+
+			CRC32 crc = new CRC32();
+			crc.update(data);
+
+			// the length goes last, so a record is never seen before it is complete
+			int start = buffer.position();
+			buffer.position(start + 4);
+			buffer.putLong(number).putInt((int) crc.getValue()).put(data);
+			buffer.putInt(start, data.length);
+		}
+
+		void force() {
+			buffer.force();
+		}
+
+		/**
+		 * Read the records of an existing segment
+		 *
+		 * @return		the number following the last record
+		 */
+		long recover(List<Record> records) throws IOException {
+
+			long next = first;
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+
+				MappedByteBuffer in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+
+				while (in.remaining() >= HEADER_SIZE) {
+
+					int length = in.getInt();
+					if (length <= 0 || length > in.remaining() - 12) {
+						break;
+					}
+
+					long number = in.getLong();
+					int checksum = in.getInt();
+					byte[] data = new byte[length];
+					in.get(data);
+
+					CRC32 crc = new CRC32();
+					crc.update(data);
+					if ((int) crc.getValue() != checksum) {
+						log.warn("torn record {} in {}", number, file);
+						break;
+					}
+
+					records.add(new Record(number, data));
+					next = number + 1;
+				}
+			}
+
+			return next;
+		}
+
+		void delete() {
+
+			buffer = null;
+			if (!file.delete()) {
+				log.warn("unable to delete {}", file);
+			}
+		}
+	}
+}
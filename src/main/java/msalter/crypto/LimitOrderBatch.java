@@ -0,0 +1,215 @@
+package msalter.crypto;
+
+import java.io.IOException;
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
+
+/**
+ * <p>
+ * A batch of limit orders submitted in one request, as a json array or as NDJSON (one json object per line) :
+ * 
+ * 	[ { "account_id" : 2, "price_limit" : 3124.12 }, { "account_id" : 3, "price_limit" : "3124.15" } ]
+ * 
+ * Prices may be json numbers or strings and are read exactly from their text, rounded to the 9 decimal places of a limit price as the 
+ * DB rounds them (see FixedPoint). Other fields are ignored.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LimitOrderBatch {
+
+	private long[] accountIds = new long[16];
+	private long[] limitPrices = new long[16];
+	private int size = 0;
+
+	private LimitOrderBatch() {
+	}
+
+	/**
+	 * Parse and validate a batch
+	 *
+	 * @param body		the request body
+	 * @param maxSize	the maximum number of orders
+	 * @return			the batch
+	 * @throws IllegalArgumentException		if the body is not valid json, is empty or too large, or any order is invalid - the message 
+	 * 										says which order (counting from 0) and why
+	 */
+	public static LimitOrderBatch parse(Buffer body, int maxSize) {
+
+		LimitOrderBatch batch = new LimitOrderBatch();
+
+		try (JsonParser parser = Json.mapper.getFactory().createParser(body.getBytes())) {
+
+			JsonToken token = parser.nextToken();
+			boolean array = token == JsonToken.START_ARRAY;
+			if (array) {
+				token = parser.nextToken();
+			}
+
+			// NDJSON is simply a sequence of root level objects
+			while (token != null && token != JsonToken.END_ARRAY) {
+
+				if (batch.size == maxSize) {
+					throw new IllegalArgumentException("Too many orders, the maximum is " + maxSize);
+				}
+				if (token != JsonToken.START_OBJECT) {
+					throw new IllegalArgumentException("Order " + batch.size + " : not a json object");
+				}
+
+				batch.add(parser);
+				token = parser.nextToken();
+			}
+
+			if (array && (token == null || parser.nextToken() != null)) {
+				throw new IllegalArgumentException("Orders array not terminated");
+			}
+
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid json after " + batch.size + " orders : " + e.getMessage());
+		}
+
+		if (batch.size == 0) {
+			throw new IllegalArgumentException("No orders");
+		}
+
+		return batch;
+	}
+
+	/**
+	 * Read and validate one order, the parser being on its START_OBJECT
+	 */
+	private void add(JsonParser parser) throws IOException {
+
+		Long accountId = null;
+		Long limitPrice = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if ("account_id".equals(field)) {
+				if (value == JsonToken.VALUE_NUMBER_INT) {
+					accountId = parser.getLongValue();
+				} else if (value == JsonToken.VALUE_STRING) {
+					accountId = parseAccountId(parser.getText());
+				}
+			} else if ("price_limit".equals(field)) {
+				if (value == JsonToken.VALUE_NUMBER_INT || value == JsonToken.VALUE_NUMBER_FLOAT || value == JsonToken.VALUE_STRING) {
+					limitPrice = parsePrice(parser.getText());
+				}
+			} else {
+				parser.skipChildren();
+			}
+		}
+
+		if (accountId == null || accountId <= 0) {
+			throw new IllegalArgumentException("Order " + size + " : account_id missing or invalid");
+		}
+		if (limitPrice == null || limitPrice <= 0) {
+			throw new IllegalArgumentException("Order " + size + " : price_limit missing or invalid");
+		}
+
+		if (size == accountIds.length) {
+			accountIds = Arrays.copyOf(accountIds, size * 2);
+			limitPrices = Arrays.copyOf(limitPrices, size * 2);
+		}
+		accountIds[size] = accountId;
+		limitPrices[size] = limitPrice;
+		size++;
+	}
+
+	private static Long parseAccountId(String value) {
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Parse a limit price, rounded half up to 9 decimal places as the DB rounds it - any long fits DECIMAL(19, 9) in client_order
+	 *
+	 * @param value		the price as passed, may be null
+	 * @return			the price, scaled (see FixedPoint), or null if missing, not a decimal or too large
+	 */
+	static Long parsePrice(String value) {
+		if (value == null) {
+			return null;
+		}
+		try {
+			return FixedPoint.parse(value, FixedPoint.SCALE, RoundingMode.HALF_UP);
+		} catch (NumberFormatException | ArithmeticException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Get the number of orders
+	 *
+	 * @return		the number of orders
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the account id of an order
+	 *
+	 * @param index		the order index
+	 * @return			the account id
+	 */
+	public long accountId(int index) {
+		return accountIds[index];
+	}
+
+	/**
+	 * Get the limit price of an order
+	 *
+	 * @param index		the order index
+	 * @return			the limit price, scaled (see FixedPoint)
+	 */
+	public long limitPrice(int index) {
+		return limitPrices[index];
+	}
+
+	/**
+	 * Get the account ids as a postgres array literal, eg {2,3}
+	 *
+	 * @return		the literal
+	 */
+	public String accountIdsLiteral() {
+
+		StringBuilder literal = new StringBuilder(size * 8).append('{');
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				literal.append(',');
+			}
+			literal.append(accountIds[i]);
+		}
+		return literal.append('}').toString();
+	}
+
+	/**
+	 * Get the limit prices as a postgres array literal, eg {3124.120000000,3124.150000000}
+	 *
+	 * @return		the literal
+	 */
+	public String limitPricesLiteral() {
+
+		StringBuilder literal = new StringBuilder(size * 16).append('{');
+		for (int i = 0; i < size; i++) {
+			if (i > 0) {
+				literal.append(',');
+			}
+			FixedPoint.append(literal, limitPrices[i], FixedPoint.SCALE);
+		}
+		return literal.append('}').toString();
+	}
+}
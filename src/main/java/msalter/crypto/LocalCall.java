@@ -0,0 +1,201 @@
+package msalter.crypto;
+
+import java.nio.charset.StandardCharsets;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.shareddata.LocalMap;
+
+/**
+ * <p>
+ * The messages of a service call delivered by the gateway over the event bus instead of over loopback HTTP, when the services run in 
+ * the same process. A service instance consumes the calls to its backend name at address(name), and replies with the status and body 
+ * it would have sent over HTTP.
+ * </p>
+ * <p>
+ * Both messages have codecs registered as the default for their class. Within the process a message is passed as is, never copied or 
+ * encoded; the wire format - length prefixed fields - is only used if the event bus is clustered.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LocalCall {
+
+	// reply failure code of a call to a path the service only serves over HTTP
+	public static final int NO_LOCAL_ROUTE = 404;
+
+	// local map recording the Vertx instances on which the codecs are registered
+	private static final String CODECS_MAP = "localCall.codecs";
+
+	/**
+	 * Get the event bus address of a backend's calls
+	 * 
+	 * @param backend	the backend name, as configured in the gateway
+	 * @return			the address
+	 */
+	public static String address(String backend) {
+		return "service." + backend;
+	}
+
+	/**
+	 * Register the codecs, once per Vertx
+	 * 
+	 * @param vertx		the Vertx object
+	 */
+	public static synchronized void registerCodecs(Vertx vertx) {
+
+		LocalMap<String, Boolean> codecs = vertx.sharedData().getLocalMap(CODECS_MAP);
+		if (codecs.putIfAbsent(CODECS_MAP, true) == null) {
+			vertx.eventBus().registerDefaultCodec(Request.class, new RequestCodec());
+			vertx.eventBus().registerDefaultCodec(Response.class, new ResponseCodec());
+		}
+	}
+
+	/**
+	 * <p>
+	 * A call - the HTTP request as received by the gateway, body included
+	 * </p>
+	 */
+	public static final class Request {
+
+		public final String method;
+		public final String uri;
+		public final String contentType;
+		public final String requestId;
+		public final Buffer body;
+
+		public Request(String method, String uri, String contentType, String requestId, Buffer body) {
+			this.method = method;
+			this.uri = uri;
+			this.contentType = contentType;
+			this.requestId = requestId;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * <p>
+	 * The reply to a call - the HTTP status and the json body
+	 * </p>
+	 */
+	public static final class Response {
+
+		public final int status;
+		public final Buffer body;
+
+		public Response(int status, Buffer body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	private static void writeString(Buffer buffer, String value) {
+
+		if (value == null) {
+			buffer.appendInt(-1);
+		} else {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			buffer.appendInt(bytes.length).appendBytes(bytes);
+		}
+	}
+
+	private static String readString(Buffer buffer, int[] pos) {
+
+		int length = buffer.getInt(pos[0]);
+		pos[0] += 4;
+		if (length < 0) {
+			return null;
+		}
+		String value = buffer.getString(pos[0], pos[0] + length, "UTF-8");
+		pos[0] += length;
+		return value;
+	}
+
+	private static Buffer readBuffer(Buffer buffer, int[] pos) {
+
+		int length = buffer.getInt(pos[0]);
+		pos[0] += 4;
+		Buffer value = buffer.getBuffer(pos[0], pos[0] + length);
+		pos[0] += length;
+		return value;
+	}
+
+	/**
+	 * <p>
+	 * Request codec
+	 * </p>
+	 */
+	static final class RequestCodec implements MessageCodec<Request, Request> {
+
+		@Override
+		public void encodeToWire(Buffer buffer, Request request) {
+
+			writeString(buffer, request.method);
+			writeString(buffer, request.uri);
+			writeString(buffer, request.contentType);
+			writeString(buffer, request.requestId);
+			buffer.appendInt(request.body.length()).appendBuffer(request.body);
+		}
+
+		@Override
+		public Request decodeFromWire(int pos, Buffer buffer) {
+
+			int[] position = { pos };
+			return new Request(readString(buffer, position), readString(buffer, position), readString(buffer, position), 
+					readString(buffer, position), readBuffer(buffer, position));
+		}
+
+		@Override
+		public Request transform(Request request) {
+			return request;
+		}
+
+		@Override
+		public String name() {
+			return "localCall.request";
+		}
+
+		@Override
+		public byte systemCodecID() {
+			return -1;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Response codec
+	 * </p>
+	 */
+	static final class ResponseCodec implements MessageCodec<Response, Response> {
+
+		@Override
+		public void encodeToWire(Buffer buffer, Response response) {
+
+			buffer.appendInt(response.status);
+			buffer.appendInt(response.body.length()).appendBuffer(response.body);
+		}
+
+		@Override
+		public Response decodeFromWire(int pos, Buffer buffer) {
+
+			int[] position = { pos + 4 };
+			return new Response(buffer.getInt(pos), readBuffer(buffer, position));
+		}
+
+		@Override
+		public Response transform(Response response) {
+			return response;
+		}
+
+		@Override
+		public String name() {
+			return "localCall.response";
+		}
+
+		@Override
+		public byte systemCodecID() {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package msalter.crypto;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.vertx.core.http.HttpMethod;
+
+/**
+ * <p>
+ * Method and path routing table for requests delivered over the event bus, matching paths the way the Vert.x web router matches the 
+ * same routes - segment by segment, a ":name" segment matching any one segment as a path parameter, with or without a trailing slash. 
+ * Routes are tried in the order added.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ * 
+ * @param <T>	the route target type
+ */
+public class LocalRoutes<T> {
+
+	private final List<Route<T>> routes = new ArrayList<>();
+
+	/**
+	 * Add a route
+	 * 
+	 * @param method	the HTTP method
+	 * @param path		the path, eg /accountdetails/:account_id
+	 * @param target	the target
+	 */
+	public void add(HttpMethod method, String path, T target) {
+		routes.add(new Route<>(method, path, target));
+	}
+
+	/**
+	 * Match a request
+	 * 
+	 * @param method	the HTTP method
+	 * @param path		the request path (any query string is ignored)
+	 * @return			the match, or null if no route matches
+	 */
+	public Match<T> match(HttpMethod method, String path) {
+
+		int query = path.indexOf('?');
+		String[] segments = split(query < 0 ? path : path.substring(0, query));
+
+		for (Route<T> route : routes) {
+
+			if (route.method != method || route.segments.length != segments.length) {
+				continue;
+			}
+
+			Map<String, String> params = Collections.emptyMap();
+			boolean matched = true;
+
+			for (int i = 0; i < segments.length && matched; i++) {
+
+				String segment = route.segments[i];
+
+				if (segment.startsWith(":")) {
+					if (segments[i].isEmpty()) {
+						matched = false;
+					} else {
+						if (params.isEmpty()) {
+							params = new HashMap<>();
+						}
+						params.put(segment.substring(1), segments[i]);
+					}
+				} else {
+					matched = segment.equals(segments[i]);
+				}
+			}
+
+			if (matched) {
+				return new Match<>(route.path, route.target, params);
+			}
+		}
+
+		return null;
+	}
+
+	private static String[] split(String path) {
+
+		// a trailing slash is optional
+		int end = path.length();
+		if (end > 1 && path.charAt(end - 1) == '/') {
+			end--;
+		}
+
+		return path.substring(0, end).split("/", -1);
+	}
+
+	/**
+	 * <p>
+	 * A route
+	 * </p>
+	 */
+	private static final class Route<T> {
+
+		final HttpMethod method;
+		final String path;
+		final String[] segments;
+		final T target;
+
+		Route(HttpMethod method, String path, T target) {
+			this.method = method;
+			this.path = path;
+			this.segments = split(path);
+			this.target = target;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A matched route - its path, target and the path parameters of the request
+	 * </p>
+	 */
+	public static final class Match<T> {
+
+		public final String path;
+		public final T target;
+		public final Map<String, String> params;
+
+		Match(String path, T target, Map<String, String> params) {
+			this.path = path;
+			this.target = target;
+			this.params = params;
+		}
+	}
+}
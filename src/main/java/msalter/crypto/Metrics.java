@@ -0,0 +1,225 @@
+package msalter.crypto;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Process-wide metrics registry. Latencies are recorded in timers - fixed bucket histograms identified by a metric name and a set of
+ * labels - and exposed in the Prometheus text format. A timer's count is also its request count.
+ * </p>
+ * <p>
+ * Metrics recorded by the app :
+ *
+ * 	http_server_requests_seconds{service,route,status} - service endpoint latency, from request received to response written (BaseVerticle)
+ * 	gateway_requests_seconds{backend,status} - gateway latency, from request received to response streamed (GatewayService)
+ * 	gateway_backend_seconds{backend,transport} - gateway hop latency, from request received to backend response headers, over http or 
+ * 	the event bus (GatewayService)
+ * 	db_pool_wait_seconds - wait for a pooled connection (DB)
+ * 	db_query_seconds{function,ok} - statement latency on the connection, by the DB function called (DB)
+ * 	event_loop_lag_seconds - delay of a periodic timer on each service event loop (BaseVerticle)
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class Metrics {
+
+	// histogram bucket upper bounds, in seconds
+	private static final double[] BUCKETS = { 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+	// timers by name and then by label set
+	private static final Map<String, Family> families = new ConcurrentHashMap<>();
+
+	/**
+	 * Get a timer, creating it on first use
+	 *
+	 * @param name		the metric name
+	 * @param help		the metric description
+	 * @param labels	label names and values, alternating - eg "route", "/account/", "status", "201"
+	 * @return			the timer
+	 */
+	public static Timer timer(String name, String help, String... labels) {
+
+		Family family = families.computeIfAbsent(name, n -> new Family(help));
+
+		if (labels.length == 0) {
+			return family.timers.computeIfAbsent("", l -> new Timer());
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (int i = 0; i < labels.length; i += 2) {
+			if (i > 0) {
+				key.append(',');
+			}
+			key.append(labels[i]).append("=\"").append(escape(labels[i + 1])).append('"');
+		}
+
+		return family.timers.computeIfAbsent(key.toString(), l -> new Timer());
+	}
+
+	/**
+	 * Record a latency
+	 *
+	 * @param name			the metric name
+	 * @param help			the metric description
+	 * @param startNanos	the start of the timed operation (System.nanoTime)
+	 * @param labels		label names and values, alternating
+	 */
+	public static void record(String name, String help, long startNanos, String... labels) {
+		timer(name, help, labels).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Write all timers in the Prometheus text format
+	 *
+	 * @param out		the text to append to
+	 */
+	public static void scrape(StringBuilder out) {
+
+		for (Map.Entry<String, Family> family : new TreeMap<>(families).entrySet()) {
+
+			String name = family.getKey();
+			out.append("# HELP ").append(name).append(' ').append(family.getValue().help).append('\n');
+			out.append("# TYPE ").append(name).append(" histogram\n");
+
+			for (Map.Entry<String, Timer> timer : new TreeMap<>(family.getValue().timers).entrySet()) {
+				timer.getValue().scrape(out, name, timer.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Write a gauge in the Prometheus text format
+	 *
+	 * @param out		the text to append to
+	 * @param name		the metric name
+	 * @param help		the metric description
+	 * @param value		the value
+	 */
+	public static void gauge(StringBuilder out, String name, String help, double value) {
+
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" gauge\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Write a counter in the Prometheus text format
+	 *
+	 * @param out		the text to append to
+	 * @param name		the metric name, ending in _total
+	 * @param help		the metric description
+	 * @param value		the value
+	 */
+	public static void counter(StringBuilder out, String name, String help, long value) {
+
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(" counter\n");
+		out.append(name).append(' ').append(value).append('\n');
+	}
+
+	/**
+	 * Drop all timers
+	 */
+	public static void clear() {
+		families.clear();
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * <p>
+	 * The timers of one metric name
+	 * </p>
+	 */
+	private static final class Family {
+
+		final String help;
+		final Map<String, Timer> timers = new ConcurrentHashMap<>();
+
+		Family(String help) {
+			this.help = help;
+		}
+	}
+
+	/**
+	 * <p>
+	 * A latency histogram. Safe to record from any thread.
+	 * </p>
+	 */
+	public static final class Timer {
+
+		private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sumNanos = new LongAdder();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		Timer() {
+			for (int i = 0; i < buckets.length; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		/**
+		 * Record a latency
+		 *
+		 * @param nanos		the latency in ns
+		 */
+		public void record(long nanos) {
+
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+			while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+				bucket++;
+			}
+
+			buckets[bucket].increment();
+			count.increment();
+			sumNanos.add(nanos);
+			if (nanos > maxNanos.get()) {
+				maxNanos.accumulateAndGet(nanos, Math::max);
+			}
+		}
+
+		/**
+		 * Get the number of recorded latencies
+		 *
+		 * @return		the count
+		 */
+		public long count() {
+			return count.sum();
+		}
+
+		/**
+		 * Get the highest recorded latency
+		 *
+		 * @return		the latency in seconds
+		 */
+		public double max() {
+			return maxNanos.get() / 1e9;
+		}
+
+		private void scrape(StringBuilder out, String name, String labels) {
+
+			String separator = labels.isEmpty() ? "" : ",";
+
+			long cumulative = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				cumulative += buckets[i].sum();
+				out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"").append(BUCKETS[i]).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			cumulative += buckets[BUCKETS.length].sum();
+			out.append(name).append("_bucket{").append(labels).append(separator).append("le=\"+Inf\"} ").append(cumulative).append('\n');
+
+			String braced = labels.isEmpty() ? "" : "{" + labels + "}";
+			out.append(name).append("_count").append(braced).append(' ').append(cumulative).append('\n');
+			out.append(name).append("_sum").append(braced).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+		}
+	}
+}
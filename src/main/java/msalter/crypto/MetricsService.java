@@ -0,0 +1,95 @@
+package msalter.crypto;
+
+import io.vertx.core.Future;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.RoutingContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Metrics service - serves the metrics of all services running in this process (see Metrics) in the Prometheus text format on 
+ * http://127.0.0.1:8084/metrics, along with the DB pool, account details cache and account events statistics. Only reachable locally.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class MetricsService extends BaseVerticle {
+
+	private static final Logger log = LoggerFactory.getLogger(MetricsService.class);
+
+	/**
+	 * Service endpoint - scrape the metrics
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 */
+	private void scrape(RoutingContext routingContext) {
+
+		StringBuilder out = new StringBuilder(16384);
+
+		Metrics.scrape(out);
+
+		JsonObject pool = DB.getPoolStats(vertx);
+		if (pool != null) {
+			Metrics.gauge(out, "db_pool_connections_in_use", "DB connections in use", pool.getInteger("inUse"));
+			Metrics.gauge(out, "db_pool_requests_waiting", "Requests waiting for a DB connection", pool.getInteger("waiting"));
+			Metrics.counter(out, "db_pool_requests_rejected_total", "Requests rejected because too many were waiting for a DB connection", pool.getLong("rejected"));
+			Metrics.counter(out, "db_pool_connect_failures_total", "Failed DB connection attempts", pool.getLong("failed"));
+		}
+
+		JsonObject cache = AccountService.getCacheStats(vertx);
+		if (cache != null) {
+			Metrics.gauge(out, "account_cache_size", "Accounts held in the account details cache", cache.getInteger("size"));
+			Metrics.counter(out, "account_cache_hits_total", "Account details cache hits", cache.getLong("hits"));
+			Metrics.counter(out, "account_cache_misses_total", "Account details cache misses", cache.getLong("misses"));
+			Metrics.counter(out, "account_cache_evictions_total", "Account details cache evictions", cache.getLong("evictions"));
+			Metrics.counter(out, "account_cache_invalidations_total", "Account details cache invalidations", cache.getLong("invalidations"));
+		}
+
+		JsonObject events = AccountEvents.getStats();
+		Metrics.gauge(out, "account_events_subscribers", "Clients subscribed to account events", events.getInteger("subscribers"));
+		Metrics.counter(out, "account_events_delivered_total", "Account events written to subscribed clients", events.getLong("delivered"));
+		Metrics.counter(out, "account_events_dropped_total", "Account events dropped for slow clients", events.getLong("dropped"));
+		Metrics.counter(out, "account_events_conflated_total", "Account events conflated into a resync for slow clients", events.getLong("conflated"));
+
+		JsonObject accounts = AccountState.getStats(vertx);
+		if (accounts != null) {
+			Metrics.gauge(out, "account_state_accounts", "Accounts held by the account state engine", accounts.getInteger("accounts"));
+			Metrics.counter(out, "account_state_reservations_total", "Orders whose funds were reserved by the pre-trade balance check", accounts.getLong("reservations"));
+			Metrics.counter(out, "account_state_rejections_total", "Order requests rejected by the pre-trade balance check", accounts.getLong("rejections"));
+		}
+
+		JsonObject journal = OrderJournal.getStats(vertx);
+		if (journal != null) {
+			Metrics.gauge(out, "order_journal_pending", "Journaled orders not yet in the DB", journal.getInteger("pending"));
+			Metrics.gauge(out, "order_journal_segments", "Order journal segment files", journal.getInteger("segments"));
+			Metrics.counter(out, "order_journal_rejected_total", "Journaled orders set aside as rejected by the DB", journal.getLong("rejected"));
+		}
+
+		routingContext.response()
+				.putHeader("content-type", "text/plain; version=0.0.4; charset=utf-8")
+				.end(out.toString());
+	}
+
+	/**
+	 * Start the server after defining the routes
+	 * 
+	 * @param fut		the Vertx future object
+	 */
+	@Override
+	public void start(Future<Void> fut) { 
+
+		// Create a router object.
+		Router router = Router.router(vertx);
+
+		router.get("/metrics").handler(this::scrape);
+
+		// start server, local interface only
+		startServer(fut, router, 8084, "127.0.0.1");
+
+		log.info("started");
+
+	}
+}
@@ -0,0 +1,297 @@
+package msalter.crypto;
+
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Resident limit order book. Resting buy limit orders are held in price levels sorted by descending limit price, each level being a
+ * FIFO queue of order ids. A price tick only walks the levels which actually cross the price, so matching cost depends on the number
+ * of executable orders and not on the number of resting orders.
+ * </p>
+ * <p>
+ * Prices are keyed as longs scaled to the 9 decimal places of the client_order.limit_price column (see FixedPoint).
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class OrderBook {
+
+	private static final int INITIAL_LEVELS = 16;
+
+	// level prices, highest first
+	private long[] prices = new long[INITIAL_LEVELS];
+
+	// order id queues, parallel to prices
+	private LongQueue[] levels = new LongQueue[INITIAL_LEVELS];
+
+	// number of price levels in use
+	private int levelCount = 0;
+
+	// number of resting orders
+	private int size = 0;
+
+	/**
+	 * Convert a decimal price (as returned by the DB or passed to an endpoint) to a price key
+	 *
+	 * @param price		the price as a decimal string
+	 * @return			the price key
+	 */
+	public static long toPriceKey(String price) {
+		return FixedPoint.parse(price, FixedPoint.SCALE, RoundingMode.DOWN);
+	}
+
+	/**
+	 * Convert a price (as returned by the price service) to a price key
+	 *
+	 * @param price		the price
+	 * @return			the price key
+	 */
+	public static long toPriceKey(double price) {
+		return FixedPoint.fromDouble(price, FixedPoint.SCALE, RoundingMode.DOWN);
+	}
+
+	/**
+	 * Add a resting order to the back of its price level
+	 *
+	 * @param orderId		the order id
+	 * @param limitPrice	the limit price key
+	 */
+	public synchronized void add(long orderId, long limitPrice) {
+
+		int index = findLevel(limitPrice);
+
+		if (index < 0) {
+			// new price level
+			index = -index - 1;
+			insertLevel(index, limitPrice);
+		}
+
+		levels[index].add(orderId);
+		size++;
+	}
+
+	/**
+	 * Remove and return all orders whose limit price is above the passed price, best price first and in arrival order within a level
+	 *
+	 * @param price		the current price key
+	 * @return			the ids of the crossed orders, never null
+	 */
+	public long[] match(long price) {
+		return take(price).orderIds;
+	}
+
+	/**
+	 * Remove and return all orders whose limit price is above the passed price, with their limit prices, so they can be restored
+	 *
+	 * @param price		the current price key
+	 * @return			the crossed orders, best price first and in arrival order within a level
+	 */
+	public synchronized Matched take(long price) {
+
+		// count crossing levels and orders - levels are sorted descending so stop at the first one which does not cross
+		int crossedLevels = 0;
+		int crossedOrders = 0;
+		while (crossedLevels < levelCount && prices[crossedLevels] > price) {
+			crossedOrders += levels[crossedLevels].size();
+			crossedLevels++;
+		}
+
+		if (crossedLevels == 0) {
+			return new Matched(new long[0], new long[0]);
+		}
+
+		// drain the crossed levels
+		long[] orderIds = new long[crossedOrders];
+		long[] limitPrices = new long[crossedOrders];
+		int offset = 0;
+		for (int i = 0; i < crossedLevels; i++) {
+			int start = offset;
+			offset = levels[i].drainTo(orderIds, offset);
+			Arrays.fill(limitPrices, start, offset, prices[i]);
+		}
+
+		// drop the crossed levels
+		int remaining = levelCount - crossedLevels;
+		System.arraycopy(prices, crossedLevels, prices, 0, remaining);
+		System.arraycopy(levels, crossedLevels, levels, 0, remaining);
+		Arrays.fill(levels, remaining, levelCount, null);
+		levelCount = remaining;
+		size -= crossedOrders;
+
+		return new Matched(orderIds, limitPrices);
+	}
+
+	/**
+	 * Put matched orders back at the front of their price levels, ahead of any orders added since, eg when they could not be executed
+	 *
+	 * @param matched	the matched orders
+	 * @param from		index of the first order restored
+	 * @param to		index after the last order restored
+	 */
+	public synchronized void restore(Matched matched, int from, int to) {
+
+		// last first, so each level ends up in its original order
+		for (int i = to - 1; i >= from; i--) {
+
+			int index = findLevel(matched.limitPrices[i]);
+			if (index < 0) {
+				index = -index - 1;
+				insertLevel(index, matched.limitPrices[i]);
+			}
+
+			levels[index].addFirst(matched.orderIds[i]);
+			size++;
+		}
+	}
+
+	/**
+	 * Get the best (highest) resting limit price
+	 *
+	 * @return		the best price key, or Long.MIN_VALUE if the book is empty
+	 */
+	public synchronized long bestPrice() {
+		return levelCount == 0 ? Long.MIN_VALUE : prices[0];
+	}
+
+	/**
+	 * Get the number of resting orders
+	 *
+	 * @return		the number of orders
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of distinct price levels
+	 *
+	 * @return		the number of price levels
+	 */
+	public synchronized int levelCount() {
+		return levelCount;
+	}
+
+	/**
+	 * Binary search for a price level in the descending price array
+	 *
+	 * @param price		the price key
+	 * @return			the level index if found, otherwise (-(insertion point) - 1)
+	 */
+	private int findLevel(long price) {
+
+		int low = 0;
+		int high = levelCount - 1;
+
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			long midPrice = prices[mid];
+
+			if (midPrice > price) {
+				low = mid + 1;
+			} else if (midPrice < price) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * Insert an empty price level at the passed index, growing the level arrays if required
+	 *
+	 * @param index		the index
+	 * @param price		the price key
+	 */
+	private void insertLevel(int index, long price) {
+
+		if (levelCount == prices.length) {
+			prices = Arrays.copyOf(prices, levelCount * 2);
+			levels = Arrays.copyOf(levels, levelCount * 2);
+		}
+
+		System.arraycopy(prices, index, prices, index + 1, levelCount - index);
+		System.arraycopy(levels, index, levels, index + 1, levelCount - index);
+
+		prices[index] = price;
+		levels[index] = new LongQueue();
+		levelCount++;
+	}
+
+	/**
+	 * <p>
+	 * Orders taken out of the book by a match
+	 * </p>
+	 */
+	public static final class Matched {
+
+		public final long[] orderIds;
+		public final long[] limitPrices;
+
+		Matched(long[] orderIds, long[] limitPrices) {
+			this.orderIds = orderIds;
+			this.limitPrices = limitPrices;
+		}
+	}
+
+	/**
+	 * <p>
+	 * Growable FIFO ring buffer of primitive longs
+	 * </p>
+	 */
+	static final class LongQueue {
+
+		private long[] elements = new long[8];
+		private int head = 0;
+		private int count = 0;
+
+		void add(long value) {
+
+			if (count == elements.length) {
+				grow();
+			}
+
+			elements[(head + count) & (elements.length - 1)] = value;
+			count++;
+		}
+
+		void addFirst(long value) {
+
+			if (count == elements.length) {
+				grow();
+			}
+
+			head = (head - 1) & (elements.length - 1);
+			elements[head] = value;
+			count++;
+		}
+
+		// double the capacity, unwrapping the ring
+		private void grow() {
+
+			long[] grown = new long[elements.length * 2];
+			int firstPart = elements.length - head;
+			System.arraycopy(elements, head, grown, 0, firstPart);
+			System.arraycopy(elements, 0, grown, firstPart, head);
+			elements = grown;
+			head = 0;
+		}
+
+		int drainTo(long[] target, int offset) {
+
+			int firstPart = Math.min(count, elements.length - head);
+			System.arraycopy(elements, head, target, offset, firstPart);
+			System.arraycopy(elements, 0, target, offset + firstPart, count - firstPart);
+
+			offset += count;
+			head = 0;
+			count = 0;
+			return offset;
+		}
+
+		int size() {
+			return count;
+		}
+	}
+}
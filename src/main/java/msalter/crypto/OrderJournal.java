@@ -0,0 +1,596 @@
+package msalter.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.shareddata.LocalMap;
+import io.vertx.core.shareddata.Shareable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Fast path of limit order entry. An order is given an id reserved from the DB in advance, appended to the write-ahead Journal and
+ * acknowledged as soon as it is durable there, then inserted into the DB by a background writer, many orders per statement. Until
+ * then its details are served from memory. Orders are only handed to the order books (LIMIT_ORDERS_CREATED) once in the DB, so an
+ * order is never executed before it exists there.
+ * </p>
+ * <p>
+ * On open the orders left in the journal by the last run are inserted again - orders already in the DB are skipped - and the journal
+ * segments are deleted once all their orders are in the DB.
+ * </p>
+ * <p>
+ * An insert the DB rejects for the data itself (SQLSTATE class 22 or 23, eg a numeric overflow or a foreign key violation) is retried
+ * with half the batch, so a bad order ends up alone in its batch. An order rejected alone is set aside - logged and appended to
+ * rejected.ndjson in the journal directory - so it cannot hold up the others, and its reserved funds are released (ORDERS_REJECTED). 
+ * Any other failure, eg a lost connection, a full pool queue or a timeout, is retried with a growing delay and never sets an order 
+ * aside.
+ * </p>
+ * <p>
+ * One journal is shared by all OrderService instances through a local map. The writer runs on the event loop of the instance which
+ * opened it. Configuration (config.properties) :
+ *
+ * 	journal.path - the journal directory, the fast path is off if not set
+ * 	journal.segmentSize - the size of a journal segment file in bytes, default 64MB
+ * 	journal.flushInterval - the interval of the DB writer in ms, default 20
+ * 	journal.flushBatchSize - the maximum number of orders inserted per statement, default 1000
+ * 	journal.idBlockSize - the number of order ids reserved at a time, default 1000
+ * 	journal.retryDelay - the delay before retrying a failed insert in ms, doubled on each further failure, default 100
+ * 	journal.maxRetryDelay - the longest delay before retrying a failed insert in ms, default 10000
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class OrderJournal implements Shareable {
+
+	private static final Logger log = LoggerFactory.getLogger(OrderJournal.class);
+
+	// local map holding the journal shared by all instances
+	private static final String JOURNAL_MAP = "orders.journal";
+
+	// event bus address on which the orders (json objects with their account_id and limit_price) set aside as rejected by the DB are 
+	// published, so their reserved funds are released
+	public static final String ORDERS_REJECTED = "orders.rejected";
+
+	// the fixed order terms, as create_limit_order sets them
+	private static final String AMOUNT = "50.000000000000000000";
+
+	private final Vertx vertx;
+	private final DB db;
+	private final Journal journal;
+
+	private final int flushBatchSize;
+	private final int idBlockSize;
+	private final long retryDelay;
+	private final long maxRetryDelay;
+
+	// orders set aside as the DB rejects them
+	private final File rejectedFile;
+	private final AtomicLong rejected = new AtomicLong();
+
+	// acknowledged orders not yet in the DB, by journal record number and by order id
+	private final ConcurrentSkipListMap<Long, JsonObject> pending = new ConcurrentSkipListMap<>();
+	private final Map<Long, JsonObject> pendingById = new ConcurrentHashMap<>();
+
+	// the order-related details of accounts (see fetch_order_account), which never change
+	private final Map<Long, JsonObject> accounts = new ConcurrentHashMap<>();
+	private static final int MAX_ACCOUNTS = 100000;
+
+	// reserved order ids - guarded by this
+	private final ArrayDeque<Long> ids = new ArrayDeque<>();
+	private boolean reserving = false;
+
+	// is the writer running? - writer's event loop only
+	private boolean flushing = false;
+
+	// retrying failed inserts - writer's event loop only : the number of failures in a row, the time of the next attempt and the size
+	// of the next batch
+	private int failures = 0;
+	private long retryAt = 0;
+	private int batchLimit;
+
+	// number of the last record recovered on open, and the handlers waiting for the recovered orders to be in the DB - guarded by 
+	// replayWaiters
+	private long lastRecovered = 0;
+	private final List<Runnable> replayWaiters = new ArrayList<>();
+
+	private OrderJournal(Vertx vertx, File dir) throws IOException {
+		this(vertx, new DB(vertx), new Journal(dir, Config.getInt("journal.segmentSize", 64 * 1024 * 1024)), dir);
+	}
+
+	/**
+	 * Create a journal over an open Journal in a directory, writing to the passed DB - see open()
+	 */
+	OrderJournal(Vertx vertx, DB db, Journal journal, File dir) {
+
+		this.vertx = vertx;
+		this.db = db;
+		this.journal = journal;
+		this.flushBatchSize = Config.getInt("journal.flushBatchSize", 1000);
+		this.idBlockSize = Config.getInt("journal.idBlockSize", 1000);
+		this.retryDelay = Config.getInt("journal.retryDelay", 100);
+		this.maxRetryDelay = Config.getInt("journal.maxRetryDelay", 10000);
+		this.rejectedFile = new File(dir, "rejected.ndjson");
+		this.batchLimit = flushBatchSize;
+	}
+
+	/**
+	 * Get the journal shared by the instances running on a Vertx, opening it, replaying it and starting its writer on first use. Must be
+	 * called on the event loop of a verticle.
+	 *
+	 * @param vertx		the Vertx object
+	 * @return			the journal, or null if journal.path is not set
+	 * @throws IOException	if the journal cannot be opened
+	 */
+	public static synchronized OrderJournal open(Vertx vertx) throws IOException {
+
+		String path = Config.getProperties().getProperty("journal.path");
+		if (path == null) {
+			return null;
+		}
+
+		LocalMap<String, OrderJournal> journals = vertx.sharedData().getLocalMap(JOURNAL_MAP);
+		OrderJournal orderJournal = journals.get(JOURNAL_MAP);
+
+		if (orderJournal == null) {
+			orderJournal = new OrderJournal(vertx, new File(path));
+			orderJournal.start(Config.getInt("journal.flushInterval", 20));
+			journals.put(JOURNAL_MAP, orderJournal);
+		}
+
+		return orderJournal;
+	}
+
+	/**
+	 * Queue the orders recovered from the journal for the DB, reserve the first ids and start the writer
+	 */
+	private void start(long flushInterval) {
+
+		for (Journal.Record record : journal.recovered()) {
+			JsonObject order = decode(record.data);
+			pending.put(record.number, order);
+			pendingById.put(order.getLong("id"), order);
+		}
+
+		if (!pending.isEmpty()) {
+			log.info("replaying {} journaled orders", pending.size());
+			lastRecovered = pending.lastKey();
+		}
+
+		reserveIds();
+
+		vertx.setPeriodic(flushInterval, id -> flush());
+	}
+
+	/**
+	 * Create a limit order on the fast path - the handler is called with the Order Details once the order is durable in the journal
+	 *
+	 * @param accountId		the id of the trading account
+	 * @param priceLimit	the limit price, scaled (see FixedPoint) - any long fits DECIMAL(19, 9)
+	 * @param handler		a handler called with the Result
+	 * @return				false, without calling the handler, if the fast path cannot take the order (no reserved id at hand or the
+	 * 						journal closed after a failure) and it must be created in the DB instead
+	 */
+	public boolean submit(long accountId, long priceLimit, Handler<Result> handler) {
+
+		if (!journal.isOpen()) {
+			return false;
+		}
+
+		Long id = nextId();
+		if (id == null) {
+			return false;
+		}
+
+		JsonObject account = accounts.get(accountId);
+		if (account != null) {
+			append(id, accountId, account, priceLimit, handler);
+			return true;
+		}
+
+		db.execAndReturnRow("SELECT * FROM fetch_order_account(?::BIGINT)", DB.params(accountId), result -> {
+
+			if (!result.isOk()) {
+				handler.handle(result);
+			} else if (result.data == null) {
+				handler.handle(new Result(false, "Account not found : " + accountId, null));
+			} else {
+				if (accounts.size() >= MAX_ACCOUNTS) {
+					accounts.clear();
+				}
+				accounts.put(accountId, (JsonObject) result.data);
+				append(id, accountId, (JsonObject) result.data, priceLimit, handler);
+			}
+		});
+
+		return true;
+	}
+
+	/**
+	 * Wait for the orders recovered on open to be in the DB, so the DB holds every order acknowledged by the last run
+	 *
+	 * @param handler	a handler called on the caller's context once replayed
+	 */
+	public void whenReplayed(Handler<Void> handler) {
+
+		Context context = vertx.getOrCreateContext();
+
+		synchronized (replayWaiters) {
+			if (!replayed()) {
+				replayWaiters.add(() -> context.runOnContext(handler));
+				return;
+			}
+		}
+
+		handler.handle(null);
+	}
+
+	/**
+	 * Are the orders recovered on open in the DB? - caller holds replayWaiters
+	 */
+	private boolean replayed() {
+
+		if (lastRecovered == 0) {
+			return true;
+		}
+
+		try {
+			return pending.firstKey() > lastRecovered;
+		} catch (NoSuchElementException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * Get an order which is not yet in the DB
+	 *
+	 * @param orderId	the order id
+	 * @return			the Order Details, or null if the order is not pending
+	 */
+	public JsonObject pendingOrder(long orderId) {
+		return pendingById.get(orderId);
+	}
+
+	/**
+	 * Get the statistics of the journal shared by the instances running on a Vertx
+	 *
+	 * @param vertx		the Vertx object
+	 * @return			the number of pending, rejected orders and journal segments, or null if the journal is not open
+	 */
+	public static JsonObject getStats(Vertx vertx) {
+
+		LocalMap<String, OrderJournal> journals = vertx.sharedData().getLocalMap(JOURNAL_MAP);
+		OrderJournal orderJournal = journals.get(JOURNAL_MAP);
+
+		return orderJournal == null ? null : new JsonObject()
+				.put("pending", orderJournal.pending.size())
+				.put("rejected", orderJournal.rejected.get())
+				.put("segments", orderJournal.journal.segmentCount());
+	}
+
+	/**
+	 * Append an order to the journal, acknowledging it on the caller's context once durable
+	 */
+	private void append(long id, long accountId, JsonObject account, long priceLimit, Handler<Result> handler) {
+
+		Context context = vertx.getOrCreateContext();
+
+		JsonObject order = new JsonObject()
+				.put("id", id)
+				.put("account_id", accountId)
+				.put("settlement_account_id", account.getLong("settlement_account_id"))
+				.put("client_id", account.getLong("client_id"))
+				.put("transaction_type", "buy")
+				.put("ccy", account.getString("ccy"))
+				.put("amount", AMOUNT)
+				.put("order_type", "limit")
+				.put("limit_price", FixedPoint.toPlainString(priceLimit, FixedPoint.SCALE))
+				.putNull("stop_price")
+				.putNull("execution_date")
+				.putNull("execution_price")
+				.put("settlement_ccy", account.getString("settlement_ccy"))
+				.putNull("settlement_amount")
+				.put("status", "created")
+				.put("created", LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS).toString());
+
+		journal.append(encode(order), ar -> {
+
+			// on the journal thread, in record order - so the pending orders are always in record order too
+			if (ar.succeeded()) {
+				pending.put(ar.result(), order);
+				pendingById.put(id, order);
+			}
+
+			context.runOnContext(v -> {
+				if (ar.succeeded()) {
+					handler.handle(new Result(order));
+				} else {
+					handler.handle(new Result(false, "Order journal failed : " + ar.cause().getMessage(), null));
+				}
+			});
+		});
+	}
+
+	/**
+	 * Insert the oldest pending orders into the DB, then hand them to the order book and drop the journal segments no longer needed
+	 */
+	void flush() {
+
+		if (flushing || pending.isEmpty() || System.currentTimeMillis() < retryAt) {
+			return;
+		}
+		flushing = true;
+
+		List<Map.Entry<Long, JsonObject>> batch = new ArrayList<>(Math.min(pending.size(), batchLimit));
+		for (Map.Entry<Long, JsonObject> entry : pending.entrySet()) {
+			batch.add(entry);
+			if (batch.size() == batchLimit) {
+				break;
+			}
+		}
+
+		// each column as a single postgres array literal
+		StringBuilder orderIds = new StringBuilder(batch.size() * 8).append('{');
+		StringBuilder accountIds = new StringBuilder(batch.size() * 4).append('{');
+		StringBuilder priceLimits = new StringBuilder(batch.size() * 16).append('{');
+		StringBuilder created = new StringBuilder(batch.size() * 26).append('{');
+
+		for (int i = 0; i < batch.size(); i++) {
+
+			JsonObject order = batch.get(i).getValue();
+			String separator = i == 0 ? "" : ",";
+
+			orderIds.append(separator).append(order.getLong("id"));
+			accountIds.append(separator).append(order.getLong("account_id"));
+			priceLimits.append(separator).append(order.getString("limit_price"));
+			created.append(separator).append('"').append(order.getString("created")).append('"');
+		}
+
+		String sql = "SELECT * FROM persist_limit_orders(?::BIGINT[],?::BIGINT[],?::NUMERIC[],?::TIMESTAMP[])";
+		JsonArray params = DB.params(orderIds.append('}').toString(), accountIds.append('}').toString(),
+				priceLimits.append('}').toString(), created.append('}').toString());
+
+		db.execAndReturnRows(sql, params, result -> {
+
+			flushing = false;
+
+			if (!result.isOk()) {
+				failed(batch, result);
+				return;
+			}
+
+			failures = 0;
+			retryAt = 0;
+			batchLimit = Math.min(batchLimit * 2, flushBatchSize);
+
+			// orders inserted now - not those a replay found already in the DB
+			List<JsonObject> inserted = new ArrayList<>();
+			Map<Long, JsonObject> insertedRows = new HashMap<>();
+			for (Object row : (List<?>) result.data) {
+				insertedRows.put(((JsonObject) row).getLong("id"), (JsonObject) row);
+			}
+
+			for (Map.Entry<Long, JsonObject> entry : batch) {
+				JsonObject order = entry.getValue();
+				JsonObject row = insertedRows.get(order.getLong("id"));
+				if (row != null) {
+					// a replayed order only holds what the insert needs - add what the order book needs
+					inserted.add(order.containsKey("ccy") ? order : order.mergeIn(row));
+				}
+				pending.remove(entry.getKey());
+				pendingById.remove(order.getLong("id"));
+			}
+
+			// hand the new orders to the order books of their instruments
+			if (!inserted.isEmpty()) {
+				OrderService.publishLimitOrdersCreated(vertx, inserted);
+			}
+
+			removed(batch.get(batch.size() - 1).getKey());
+
+			if (pending.size() >= flushBatchSize) {
+				flush();
+			}
+		});
+	}
+
+	/**
+	 * Handle a failed insert - halve the batch, or set its order aside if alone, if the DB rejected the data, otherwise retry after a 
+	 * growing delay
+	 */
+	private void failed(List<Map.Entry<Long, JsonObject>> batch, Result result) {
+
+		if (rejectedData(result)) {
+			if (batch.size() == 1) {
+				setAside(batch.get(0), result.message);
+			} else {
+				batchLimit = batch.size() / 2;
+				log.warn("{} journaled orders rejected by the DB, retrying {} at a time : {}", batch.size(), batchLimit, result.message);
+			}
+			return;
+		}
+
+		failures++;
+		retryAt = System.currentTimeMillis() + Math.min(retryDelay << Math.min(failures - 1, 20), maxRetryDelay);
+
+		log.error("failed to persist {} journaled orders, retrying in {} ms : {}", batch.size(), retryAt - System.currentTimeMillis(), 
+				result.message);
+	}
+
+	/**
+	 * Did the DB reject the data itself (SQLSTATE class 22 data exception or 23 integrity constraint violation), so the same orders 
+	 * will never go in? Failures not raised by the DB, eg a lost connection or a timeout, have no SQLSTATE.
+	 *
+	 * @param result	the Result of a failed insert
+	 * @return			true if rejected for the data
+	 */
+	static boolean rejectedData(Result result) {
+		return result.sqlState != null && (result.sqlState.startsWith("22") || result.sqlState.startsWith("23"));
+	}
+
+	/**
+	 * Drop an order the DB rejects from the pending orders, keeping it in the rejected file, and release its reserved funds
+	 */
+	private void setAside(Map.Entry<Long, JsonObject> entry, String message) {
+
+		JsonObject order = entry.getValue();
+		log.error("journaled order rejected by the DB, set aside : {} : {}", order.encode(), message);
+
+		try {
+			Files.write(rejectedFile.toPath(), (order.encode() + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE, 
+					StandardOpenOption.APPEND);
+		} catch (IOException e) {
+			log.error("failed to write rejected order {} : {}", order.getLong("id"), e.getMessage());
+		}
+
+		rejected.incrementAndGet();
+		pending.remove(entry.getKey());
+		pendingById.remove(order.getLong("id"));
+
+		// only an order taken by this run reserved funds here - one recovered on open has just the columns of its record, no ccy
+		if (order.containsKey("ccy")) {
+			vertx.eventBus().publish(ORDERS_REJECTED, new JsonObject()
+					.put("id", order.getLong("id"))
+					.put("account_id", order.getLong("account_id"))
+					.put("limit_price", order.getString("limit_price")));
+		}
+
+		removed(entry.getKey());
+	}
+
+	/**
+	 * Drop the journal segments whose orders are all out of the pending orders, and release the replay waiters once the orders recovered
+	 * on open are
+	 */
+	private void removed(long number) {
+
+		// every order before the oldest pending one is out
+		try {
+			journal.truncate(Math.min(number, pending.firstKey() - 1));
+		} catch (NoSuchElementException e) {
+			journal.truncate(number);
+		}
+
+		synchronized (replayWaiters) {
+			if (lastRecovered != 0 && replayed()) {
+				lastRecovered = 0;
+				log.info("journaled orders replayed");
+				replayWaiters.forEach(Runnable::run);
+				replayWaiters.clear();
+			}
+		}
+	}
+
+	/**
+	 * Take a reserved order id, reserving more when half the block is used
+	 *
+	 * @return		the id, or null if none is at hand
+	 */
+	private Long nextId() {
+
+		Long id;
+		boolean reserve;
+
+		synchronized (this) {
+			id = ids.poll();
+			reserve = !reserving && ids.size() < idBlockSize / 2;
+		}
+
+		if (reserve) {
+			reserveIds();
+		}
+
+		return id;
+	}
+
+	/**
+	 * Reserve a block of order ids
+	 */
+	private void reserveIds() {
+
+		synchronized (this) {
+			if (reserving) {
+				return;
+			}
+			reserving = true;
+		}
+
+		db.execAndReturnRows("SELECT id FROM reserve_order_ids(?::INT) AS reserved(id)", DB.params(idBlockSize), result -> {
+
+			synchronized (this) {
+
+				reserving = false;
+
+				if (!result.isOk()) {
+					log.error("failed to reserve order ids : {}", result.message);
+					return;
+				}
+
+				for (Object row : (List<?>) result.data) {
+					ids.add(((JsonObject) row).getLong("id"));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Encode an order as a journal record - only what the DB insert needs
+	 */
+	static byte[] encode(JsonObject order) {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeLong(order.getLong("id"));
+			out.writeLong(order.getLong("account_id"));
+			out.writeUTF(order.getString("limit_price"));
+			out.writeUTF(order.getString("created"));
+		} catch (IOException e) {
+			// not thrown by a byte array stream
+			throw new UncheckedIOException(e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a journal record
+	 */
+	static JsonObject decode(byte[] record) {
+
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(record))) {
+			return new JsonObject()
+					.put("id", in.readLong())
+					.put("account_id", in.readLong())
+					.put("limit_price", in.readUTF())
+					.put("created", in.readUTF());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+}
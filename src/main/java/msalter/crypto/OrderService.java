@@ -1,13 +1,26 @@
 package msalter.crypto;
 
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.ResultSet;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.handler.BodyHandler;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * <p>
  * Order service hosting all Order-related endpoints
@@ -17,42 +30,295 @@ import io.vertx.ext.web.handler.BodyHandler;
  */
 public class OrderService extends BaseVerticle {
 
+	private static final Logger log = LoggerFactory.getLogger(OrderService.class);
+
+	// event bus address prefix on which the details of every newly created limit order are published, by instrument (see 
+	// limitOrderCreated)
+	public static final String LIMIT_ORDER_CREATED = "orders.limit.created";
+
+	// event bus address prefix on which the details (a json array) of every batch of newly created limit orders are published, by 
+	// instrument (see limitOrdersCreated)
+	public static final String LIMIT_ORDERS_CREATED = "orders.limit.created.batch";
+
+	// data access
+	private DB db;
+
+	// write-ahead journal of order entry, null if not configured (see OrderJournal)
+	private OrderJournal journal;
+
+	// account balances for the pre-trade balance check, null if disabled (see AccountState)
+	private AccountState accountState;
+
+	// one page of an account's order history, the orders after a given id
+	private static final String ACCOUNT_ORDERS_QUERY = "SELECT * FROM fetch_account_orders(?::BIGINT,?::BIGINT,?::INT)";
+
+	// maximum number of orders in a batch
+	private int maxBatchSize;
+
+	// default and maximum number of orders returned by one order history request
+	private int defaultHistoryLimit;
+	private int maxHistoryLimit;
+
+	// number of orders fetched from the DB at a time while streaming order history
+	private int historyFetchSize;
+
+	/**
+	 * Get the event bus address on which the details of every newly created limit order of an instrument are published
+	 * 
+	 * @param instrument		the instrument, ie the ccy of the trading account
+	 * @return					the address
+	 */
+	public static String limitOrderCreated(String instrument) {
+		return LIMIT_ORDER_CREATED + "." + instrument;
+	}
+
+	/**
+	 * Get the event bus address on which the details (a json array) of every batch of newly created limit orders of an instrument are 
+	 * published
+	 * 
+	 * @param instrument		the instrument, ie the ccy of the trading account
+	 * @return					the address
+	 */
+	public static String limitOrdersCreated(String instrument) {
+		return LIMIT_ORDERS_CREATED + "." + instrument;
+	}
+
+	/**
+	 * Hand newly created limit orders to the order books of their instruments, one batch per instrument
+	 * 
+	 * @param vertx				the Vertx object
+	 * @param orders			the Order Details
+	 */
+	static void publishLimitOrdersCreated(Vertx vertx, List<JsonObject> orders) {
+
+		Map<String, JsonArray> byInstrument = new HashMap<>();
+		for (JsonObject order : orders) {
+			byInstrument.computeIfAbsent(order.getString("ccy"), instrument -> new JsonArray()).add(order);
+		}
+
+		byInstrument.forEach((instrument, instrumentOrders) -> vertx.eventBus().publish(limitOrdersCreated(instrument), instrumentOrders));
+	}
+
 	/**
 	 * Service endpoint - create a limit order
 	 * 
 	 * Params : 
 	 * 
 	 * 	account_id - the id of the account
-	 * 	price_limit - the limit price
+	 * 	price_limit - the limit price, rounded half up to 9 decimal places as the DB rounds it
 	 * 
-	 * @param routingContext	the Vertx routing context
+	 * @param request			the request
+	 * @param handler			a handler called with the Result
 	 * 
 	 * TODO : Add parameter validation
 	 * TODO : Implement top level try catch exception handling for any non-sql exceptions
 	 */
-	private void createLimitOrder(RoutingContext routingContext) {
+	private void createLimitOrder(ServiceRequest request, Handler<Result> handler) {
 
-        System.out.println( "OrderService - createLimitOrder called..." );
+		log.debug("createLimitOrder request_id={}", request.requestId());
 
         // get params
-		final long account_id = new Long(routingContext.request().getParam("account_id"));
-		final BigDecimal price_limit = new BigDecimal(routingContext.request().getParam("price_limit"));
+		final long account_id = Long.parseLong(request.getParam("account_id"));
+		final Long priceLimit = LimitOrderBatch.parsePrice(request.getParam("price_limit"));
+		if (priceLimit == null) {
+			handler.handle(new Result(false, "price_limit missing or invalid", null));
+			return;
+		}
+		final long price_limit = priceLimit;
+
+		if (accountState == null) {
+			createLimitOrder(account_id, price_limit, handler);
+			return;
+		}
+
+		// reserve the order's funds first, and release them if it cannot be created
+		accountState.reserve(account_id, price_limit, reserved -> {
+
+			if (!reserved.isOk()) {
+				handler.handle(reserved);
+				return;
+			}
+
+			createLimitOrder(account_id, price_limit, result -> {
+				if (!result.isOk()) {
+					accountState.release(account_id, price_limit);
+				}
+				handler.handle(result);
+			});
+		});
+	}
+
+	/**
+	 * Create a limit order, in the journal if configured, otherwise in the DB
+	 * 
+	 * @param account_id		the id of the account
+	 * @param price_limit		the limit price, scaled (see FixedPoint)
+	 * @param handler			a handler called with the Result
+	 */
+	private void createLimitOrder(long account_id, long price_limit, Handler<Result> handler) {
+
+		// acknowledged once journaled, and handed to the order book once in the DB
+		if (journal != null && journal.submit(account_id, price_limit, handler)) {
+			return;
+		}
 
         // define sql
-		String query = "SELECT * FROM create_limit_order(?,?)";
+		String query = "SELECT * FROM create_limit_order(?::BIGINT,?)";
 		
 		// set params
-		JsonArray params = new JsonArray().add( Long.toString(account_id)).add(price_limit.toString());
+		JsonArray params = DB.params(account_id, FixedPoint.toBigDecimal(price_limit, FixedPoint.SCALE));
 
 		// execute and return single row representing the Order Details
-		DB.execAndReturnRow(query, params, vertx, result -> {
+		db.execAndReturnRow(query, params, result -> {
+
+			// hand the new order to the order book of its instrument
+			if (result.isOk() && result.data != null) {
+				vertx.eventBus().publish(limitOrderCreated(((JsonObject) result.data).getString("ccy")), result.data);
+			}
 
 	        // create the response
-			setResponse(routingContext, result);
+			handler.handle(result);
+
+		});
+	}
+
+	/**
+	 * Service endpoint - create a batch of limit orders with one DB statement. Either all orders are created or none.
+	 * 
+	 * Body : 
+	 * 
+	 * 	a json array of orders, or NDJSON with one order per line, each order having an account_id and a price_limit (see LimitOrderBatch)
+	 * 
+	 * Response : 
+	 * 
+	 * 	the Order Details of all created orders, in the order submitted
+	 * 
+	 * @param request			the request
+	 * @param handler			a handler called with the Result
+	 */
+	private void createLimitOrders(ServiceRequest request, Handler<Result> handler) {
+
+		log.debug("createLimitOrders request_id={}", request.requestId());
+
+		// parse and validate
+		LimitOrderBatch batch;
+		try {
+			batch = LimitOrderBatch.parse(request.getBody(), maxBatchSize);
+		} catch (IllegalArgumentException e) {
+			handler.handle(new Result(e));
+			return;
+		}
+
+		if (accountState == null) {
+			createLimitOrders(batch, handler);
+			return;
+		}
+
+		// reserve the funds of all orders first, and release them if the orders cannot be created
+		long[] accountIds = new long[batch.size()];
+		long[] limitPrices = new long[batch.size()];
+		for (int i = 0; i < batch.size(); i++) {
+			accountIds[i] = batch.accountId(i);
+			limitPrices[i] = batch.limitPrice(i);
+		}
+
+		accountState.reserve(accountIds, limitPrices, reserved -> {
+
+			if (!reserved.isOk()) {
+				handler.handle(reserved);
+				return;
+			}
+
+			createLimitOrders(batch, result -> {
+				if (!result.isOk()) {
+					accountState.release(accountIds, limitPrices);
+				}
+				handler.handle(result);
+			});
+		});
+	}
+
+	/**
+	 * Create a batch of limit orders in the DB
+	 * 
+	 * @param batch				the orders
+	 * @param handler			a handler called with the Result
+	 */
+	@SuppressWarnings("unchecked")
+	private void createLimitOrders(LimitOrderBatch batch, Handler<Result> handler) {
+
+		// define sql
+		String query = "SELECT * FROM create_limit_orders(?::BIGINT[],?::NUMERIC[])";
+
+		// set params - each column as a single postgres array literal
+		JsonArray params = DB.params(batch.accountIdsLiteral(), batch.limitPricesLiteral());
+
+		// execute and return rows representing the Order Details
+		db.execAndReturnRows(query, params, result -> {
+
+			// hand the new orders to the order books of their instruments
+			if (result.isOk()) {
+				publishLimitOrdersCreated(vertx, (List<JsonObject>) result.data);
+			}
+
+			// create the response
+			handler.handle(result);
 
 		});
 	}
 
+	/**
+	 * Service endpoint - fetch the order history of an account, in id order, paged on the order id (keyset pagination) so that any page 
+	 * is an index range scan, however deep into the history.
+	 * 
+	 * The response is written chunked while the orders are fetched from the DB historyFetchSize at a time, each fetch continuing after 
+	 * the last order written, and only when the previous chunk has been taken by the client. Memory use is therefore bounded by the 
+	 * fetch size rather than the limit, and the client can page through millions of orders.
+	 * 
+	 * Params : 
+	 * 
+	 * 	account_id - the id of the account
+	 * 	after - return the orders after this order id, default 0 (the first page)
+	 * 	limit - the maximum number of orders returned, default defaultHistoryLimit, at most maxHistoryLimit
+	 * 
+	 * Response : 
+	 * 
+	 * 	a Result with the Order Details as data, and "next" the id to pass as after for the next page, or null if there are no more 
+	 * 	orders. Never pretty printed.
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 */
+	private void fetchAccountOrders(RoutingContext routingContext) {
+
+		log.debug("fetchAccountOrders request_id={}", requestId(routingContext));
+
+		// get and validate params
+		final long account_id;
+		final long after;
+		final int limit;
+		try {
+			account_id = Long.parseLong(routingContext.request().getParam("account_id"));
+			after = Long.parseLong(getParam(routingContext, "after", "0"));
+			limit = Integer.parseInt(getParam(routingContext, "limit", Integer.toString(defaultHistoryLimit)));
+		} catch (NumberFormatException e) {
+			setResponse(routingContext, new Result(false, "Invalid parameter : " + e.getMessage(), null));
+			return;
+		}
+
+		if (limit < 1 || limit > maxHistoryLimit) {
+			setResponse(routingContext, new Result(false, "limit must be between 1 and " + maxHistoryLimit, null));
+			return;
+		}
+
+		new OrderHistoryWriter(routingContext, account_id, after, limit).fetch();
+	}
+
+	private static String getParam(RoutingContext routingContext, String name, String defaultValue) {
+
+		String value = routingContext.request().getParam(name);
+		return value != null ? value : defaultValue;
+	}
+
 	/**
 	 * Service endpoint - fetch order details
 	 * 
@@ -60,29 +326,39 @@ public class OrderService extends BaseVerticle {
 	 * 
 	 * 	order_id - the id of the order
 	 * 
-	 * @param routingContext	the Vertx routing context
+	 * @param request			the request
+	 * @param handler			a handler called with the Result
 	 * 
 	 * TODO : Add parameter validation
 	 * TODO : Implement top level try catch exception handling for any non-sql exceptions
 	 */
-	private void fetchOrderDetails(RoutingContext routingContext) {			
+	private void fetchOrderDetails(ServiceRequest request, Handler<Result> handler) {			
 		
-        System.out.println( "OrderService - fetchOrderDetails called..." );
+		log.debug("fetchOrderDetails request_id={}", request.requestId());
 
         // get params
-		final long order_id = new Long(routingContext.request().getParam("order_id"));
+		final long order_id = Long.parseLong(request.getParam("order_id"));
+
+		// a journaled order may not be in the DB yet
+		if (journal != null) {
+			JsonObject pending = journal.pendingOrder(order_id);
+			if (pending != null) {
+				handler.handle(new Result(pending));
+				return;
+			}
+		}
 
         // define sql
-		String query = "SELECT * FROM fetch_order_details(?)";
+		String query = "SELECT * FROM fetch_order_details(?::BIGINT)";
 		
 		// set params
-		JsonArray params = new JsonArray().add(Long.toString(order_id));
+		JsonArray params = DB.params(order_id);
 
 		// execute and return single row representing the Account Details
-		DB.execAndReturnRow(query, params, vertx, result -> {
+		db.execAndReturnRow(query, params, result -> {
 
 	        // create the response
-			setResponse(routingContext, result);
+			handler.handle(result);
 
 		});				
 
@@ -99,18 +375,178 @@ public class OrderService extends BaseVerticle {
 	@Override
 	public void start(Future<Void> fut) { 
 
+		db = new DB(vertx);
+
+		maxBatchSize = config().getInteger("orders.maxBatchSize", 10000);
+		defaultHistoryLimit = config().getInteger("orders.defaultHistoryLimit", 100);
+		maxHistoryLimit = config().getInteger("orders.maxHistoryLimit", 1000000);
+		historyFetchSize = config().getInteger("orders.historyFetchSize", 500);
+
+		try {
+			journal = OrderJournal.open(vertx);
+		} catch (IOException ex) {
+			log.error("unable to open the order journal", ex);
+			fut.fail(ex);
+			return;
+		}
+
+		// take orders once the orders of the last run are all in the DB, so the account balances loaded from it hold their funds
+		Handler<Void> ready = v -> {
+
+			// config.properties, as it must match how ExecuteLimitOrders is run
+			if (Boolean.parseBoolean(Config.getProperties().getProperty("orders.balanceCheck", "true"))) {
+				accountState = AccountState.open(vertx);
+			}
+
+			serve(fut);
+		};
+
+		if (journal != null) {
+			journal.whenReplayed(ready);
+		} else {
+			ready.handle(null);
+		}
+	}
+
+	/**
+	 * Define the routes and start the server
+	 * 
+	 * @param fut		the Vertx future object
+	 */
+	private void serve(Future<Void> fut) {
+
 		// Create a router object.
 		Router router = Router.router(vertx);
 
 		router.route().handler(BodyHandler.create());
 		
-		router.post("/limitorder/").handler(this::createLimitOrder);
-		router.get("/orderdetails/:order_id").handler(this::fetchOrderDetails); 	
+		route(router, HttpMethod.POST, "/limitorder/", this::createLimitOrder);
+		route(router, HttpMethod.POST, "/limitorders/batch", this::createLimitOrders);
+		route(router, HttpMethod.GET, "/orderdetails/:order_id", this::fetchOrderDetails);
+		// streamed, so served over HTTP only
+		router.get("/accounts/:account_id/orders").handler(this::fetchAccountOrders);
 		
+		// serve the same endpoints to the gateway over the event bus
+		serveLocal("orders");
+
 		// start server
 		startServer(fut, router, 8083);
 		
-        System.out.println( "OrderService - started" );
+		log.info("started");
 		
 	}
+
+	/**
+	 * Release the DB connection pool
+	 */
+	@Override
+	public void stop() {
+		db.close();
+	}
+
+	/**
+	 * <p>
+	 * Streams one order history response, fetching a page of orders, writing it and only then fetching the next
+	 * </p>
+	 */
+	private final class OrderHistoryWriter {
+
+		private final RoutingContext routingContext;
+		private final HttpServerResponse response;
+		private final long account_id;
+
+		// the id of the last order written, and the number of orders still to write
+		private long lastId;
+		private int remaining;
+
+		// has the response head been written?
+		private boolean started;
+
+		// has the client gone away?
+		private boolean closed;
+
+		OrderHistoryWriter(RoutingContext routingContext, long account_id, long after, int limit) {
+
+			this.routingContext = routingContext;
+			this.response = routingContext.response();
+			this.account_id = account_id;
+			this.lastId = after;
+			this.remaining = limit;
+
+			response.closeHandler(v -> closed = true);
+		}
+
+		/**
+		 * Fetch the next page of orders
+		 */
+		void fetch() {
+
+			final int fetchSize = Math.min(remaining, historyFetchSize);
+
+			db.execSQL(ACCOUNT_ORDERS_QUERY, DB.params(account_id, lastId, fetchSize), result -> write(result, fetchSize), Result::createForResultSet);
+		}
+
+		private void write(Result result, int fetchSize) {
+
+			if (closed) {
+				return;
+			}
+
+			if (!result.isOk()) {
+
+				if (!started) {
+					setResponse(routingContext, result);
+				} else {
+					// too late for an error status - drop the connection so the client sees a truncated response rather than a short one
+					log.warn("order history failed request_id={} account_id={} after={} message={}", requestId(routingContext), account_id, lastId, result.message);
+					recordRequest(routingContext, 500);
+					routingContext.request().connection().close();
+				}
+				return;
+			}
+
+			ResultSet page = (ResultSet) result.data;
+			int rows = page.getNumRows();
+
+			Buffer chunk = Buffer.buffer(64 + rows * 384);
+
+			if (!started) {
+				response.setChunked(true)
+						.setStatusCode(200)
+						.putHeader("content-type", "application/json; charset=utf-8");
+				chunk.appendString("{\"ok\":true,\"message\":null,\"data\":[");
+			}
+
+			Result.appendRows(chunk, page, !started);
+			started = true;
+
+			if (rows > 0) {
+				lastId = page.getResults().get(rows - 1).getLong(0);
+				remaining -= rows;
+			}
+
+			if (rows < fetchSize || remaining == 0) {
+
+				// a short page is the end of the history, otherwise there may be more after the last order
+				String next = rows < fetchSize ? "null" : Long.toString(lastId);
+				chunk.appendString("],\"next\":" + next + "}");
+
+				recordRequest(routingContext, 200);
+				response.end(chunk);
+				return;
+			}
+
+			response.write(chunk);
+
+			// fetch the next page once the client has taken this one
+			if (response.writeQueueFull()) {
+				response.drainHandler(v -> {
+					response.drainHandler(null);
+					fetch();
+				});
+			} else {
+				fetch();
+			}
+		}
+	}
 }
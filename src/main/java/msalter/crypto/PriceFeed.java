@@ -0,0 +1,245 @@
+package msalter.crypto;
+
+import java.math.RoundingMode;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpClientRequest;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.WebSocket;
+import io.vertx.core.json.JsonObject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>
+ * Continuous price feed from the local price service. Subscribes to the service's WebSocket price stream and falls back to periodically
+ * polling the plain GET endpoint whenever the stream is not connected (eg the service does not offer one). Every price received is 
+ * passed to the tick handler.
+ * </p>
+ * <p>
+ * Both sources are expected to deliver a json object of the form {"price": 1234.56}. Prices are passed on as longs scaled to 9 decimal 
+ * places (see FixedPoint), any further decimal places being dropped.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class PriceFeed {
+
+	private static final Logger log = LoggerFactory.getLogger(PriceFeed.class);
+
+	private final Vertx vertx;
+	private final String host;
+	private final int port;
+	private final String path;
+	private final String streamPath;
+	private final long pollInterval;
+	private final long pollTimeout;
+	private final long reconnectInterval;
+	private final Handler<Long> tickHandler;
+
+	// one long-lived client for both the stream and the polls
+	private HttpClient client;
+
+	// the current stream, null when not connected
+	private WebSocket stream;
+
+	// is a stream connection attempt in progress?
+	private boolean connecting = false;
+
+	// is a poll in progress?
+	private boolean polling = false;
+
+	// number of polls started
+	private long polls = 0;
+
+	// time of the last stream connection attempt
+	private long lastConnectAttempt = 0;
+
+	// number of stream connection attempts
+	private long connects = 0;
+
+	private long timerId = -1;
+
+	/**
+	 * Create a price feed
+	 * 
+	 * @param vertx     		the Vertx object
+	 * @param config			the feed configuration (price.host, price.port, price.path, price.streamPath, price.pollInterval, price.pollTimeout and price.reconnectInterval, all optional)
+	 * @param tickHandler		a handler called with every price received, scaled
+	 */
+	public PriceFeed(Vertx vertx, JsonObject config, Handler<Long> tickHandler) {
+		this.vertx = vertx;
+		this.host = config.getString("price.host", "127.0.0.1");
+		this.port = config.getInteger("price.port", 5000);
+		this.path = config.getString("price.path", "/btc-price");
+		this.streamPath = config.getString("price.streamPath", "/btc-price/stream");
+		this.pollInterval = config.getLong("price.pollInterval", 1000L);
+		this.pollTimeout = config.getLong("price.pollTimeout", 5000L);
+		this.reconnectInterval = config.getLong("price.reconnectInterval", 10000L);
+		this.tickHandler = tickHandler;
+	}
+
+	/**
+	 * Start the feed - connect the stream and start the poll fallback timer
+	 */
+	public void start() {
+
+		client = vertx.createHttpClient(new HttpClientOptions()
+				.setDefaultHost(host)
+				.setDefaultPort(port)
+				.setKeepAlive(true));
+
+		connect();
+
+		timerId = vertx.setPeriodic(pollInterval, id -> {
+
+			if (stream != null || connecting) {
+				return;
+			}
+
+			// not streaming - poll and periodically retry the stream
+			poll();
+
+			if (System.currentTimeMillis() - lastConnectAttempt >= reconnectInterval) {
+				connect();
+			}
+		});
+	}
+
+	/**
+	 * Stop the feed
+	 */
+	public void stop() {
+
+		if (timerId != -1) {
+			vertx.cancelTimer(timerId);
+			timerId = -1;
+		}
+		if (stream != null) {
+			stream.close();
+			stream = null;
+		}
+		if (client != null) {
+			client.close();
+			client = null;
+		}
+	}
+
+	/**
+	 * Is the feed currently receiving prices over the stream?
+	 * 
+	 * @return		true if streaming, false if polling
+	 */
+	public boolean isStreaming() {
+		return stream != null;
+	}
+
+	/**
+	 * Connect to the price stream
+	 */
+	@SuppressWarnings("deprecation")
+	private void connect() {
+
+		connecting = true;
+		lastConnectAttempt = System.currentTimeMillis();
+
+		client.websocket(port, host, streamPath, ws -> {
+
+			connecting = false;
+			stream = ws;
+
+			log.info("streaming from {}", streamPath);
+
+			ws.textMessageHandler(text -> tick(new JsonObject(text)));
+			ws.exceptionHandler(err -> ws.close());
+			ws.closeHandler(v -> {
+				log.info("stream closed, polling {}", path);
+				stream = null;
+			});
+
+		}, err -> {
+
+			// no stream available - the timer polls until the next attempt
+			connecting = false;
+
+		});
+
+		// a handshake which never completes must not stop the polls
+		long attempt = ++connects;
+		vertx.setTimer(pollTimeout, id -> {
+			if (connecting && connects == attempt) {
+				log.warn("stream connection to {} timed out", streamPath);
+				connecting = false;
+			}
+		});
+	}
+
+	/**
+	 * Poll the current price
+	 */
+	@SuppressWarnings("deprecation")
+	private void poll() {
+
+		if (polling) {
+			return;
+		}
+		polling = true;
+
+		HttpClientRequest toReq = client.request(HttpMethod.GET, path, response -> {
+			response.bodyHandler(body -> {
+				polling = false;
+				if (response.statusCode() == 200) {
+					tick(body.toJsonObject());
+				}
+			});
+			response.exceptionHandler(err -> polling = false);
+		});
+		toReq.exceptionHandler(err -> {
+			// failed, or no response within the timeout - the next tick polls again
+			log.debug("poll of {} failed : {}", path, err.getMessage());
+			polling = false;
+		});
+		toReq.setTimeout(pollTimeout);
+
+		// the request timeout ends with the response headers - the body must arrive within the timeout too
+		long poll = ++polls;
+		vertx.setTimer(pollTimeout, id -> {
+			if (polling && polls == poll) {
+				log.warn("poll of {} timed out", path);
+				toReq.reset();
+				polling = false;
+			}
+		});
+
+		// send request
+		toReq.end();
+	}
+
+	/**
+	 * Pass a received price to the tick handler
+	 * 
+	 * @param data		the json price object
+	 */
+	private void tick(JsonObject data) {
+
+		Double price = data.getDouble("price");
+
+		if (price == null) {
+			return;
+		}
+
+		long units;
+		try {
+			units = FixedPoint.fromDouble(price, FixedPoint.SCALE, RoundingMode.DOWN);
+		} catch (NumberFormatException | ArithmeticException e) {
+			log.warn("invalid price {}", price);
+			return;
+		}
+
+		tickHandler.handle(units);
+	}
+}
@@ -1,15 +1,22 @@
 package msalter.crypto;
 
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.sql.ResultSet;
 import io.vertx.ext.sql.SQLConnection;
 import scala.collection.JavaConverters;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.github.mauricio.async.db.postgresql.exceptions.GenericDatabaseException;
 import com.github.mauricio.async.db.postgresql.messages.backend.ErrorMessage;
 
@@ -33,6 +40,9 @@ public class Result {
 	// the data - null in event of failure
 	public Object data;
 
+	// the SQLSTATE of an error raised by the DB itself, eg 23505, otherwise null - not part of the json
+	public String sqlState;
+
 	public Result(Boolean ok, String message, Object data) {
 		this.ok = ok;
 		this.message = message;
@@ -66,6 +76,7 @@ public class Result {
 			ok = false;
 			data = null;
 			this.message = Result.getErrorMessage(ar);
+			this.sqlState = Result.getSqlState(ar);
 
 		}		  
 
@@ -91,7 +102,33 @@ public class Result {
 		} else {
 			
 			// Failure!
-			result = new Result(false, Result.getErrorMessage(ar), null);
+			result = Result.failed(ar);
+			
+		}	
+		
+		return result;
+	}
+	
+	/**
+	 * Create a Result for an operation whose rows are written out as they are (see appendRows), keeping the driver's ResultSet as the 
+	 * data rather than building a JsonObject per row
+	 * 
+	 * @param ar     the Vertx AsyncResult object
+	 * @return		a Result object wrapping the outcome 
+	 */
+	public static Result createForResultSet(AsyncResult<ResultSet> ar) {
+		
+		Result result;
+		
+		if (ar.succeeded()) {
+			
+			// Success!
+			result = new Result(true, null, ar.result());
+
+		} else {
+			
+			// Failure!
+			result = Result.failed(ar);
 			
 		}	
 		
@@ -125,7 +162,7 @@ public class Result {
 		} else {
 			
 			// Failure!
-			result = new Result(false, Result.getErrorMessage(ar), null);
+			result = Result.failed(ar);
 			
 		}	
 		
@@ -166,7 +203,7 @@ public class Result {
 		} else {
 			
 			// Failure!
-			result = new Result(false, Result.getErrorMessage(ar), null);
+			result = Result.failed(ar);
 			
 		}	
 		
@@ -192,7 +229,7 @@ public class Result {
 		} else {
 			
 			// Failure!
-			result = new Result(false, Result.getErrorMessage(ar), null);
+			result = Result.failed(ar);
 			
 		}	
 		
@@ -200,6 +237,34 @@ public class Result {
 		
 	}
 
+	/**
+	 * Create a Result for a failed operation
+	 * 
+	 * @param ar     the Vertx AsyncResult object
+	 * @return		the Result, with the error message and SQLSTATE
+	 */
+	private static Result failed(AsyncResult ar) {
+
+		Result result = new Result(false, Result.getErrorMessage(ar), null);
+		result.sqlState = Result.getSqlState(ar);
+		return result;
+	}
+
+	/**
+	 * Get the SQLSTATE of an error raised by the DB itself
+	 * 
+	 * @param ar     the Vertx AsyncResult object
+	 * @return		the SQLSTATE, or null if the error was not raised by the DB, eg a pool or connection failure or a timeout
+	 */
+	private static String getSqlState(AsyncResult ar) {
+
+		if (!(ar.cause() instanceof GenericDatabaseException)) {
+			return null;
+		}
+
+		return JavaConverters.mapAsJavaMapConverter(((GenericDatabaseException) ar.cause()).errorMessage().fields()).asJava().get('C');
+	}
+
 	/**
 	 * Get the human-readable error message from a Vertx result
 	 * 
@@ -210,6 +275,11 @@ public class Result {
 		
 		String message;
 		
+		if (!(ar.cause() instanceof GenericDatabaseException)) {
+			// not raised by the DB itself, eg pool or connection failure
+			return ar.cause().getMessage();
+		}
+
 		// convert scala to java map
 		Map<Object, String> fields = JavaConverters.mapAsJavaMapConverter(((GenericDatabaseException) ar.cause()).errorMessage().fields()).asJava();
 
@@ -237,6 +307,124 @@ public class Result {
 				.put("data", data);
 	}
 	
+	/**
+	 * Write as json straight into a buffer, without building an intermediate JsonObject or String. The output is the same as 
+	 * toJson().encode(), or toJson().encodePrettily() if pretty.
+	 * 
+	 * @param pretty	pretty print?
+	 * @return			the json
+	 */
+	public Buffer toBuffer(boolean pretty) {
+
+		Buffer buffer = Buffer.buffer(data instanceof List ? 64 + ((List<?>) data).size() * 384 : 512);
+
+		try (JsonGenerator generator = Json.mapper.getFactory().createGenerator(new BufferOutputStream(buffer), JsonEncoding.UTF8)) {
+
+			if (pretty) {
+				generator.useDefaultPrettyPrinter();
+			}
+
+			generator.writeStartObject();
+			generator.writeFieldName("ok");
+			writeValue(generator, ok);
+			generator.writeFieldName("message");
+			writeValue(generator, message);
+			generator.writeFieldName("data");
+			writeValue(generator, data);
+			generator.writeEndObject();
+
+		} catch (IOException e) {
+			// only thrown by the output stream, which does not throw
+			throw new UncheckedIOException(e);
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Append the rows of a result set to a buffer as comma separated json objects, the same as getRows() would encode to but written 
+	 * straight from the driver's row arrays. Used to stream a json array of rows page by page.
+	 * 
+	 * @param buffer		the buffer to append to
+	 * @param resultSet		the rows
+	 * @param first			are these the first elements of the array, ie not preceded by a comma?
+	 */
+	public static void appendRows(Buffer buffer, ResultSet resultSet, boolean first) {
+
+		List<String> columns = resultSet.getColumnNames();
+
+		try (JsonGenerator generator = Json.mapper.getFactory().createGenerator(new BufferOutputStream(buffer), JsonEncoding.UTF8)) {
+
+			// the rows are written as a sequence of root values, separated by commas rather than spaces
+			generator.setRootValueSeparator(null);
+
+			for (JsonArray row : resultSet.getResults()) {
+
+				if (!first) {
+					generator.writeRaw(',');
+				}
+				first = false;
+
+				generator.writeStartObject();
+				for (int i = 0; i < columns.size(); i++) {
+					generator.writeFieldName(columns.get(i));
+					writeValue(generator, row.getValue(i));
+				}
+				generator.writeEndObject();
+			}
+
+		} catch (IOException e) {
+			// only thrown by the output stream, which does not throw
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Write a json value - the common row value types directly, anything else as Vert.x would encode it
+	 */
+	private static void writeValue(JsonGenerator generator, Object value) throws IOException {
+
+		if (value == null) {
+			generator.writeNull();
+		} else if (value instanceof String) {
+			generator.writeString((String) value);
+		} else if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			generator.writeNumber(((Number) value).longValue());
+		} else if (value instanceof Double) {
+			generator.writeNumber((Double) value);
+		} else if (value instanceof Boolean) {
+			generator.writeBoolean((Boolean) value);
+		} else if (value instanceof JsonObject) {
+			writeObject(generator, ((JsonObject) value).getMap());
+		} else if (value instanceof JsonArray) {
+			writeArray(generator, ((JsonArray) value).getList());
+		} else if (value instanceof List) {
+			writeArray(generator, (List<?>) value);
+		} else {
+			// floats, instants, binary, raw maps...
+			Json.mapper.writeValue(generator, value);
+		}
+	}
+
+	private static void writeObject(JsonGenerator generator, Map<String, Object> map) throws IOException {
+
+		generator.writeStartObject();
+		for (Map.Entry<String, Object> entry : map.entrySet()) {
+			generator.writeFieldName(entry.getKey());
+			writeValue(generator, entry.getValue());
+		}
+		generator.writeEndObject();
+	}
+
+	private static void writeArray(JsonGenerator generator, List<?> list) throws IOException {
+
+		generator.writeStartArray();
+		for (Object element : list) {
+			writeValue(generator, element);
+		}
+		generator.writeEndArray();
+	}
+
 	/**
 	 * Was the operation successful?
 	 * 
@@ -246,4 +434,28 @@ public class Result {
 		return ok;
 	}
 
+	/**
+	 * <p>
+	 * Output stream appending to a buffer
+	 * </p>
+	 */
+	private static final class BufferOutputStream extends OutputStream {
+
+		private final Buffer buffer;
+
+		BufferOutputStream(Buffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void write(int b) {
+			buffer.appendByte((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			buffer.appendBytes(bytes, offset, length);
+		}
+	}
+
 }
@@ -0,0 +1,107 @@
+package msalter.crypto;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Prefix routing table - a trie over route path prefixes resolving a request path to the target of its longest matching prefix. Built 
+ * once at startup, a lookup costs one step per character of the path and does not allocate.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ * 
+ * @param <T>	the route target type
+ */
+public class RouteTable<T> {
+
+	private final Node<T> root = new Node<>();
+
+	/**
+	 * Add a route
+	 * 
+	 * @param prefix	the path prefix
+	 * @param target	the target of all paths starting with the prefix
+	 */
+	public void add(String prefix, T target) {
+
+		Node<T> node = root;
+		for (int i = 0; i < prefix.length(); i++) {
+			node = node.childOrCreate(prefix.charAt(i));
+		}
+		node.target = target;
+	}
+
+	/**
+	 * Resolve a path to the target of its longest matching prefix
+	 * 
+	 * @param path		the request path (any query string is ignored)
+	 * @return			the target, or null if no route matches
+	 */
+	public T resolve(String path) {
+
+		Node<T> node = root;
+		T target = root.target;
+
+		for (int i = 0; i < path.length(); i++) {
+
+			char c = path.charAt(i);
+			if (c == '?') {
+				break;
+			}
+
+			node = node.child(c);
+			if (node == null) {
+				break;
+			}
+			if (node.target != null) {
+				target = node.target;
+			}
+		}
+		return target;
+	}
+
+	/**
+	 * <p>
+	 * Trie node, children held in parallel arrays sorted by character
+	 * </p>
+	 */
+	private static final class Node<T> {
+
+		private char[] keys = new char[0];
+		private Node<T>[] children = newArray(0);
+		private T target;
+
+		Node<T> child(char c) {
+			int index = Arrays.binarySearch(keys, c);
+			return index < 0 ? null : children[index];
+		}
+
+		Node<T> childOrCreate(char c) {
+
+			int index = Arrays.binarySearch(keys, c);
+			if (index >= 0) {
+				return children[index];
+			}
+
+			index = -index - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node<T>[] newChildren = newArray(keys.length + 1);
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+			System.arraycopy(children, index, newChildren, index + 1, keys.length - index);
+
+			Node<T> node = new Node<>();
+			newKeys[index] = c;
+			newChildren[index] = node;
+			keys = newKeys;
+			children = newChildren;
+			return node;
+		}
+
+		@SuppressWarnings("unchecked")
+		private static <T> Node<T>[] newArray(int size) {
+			return (Node<T>[]) new Node[size];
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package msalter.crypto;
+
+import io.vertx.core.Handler;
+
+/**
+ * <p>
+ * Functional interface of a service endpoint, independent of how the request arrived - over HTTP, or from the gateway over the event 
+ * bus (see LocalCall)
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public interface ServiceEndpoint {
+
+	/**
+	 * Handle a request
+	 * 
+	 * @param request	the request
+	 * @param handler	a handler called with the Result to respond with
+	 */
+	public void handle(ServiceRequest request, Handler<Result> handler);
+}
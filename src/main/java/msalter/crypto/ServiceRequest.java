@@ -0,0 +1,121 @@
+package msalter.crypto;
+
+import java.util.List;
+import java.util.Map;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.ext.web.RoutingContext;
+
+/**
+ * <p>
+ * A request to a service endpoint - its method, parameters and body, whether it arrived over HTTP or over the event bus. The parameters 
+ * are the path, query and form parameters, as HttpServerRequest.getParam would find them.
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class ServiceRequest {
+
+	private final HttpMethod method;
+	private final MultiMap params;
+	private final Buffer body;
+	private final String requestId;
+
+	public ServiceRequest(HttpMethod method, MultiMap params, Buffer body, String requestId) {
+		this.method = method;
+		this.params = params;
+		this.body = body;
+		this.requestId = requestId;
+	}
+
+	/**
+	 * Create from an HTTP request, whose body was read by a BodyHandler
+	 * 
+	 * @param routingContext	the Vertx routing context
+	 * @return					the request
+	 */
+	public static ServiceRequest fromRoutingContext(RoutingContext routingContext) {
+
+		String requestId = routingContext.request().getHeader(BaseVerticle.REQUEST_ID);
+
+		return new ServiceRequest(routingContext.request().method(), routingContext.request().params(), routingContext.getBody(), 
+				requestId != null ? requestId : "-");
+	}
+
+	/**
+	 * Create from a request sent by the gateway over the event bus
+	 * 
+	 * @param call			the request
+	 * @param pathParams	the parameters taken from the path by the matching route
+	 * @return				the request
+	 */
+	public static ServiceRequest fromLocalCall(LocalCall.Request call, Map<String, String> pathParams) {
+
+		MultiMap params = MultiMap.caseInsensitiveMultiMap();
+		params.addAll(pathParams);
+
+		addAll(params, new QueryStringDecoder(call.uri).parameters());
+
+		if (call.contentType != null && call.contentType.startsWith("application/x-www-form-urlencoded") && call.body.length() > 0) {
+			addAll(params, new QueryStringDecoder(call.body.toString(), false).parameters());
+		}
+
+		return new ServiceRequest(HttpMethod.valueOf(call.method), params, call.body, call.requestId != null ? call.requestId : "-");
+	}
+
+	private static void addAll(MultiMap params, Map<String, List<String>> decoded) {
+
+		for (Map.Entry<String, List<String>> param : decoded.entrySet()) {
+			params.add(param.getKey(), param.getValue());
+		}
+	}
+
+	/**
+	 * Get a parameter
+	 * 
+	 * @param name		the parameter name
+	 * @return			the first value, or null if not passed
+	 */
+	public String getParam(String name) {
+		return params.get(name);
+	}
+
+	/**
+	 * Get the body
+	 * 
+	 * @return			the body, empty if none was sent
+	 */
+	public Buffer getBody() {
+		return body != null ? body : Buffer.buffer();
+	}
+
+	/**
+	 * Get the HTTP method
+	 * 
+	 * @return			the method
+	 */
+	public HttpMethod method() {
+		return method;
+	}
+
+	/**
+	 * Get the correlation id
+	 * 
+	 * @return			the id, or "-" if the request did not come through the gateway
+	 */
+	public String requestId() {
+		return requestId;
+	}
+
+	/**
+	 * Should the response be pretty printed?
+	 * 
+	 * @return			true if the request has the query parameter pretty=true
+	 */
+	public boolean isPretty() {
+		return "true".equals(params.get("pretty"));
+	}
+}
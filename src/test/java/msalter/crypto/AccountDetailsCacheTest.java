@@ -0,0 +1,59 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Account details cache tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class AccountDetailsCacheTest {
+
+	@Test
+	public void testLeastRecentlyUsedIsEvicted() {
+
+		AccountDetailsCache cache = new AccountDetailsCache(2, 60000);
+		cache.put(1, new JsonObject().put("id", 1), cache.version());
+		cache.put(2, new JsonObject().put("id", 2), cache.version());
+
+		// touch 1 so 2 is the eldest
+		assertEquals(Long.valueOf(1), cache.get(1).getLong("id"));
+		cache.put(3, new JsonObject().put("id", 3), cache.version());
+
+		assertNull(cache.get(2));
+		assertEquals(2, cache.size());
+		assertEquals(1L, (long) cache.getStats().getLong("evictions"));
+		assertEquals(1L, (long) cache.getStats().getLong("hits"));
+		assertEquals(1L, (long) cache.getStats().getLong("misses"));
+	}
+
+	@Test
+	public void testReadInFlightDuringInvalidationIsNotCached() {
+
+		AccountDetailsCache cache = new AccountDetailsCache(10, 60000);
+		cache.put(1, new JsonObject().put("balance", "1"), cache.version());
+
+		long readVersion = cache.version();
+		cache.invalidate(1);
+		cache.put(1, new JsonObject().put("balance", "1"), readVersion);
+
+		assertNull(cache.get(1));
+	}
+
+	@Test
+	public void testExpiredEntryIsMissed() {
+
+		AccountDetailsCache cache = new AccountDetailsCache(10, -1);
+		cache.put(1, new JsonObject(), cache.version());
+
+		assertNull(cache.get(1));
+		assertEquals(0, cache.size());
+	}
+}
@@ -0,0 +1,155 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.streams.WriteStream;
+
+/**
+ * <p>
+ * Account events fan-out tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class AccountEventsTest {
+
+	private static JsonArray executed(long orderId, long accountId, long settlementAccountId) {
+		return new JsonArray().add(new JsonObject().put("id", orderId).put("account_id", accountId).put("settlement_account_id", settlementAccountId));
+	}
+
+	private static String type(String event) {
+		return new JsonObject(event).getString("type");
+	}
+
+	@Test
+	public void testFanOutToTradingAndSettlementAccounts() {
+
+		AccountEvents events = new AccountEvents(10, AccountEvents.Overflow.CONFLATE);
+		Connection trading = new Connection();
+		Connection settlement = new Connection();
+		Connection other = new Connection();
+		events.subscribe(2, trading, trading.written::add);
+		events.subscribe(1, settlement, settlement.written::add);
+		events.subscribe(3, other, other.written::add);
+
+		events.publishExecuted(executed(7, 2, 1));
+
+		assertEquals(1, trading.written.size());
+		assertEquals(1, settlement.written.size());
+		assertEquals(0, other.written.size());
+		assertEquals(Long.valueOf(7), new JsonObject(trading.written.get(0)).getJsonObject("order").getLong("id"));
+	}
+
+	@Test
+	public void testDropOldest() {
+
+		AccountEvents events = new AccountEvents(2, AccountEvents.Overflow.DROP_OLDEST);
+		Connection connection = new Connection();
+		connection.full = true;
+		AccountEvents.Subscriber subscriber = events.subscribe(2, connection, connection.written::add);
+
+		for (long id = 1; id <= 5; id++) {
+			events.publishExecuted(executed(id, 2, 1));
+		}
+		assertEquals(2, subscriber.queued());
+
+		// 3 dropped, then the 2 latest
+		connection.drain();
+		assertEquals(3, connection.written.size());
+		assertEquals("dropped", type(connection.written.get(0)));
+		assertEquals(Integer.valueOf(3), new JsonObject(connection.written.get(0)).getInteger("count"));
+		assertEquals(Long.valueOf(4), new JsonObject(connection.written.get(1)).getJsonObject("order").getLong("id"));
+	}
+
+	@Test
+	public void testConflate() {
+
+		AccountEvents events = new AccountEvents(2, AccountEvents.Overflow.CONFLATE);
+		Connection connection = new Connection();
+		connection.full = true;
+		AccountEvents.Subscriber subscriber = events.subscribe(2, connection, connection.written::add);
+
+		for (long id = 1; id <= 3; id++) {
+			events.publishExecuted(executed(id, 2, 1));
+		}
+		events.publishExecuted(executed(4, 2, 1));
+
+		// a resync in place of the first 3, then the latest
+		connection.drain();
+		assertEquals(2, connection.written.size());
+		assertEquals("resync", type(connection.written.get(0)));
+		assertEquals("order.executed", type(connection.written.get(1)));
+		assertEquals(0, subscriber.queued());
+
+		events.unsubscribe(subscriber);
+		events.unsubscribe(subscriber);
+		assertEquals(0, events.size());
+	}
+
+	/**
+	 * <p>
+	 * A client connection whose write queue is full until drained
+	 * </p>
+	 */
+	private static final class Connection implements WriteStream<Object> {
+
+		final List<String> written = new ArrayList<>();
+		boolean full = false;
+		Handler<Void> drainHandler;
+
+		void drain() {
+			full = false;
+			if (drainHandler != null) {
+				drainHandler.handle(null);
+			}
+		}
+
+		@Override
+		public boolean writeQueueFull() {
+			return full;
+		}
+
+		@Override
+		public WriteStream<Object> drainHandler(Handler<Void> handler) {
+			drainHandler = handler;
+			return this;
+		}
+
+		@Override
+		public WriteStream<Object> exceptionHandler(Handler<Throwable> handler) {
+			return this;
+		}
+
+		@Override
+		public WriteStream<Object> write(Object data) {
+			return this;
+		}
+
+		@Override
+		public WriteStream<Object> write(Object data, Handler<AsyncResult<Void>> handler) {
+			return this;
+		}
+
+		@Override
+		public void end() {
+		}
+
+		@Override
+		public void end(Handler<AsyncResult<Void>> handler) {
+		}
+
+		@Override
+		public WriteStream<Object> setWriteQueueMaxSize(int maxSize) {
+			return this;
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.math.RoundingMode;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Account state engine tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class AccountStateTest {
+
+	private static long units(String amount) {
+		return AccountState.toUnits(amount, RoundingMode.UNNECESSARY);
+	}
+
+	// trading account 2 settled on account 1, holding 10000
+	private static AccountState state() {
+
+		AccountState state = new AccountState();
+		state.put(1, 0, units("10000"), 0);
+		state.put(2, 1, 0, 0);
+		return state;
+	}
+
+	@Test
+	public void testOrderCost() {
+
+		assertEquals(units("5000"), AccountState.orderCost(units("100")));
+		assertEquals(units("0.00000005"), AccountState.orderCost(units("0.000000001")));
+		// amounts returned by the DB have 18 decimal places
+		assertEquals(units("0.000000001"), AccountState.toUnits("0.000000000000000001", RoundingMode.UP));
+	}
+
+	@Test
+	public void testPriceLimitOutOfRange() {
+
+		// 50 at this price overflows a long - rejected without touching any account
+		AccountState state = state();
+		Result[] result = new Result[1];
+		state.reserve(2, Long.MAX_VALUE / AccountState.ORDER_AMOUNT + 1, r -> result[0] = r);
+
+		assertFalse(result[0].isOk());
+		assertEquals("price_limit out of range : 184467440.737095517", result[0].message);
+		assertEquals(units("10000"), state.available(1));
+	}
+
+	@Test
+	public void testReserveAndRelease() {
+
+		AccountState state = state();
+		long cost = units("4000");
+
+		assertEquals(-1, state.reserveAll(new long[] { 2 }, new long[] { cost }));
+		assertEquals(-1, state.reserveAll(new long[] { 2 }, new long[] { cost }));
+		assertEquals(units("2000"), state.available(1));
+		assertEquals(AccountState.Check.INSUFFICIENT_FUNDS, state.check(2, cost));
+		assertEquals(0, state.reserveAll(new long[] { 2 }, new long[] { cost }));
+
+		state.releaseCost(2, cost);
+		assertEquals(units("6000"), state.available(1));
+		assertEquals(AccountState.Check.OK, state.check(2, cost));
+	}
+
+	@Test
+	public void testReserveAllOrNone() {
+
+		AccountState state = state();
+		long cost = units("4000");
+
+		// the third order does not fit, so none is reserved
+		assertEquals(2, state.reserveAll(new long[] { 2, 2, 2 }, new long[] { cost, cost, cost }));
+		assertEquals(0, state.reserved(1));
+
+		assertEquals(AccountState.Check.UNKNOWN_ACCOUNT, state.check(3, cost));
+		assertEquals(AccountState.Check.NOT_TRADING_ACCOUNT, state.check(1, cost));
+	}
+
+	@Test
+	public void testExecuted() {
+
+		AccountState state = state();
+		long cost = AccountState.orderCost(units("100"));
+		state.reserveAll(new long[] { 2 }, new long[] { cost });
+
+		// executed below its limit, with the entries of execute_limit_orders
+		state.executed(2, cost, units("50"), units("4500"));
+		assertEquals(0, state.reserved(1));
+		assertEquals(units("14500"), state.available(1));
+		assertEquals(units("50"), state.available(2));
+	}
+
+	@Test
+	public void testExecutedOverflow() {
+
+		AccountState state = state();
+		long cost = AccountState.orderCost(units("100"));
+		state.reserveAll(new long[] { 2 }, new long[] { cost });
+
+		// neither account nor the reservation changes
+		try {
+			state.executed(2, cost, units("50"), Long.MAX_VALUE);
+			fail();
+		} catch (ArithmeticException e) {
+			assertEquals(units("5000"), state.available(1));
+			assertEquals(0, state.available(2));
+		}
+	}
+
+	@Test
+	public void testLoadedAmountOutOfRange() {
+
+		// account 3's balance does not fit - the other accounts are still loaded
+		AccountState state = new AccountState();
+		state.put(new Result(Arrays.asList(
+				new JsonObject().put("account_id", 1L).put("balance", "10000").put("reserved", "0"),
+				new JsonObject().put("account_id", 3L).put("balance", "10000000000000").put("reserved", "0"),
+				new JsonObject().put("account_id", 2L).put("settlement_account_id", 1L).put("balance", "0").put("reserved", "0"))));
+
+		assertEquals(2, state.size());
+		assertEquals(AccountState.Check.UNKNOWN_ACCOUNT, state.check(3, 0));
+		assertEquals(AccountState.Check.OK, state.check(2, units("10000")));
+	}
+
+	@Test
+	public void testGrow() {
+
+		AccountState state = new AccountState();
+		for (long id = 1; id <= 5000; id++) {
+			state.put(id, id == 1 ? 0 : 1, id, 0);
+		}
+		assertEquals(5000, state.size());
+		assertEquals(4711, state.available(4711));
+		assertEquals(AccountState.Check.OK, state.check(4711, 1));
+	}
+}
@@ -0,0 +1,120 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import io.vertx.ext.sql.ResultSet;
+import io.vertx.ext.sql.SQLConnection;
+
+/**
+ * <p>
+ * DB statement batch tests, against a connection recording the statements sent
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class DBTest {
+
+	@Test
+	public void testCommit() {
+
+		List<String> sent = new ArrayList<>();
+		Result[] result = new Result[1];
+
+		DB.execBatch(connection(sent), new DB.Batch()
+				.returnRows("SELECT * FROM execute_limit_orders(?::BIGINT[],?)", DB.params("{1,2}", 100))
+				.returnValue("SELECT 1", null), true, r -> result[0] = r);
+
+		assertEquals(Arrays.asList("BEGIN", "SELECT * FROM execute_limit_orders(?::BIGINT[],?)", "SELECT 1", "COMMIT"), sent);
+		assertTrue(result[0].isOk());
+		assertEquals(2, ((List<?>) result[0].data).size());
+		assertEquals(Collections.singletonList(row()), ((List<?>) result[0].data).get(0));
+		assertEquals(1, ((List<?>) result[0].data).get(1));
+	}
+
+	@Test
+	public void testRollback() {
+
+		List<String> sent = new ArrayList<>();
+		Result[] result = new Result[1];
+
+		// the statements after the failed one are not sent
+		DB.execBatch(connection(sent), new DB.Batch()
+				.exec("SELECT 1", null)
+				.exec("SELECT fail", null)
+				.exec("SELECT 2", null), true, r -> result[0] = r);
+
+		assertEquals(Arrays.asList("BEGIN", "SELECT 1", "SELECT fail", "ROLLBACK"), sent);
+		assertFalse(result[0].isOk());
+		assertEquals("rejected : SELECT fail", result[0].message);
+	}
+
+	@Test
+	public void testNoTransaction() {
+
+		List<String> sent = new ArrayList<>();
+		Result[] result = new Result[1];
+
+		DB.execBatch(connection(sent), new DB.Batch()
+				.exec("SELECT fail", null)
+				.exec("SELECT 2", null), false, r -> result[0] = r);
+
+		assertEquals(Collections.singletonList("SELECT fail"), sent);
+		assertFalse(result[0].isOk());
+	}
+
+	private static JsonObject row() {
+		return new JsonObject().put("id", 1);
+	}
+
+	/**
+	 * A connection answering every statement at once with one row, or failing statements containing "fail"
+	 */
+	@SuppressWarnings("unchecked")
+	private static SQLConnection connection(List<String> sent) {
+
+		return (SQLConnection) Proxy.newProxyInstance(DBTest.class.getClassLoader(), new Class<?>[] { SQLConnection.class }, 
+				(proxy, method, args) -> {
+
+			switch (method.getName()) {
+			case "setAutoCommit":
+				sent.add((Boolean) args[0] ? "END" : "BEGIN");
+				((Handler<AsyncResult<Void>>) args[1]).handle(Future.succeededFuture());
+				break;
+			case "commit":
+			case "rollback":
+				sent.add(method.getName().toUpperCase());
+				((Handler<AsyncResult<Void>>) args[0]).handle(Future.succeededFuture());
+				break;
+			case "queryWithParams":
+				String sql = (String) args[0];
+				sent.add(sql);
+				Handler<AsyncResult<ResultSet>> handler = (Handler<AsyncResult<ResultSet>>) args[2];
+				if (sql.contains("fail")) {
+					handler.handle(Future.failedFuture("rejected : " + sql));
+				} else {
+					handler.handle(Future.succeededFuture(new ResultSet(Collections.singletonList("id"),
+							Collections.singletonList(new JsonArray().add(1)), null)));
+				}
+				break;
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+			return proxy;
+		});
+	}
+}
@@ -0,0 +1,73 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Fixed-point decimal tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class FixedPointTest {
+
+	private static final String[] DECIMALS = { "0", "3124.12", "-3124.12", "+7", "0.0000000005", "0.0000000015", "-0.0000000005", 
+			"1.9999999999", "8719.160000000000000000", "0E-18", "1E+2", "1.5e-9", "12.", ".5", "9223372036.854775807" };
+
+	@Test
+	public void testParseAsBigDecimal() {
+
+		for (String decimal : DECIMALS) {
+			for (RoundingMode rounding : new RoundingMode[] { RoundingMode.UP, RoundingMode.DOWN, RoundingMode.CEILING, RoundingMode.FLOOR, 
+					RoundingMode.HALF_UP, RoundingMode.HALF_DOWN, RoundingMode.HALF_EVEN }) {
+				long expected = new BigDecimal(decimal).setScale(FixedPoint.SCALE, rounding).unscaledValue().longValueExact();
+				assertEquals(decimal + " " + rounding, expected, FixedPoint.parse(decimal, FixedPoint.SCALE, rounding));
+			}
+		}
+	}
+
+	@Test
+	public void testParseInvalid() {
+
+		for (String decimal : new String[] { "", "-", ".", "1.2.3", "12a", "1E", "1E+", "NaN", "Infinity" }) {
+			try {
+				FixedPoint.parse(decimal, FixedPoint.SCALE, RoundingMode.DOWN);
+				fail("Accepted " + decimal);
+			} catch (NumberFormatException e) {
+				// expected
+			}
+		}
+
+		for (String decimal : new String[] { "9223372036.854775808", "1E+10", "0.0000000001" }) {
+			try {
+				FixedPoint.parse(decimal, FixedPoint.SCALE, RoundingMode.UNNECESSARY);
+				fail("Accepted " + decimal);
+			} catch (ArithmeticException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testFromDouble() {
+
+		assertEquals(3124120000000L, FixedPoint.fromDouble(3124.12, FixedPoint.SCALE, RoundingMode.DOWN));
+		assertEquals(12345678900000000L, FixedPoint.fromDouble(1.23456789E7, FixedPoint.SCALE, RoundingMode.DOWN));
+	}
+
+	@Test
+	public void testFormat() {
+
+		assertEquals("3124.120000000", FixedPoint.toPlainString(3124120000000L, FixedPoint.SCALE));
+		assertEquals("-0.000000005", FixedPoint.toPlainString(-5, FixedPoint.SCALE));
+		assertEquals("0.000000000", FixedPoint.toPlainString(0, FixedPoint.SCALE));
+		assertEquals("42", FixedPoint.toPlainString(42, 0));
+		assertEquals(new BigDecimal("-3124.120000000"), FixedPoint.toBigDecimal(-3124120000000L, FixedPoint.SCALE));
+	}
+}
@@ -0,0 +1,68 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Multi-instrument routing tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class InstrumentsTest {
+
+	private static JsonObject order(long id, String ccy) {
+		return new JsonObject().put("id", id).put("ccy", ccy);
+	}
+
+	@Test
+	public void testOrdersRoutedByInstrument() throws InterruptedException {
+
+		Vertx vertx = Vertx.vertx();
+		try {
+			List<JsonArray> xbt = new ArrayList<>();
+			List<JsonArray> eth = new ArrayList<>();
+			CountDownLatch received = new CountDownLatch(2);
+			vertx.eventBus().<JsonArray>consumer(OrderService.limitOrdersCreated("XBT"), message -> {
+				xbt.add(message.body());
+				received.countDown();
+			});
+			vertx.eventBus().<JsonArray>consumer(OrderService.limitOrdersCreated("ETH"), message -> {
+				eth.add(message.body());
+				received.countDown();
+			});
+
+			OrderService.publishLimitOrdersCreated(vertx, Arrays.asList(order(1, "XBT"), order(2, "ETH"), order(3, "XBT")));
+
+			assertEquals(true, received.await(5, TimeUnit.SECONDS));
+			assertEquals(1, xbt.size());
+			assertEquals(2, xbt.get(0).size());
+			assertEquals(Long.valueOf(3), xbt.get(0).getJsonObject(1).getLong("id"));
+			assertEquals(1, eth.size());
+			assertEquals(Long.valueOf(2), eth.get(0).getJsonObject(0).getLong("id"));
+		} finally {
+			vertx.close();
+		}
+	}
+
+	@Test
+	public void testPriceConfigDefaults() {
+
+		assertEquals("/btc-price", ExecuteLimitOrders.priceConfig("XBT").getString("price.path"));
+		assertEquals("/btc-price/stream", ExecuteLimitOrders.priceConfig("XBT").getString("price.streamPath"));
+		assertEquals("/eth-price", ExecuteLimitOrders.priceConfig("ETH").getString("price.path"));
+		assertEquals("/eth-price/stream", ExecuteLimitOrders.priceConfig("ETH").getString("price.streamPath"));
+	}
+}
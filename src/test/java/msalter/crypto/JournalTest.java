@@ -0,0 +1,109 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Write-ahead journal tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class JournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static long append(Journal journal, String data) throws Exception {
+
+		CompletableFuture<Long> number = new CompletableFuture<>();
+		journal.append(data.getBytes(StandardCharsets.UTF_8), ar -> {
+			if (ar.succeeded()) {
+				number.complete(ar.result());
+			} else {
+				number.completeExceptionally(ar.cause());
+			}
+		});
+		return number.get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testAppendAndRecover() throws Exception {
+
+		File dir = folder.newFolder();
+
+		Journal journal = new Journal(dir, 1024);
+		assertEquals(0, journal.recovered().size());
+		for (int i = 1; i <= 3; i++) {
+			assertEquals(i, append(journal, "record " + i));
+		}
+		journal.close();
+
+		// numbering carries on after the recovered records
+		journal = new Journal(dir, 1024);
+		List<Journal.Record> recovered = journal.recovered();
+		assertEquals(3, recovered.size());
+		assertEquals(1, recovered.get(0).number);
+		assertArrayEquals("record 3".getBytes(StandardCharsets.UTF_8), recovered.get(2).data);
+		assertEquals(4, append(journal, "record 4"));
+		journal.close();
+	}
+
+	@Test
+	public void testTruncate() throws Exception {
+
+		File dir = folder.newFolder();
+
+		// 4 records of 16 + 84 bytes per segment
+		Journal journal = new Journal(dir, 400);
+		for (int i = 1; i <= 10; i++) {
+			append(journal, String.format("%084d", i));
+		}
+		assertEquals(3, journal.segmentCount());
+
+		// the first segment only
+		journal.truncate(5);
+		assertEquals(2, journal.segmentCount());
+
+		// never the segment written to
+		journal.truncate(10);
+		assertEquals(1, journal.segmentCount());
+		journal.close();
+
+		journal = new Journal(dir, 400);
+		assertEquals(2, journal.recovered().size());
+		assertEquals(9, journal.recovered().get(0).number);
+		journal.close();
+	}
+
+	@Test
+	public void testRecordTooLarge() throws Exception {
+
+		Journal journal = new Journal(folder.newFolder(), 64);
+		CompletableFuture<Boolean> failed = new CompletableFuture<>();
+		journal.append(new byte[64], ar -> failed.complete(ar.failed()));
+		assertTrue(failed.get(10, TimeUnit.SECONDS));
+		journal.close();
+	}
+
+	@Test
+	public void testOrderRecord() {
+
+		JsonObject order = new JsonObject().put("id", 7L).put("account_id", 2L).put("limit_price", "3124.120000000").put("created", "2026-10-18T10:15:30.123");
+		assertEquals(order, OrderJournal.decode(OrderJournal.encode(order)));
+	}
+}
@@ -0,0 +1,79 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * <p>
+ * Limit order batch parsing tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LimitOrderBatchTest {
+
+	@Test
+	public void testJsonArray() {
+
+		LimitOrderBatch batch = LimitOrderBatch.parse(Buffer.buffer(
+				"[ { \"account_id\" : 2, \"price_limit\" : 3124.12 }, { \"account_id\" : \"3\", \"price_limit\" : \"3124.123456789\", \"note\" : [1] } ]"), 10);
+
+		assertEquals(2, batch.size());
+		assertEquals(2L, batch.accountId(0));
+		assertEquals(3124123456789L, batch.limitPrice(1));
+		assertEquals("{2,3}", batch.accountIdsLiteral());
+		assertEquals("{3124.120000000,3124.123456789}", batch.limitPricesLiteral());
+	}
+
+	@Test
+	public void testNdjson() {
+
+		LimitOrderBatch batch = LimitOrderBatch.parse(Buffer.buffer(
+				"{\"account_id\":2,\"price_limit\":1E+2}\n{\"account_id\":2,\"price_limit\":0.0000000005}\n"), 10);
+
+		assertEquals(2, batch.size());
+		// rounded half up to the 9 decimal places of a limit price
+		assertEquals("{100.000000000,0.000000001}", batch.limitPricesLiteral());
+	}
+
+	@Test
+	public void testInvalid() {
+
+		assertInvalid("[]", "No orders");
+		assertInvalid("[{\"account_id\":2,\"price_limit\":1},", "Invalid json after 1 orders");
+		assertInvalid("[{\"account_id\":2}]", "Order 0 : price_limit missing or invalid");
+		assertInvalid("[{\"account_id\":2,\"price_limit\":1},{\"account_id\":2,\"price_limit\":-1}]", "Order 1 : price_limit missing or invalid");
+		assertInvalid("[{\"account_id\":2,\"price_limit\":12345678901}]", "Order 0 : price_limit missing or invalid");
+		assertInvalid("[{\"account_id\":\"x\",\"price_limit\":1}]", "Order 0 : account_id missing or invalid");
+		assertInvalid("[1]", "Order 0 : not a json object");
+		assertInvalid("[{\"account_id\":2,\"price_limit\":1},{\"account_id\":2,\"price_limit\":1},{\"account_id\":2,\"price_limit\":1}]", 
+				"Too many orders, the maximum is 2");
+	}
+
+	@Test
+	public void testParsePrice() {
+
+		assertEquals(Long.valueOf(3124120000000L), LimitOrderBatch.parsePrice("3124.12"));
+		assertEquals(Long.valueOf(1L), LimitOrderBatch.parsePrice("0.0000000005"));
+		assertNull(LimitOrderBatch.parsePrice(null));
+		assertNull(LimitOrderBatch.parsePrice("abc"));
+		assertNull(LimitOrderBatch.parsePrice("12345678901"));
+	}
+
+	private static void assertInvalid(String body, String message) {
+
+		try {
+			LimitOrderBatch.parse(Buffer.buffer(body), 2);
+			fail("Accepted " + body);
+		} catch (IllegalArgumentException e) {
+			if (!e.getMessage().startsWith(message)) {
+				fail("Unexpected message for " + body + " : " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpMethod;
+
+/**
+ * <p>
+ * Local call tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LocalCallTest {
+
+	@Test
+	public void testWireFormat() {
+
+		Buffer wire = Buffer.buffer("header");
+		new LocalCall.RequestCodec().encodeToWire(wire, new LocalCall.Request("POST", "/account?x=1", null, "id-1", Buffer.buffer("name=é")));
+
+		LocalCall.Request request = new LocalCall.RequestCodec().decodeFromWire(6, wire);
+		assertEquals("POST", request.method);
+		assertEquals("/account?x=1", request.uri);
+		assertNull(request.contentType);
+		assertEquals("id-1", request.requestId);
+		assertEquals("name=é", request.body.toString());
+
+		wire = Buffer.buffer();
+		new LocalCall.ResponseCodec().encodeToWire(wire, new LocalCall.Response(201, Buffer.buffer("{}")));
+
+		LocalCall.Response response = new LocalCall.ResponseCodec().decodeFromWire(0, wire);
+		assertEquals(201, response.status);
+		assertEquals("{}", response.body.toString());
+	}
+
+	@Test
+	public void testRequestParams() {
+
+		LocalCall.Request call = new LocalCall.Request("POST", "/account/?pretty=true", "application/x-www-form-urlencoded", null, 
+				Buffer.buffer("name=Crypto+Fund%20AG&usd_balance=50000"));
+
+		ServiceRequest request = ServiceRequest.fromLocalCall(call, Collections.singletonMap("account_id", "2"));
+
+		assertEquals(HttpMethod.POST, request.method());
+		assertEquals("Crypto Fund AG", request.getParam("name"));
+		assertEquals("50000", request.getParam("usd_balance"));
+		assertEquals("2", request.getParam("account_id"));
+		assertEquals("-", request.requestId());
+		assertEquals(true, request.isPretty());
+	}
+}
@@ -0,0 +1,50 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import io.vertx.core.http.HttpMethod;
+
+/**
+ * <p>
+ * Local routing table tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class LocalRoutesTest {
+
+	@Test
+	public void testMatch() {
+
+		LocalRoutes<Integer> routes = new LocalRoutes<>();
+		routes.add(HttpMethod.POST, "/account/", 1);
+		routes.add(HttpMethod.GET, "/accountdetails/:account_id", 2);
+		routes.add(HttpMethod.POST, "/limitorders/batch", 3);
+
+		assertEquals(Integer.valueOf(1), routes.match(HttpMethod.POST, "/account").target);
+		assertEquals(Integer.valueOf(1), routes.match(HttpMethod.POST, "/account/?pretty=true").target);
+
+		LocalRoutes.Match<Integer> match = routes.match(HttpMethod.GET, "/accountdetails/42?pretty=true");
+		assertEquals(Integer.valueOf(2), match.target);
+		assertEquals("/accountdetails/:account_id", match.path);
+		assertEquals("42", match.params.get("account_id"));
+
+		assertEquals(Integer.valueOf(3), routes.match(HttpMethod.POST, "/limitorders/batch").target);
+	}
+
+	@Test
+	public void testNoMatch() {
+
+		LocalRoutes<Integer> routes = new LocalRoutes<>();
+		routes.add(HttpMethod.POST, "/account/", 1);
+		routes.add(HttpMethod.GET, "/accountdetails/:account_id", 2);
+
+		assertNull(routes.match(HttpMethod.GET, "/account/"));
+		assertNull(routes.match(HttpMethod.GET, "/accountdetails/"));
+		assertNull(routes.match(HttpMethod.GET, "/accountdetails/42/orders"));
+		assertNull(routes.match(HttpMethod.POST, "/accounts/"));
+	}
+}
@@ -0,0 +1,61 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * <p>
+ * Metrics registry tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class MetricsTest {
+
+	@Before
+	public void setUp() {
+		Metrics.clear();
+	}
+
+	@Test
+	public void testTimersByLabels() {
+
+		Metrics.Timer created = Metrics.timer("test_seconds", "Test", "route", "/account/", "status", "201");
+
+		assertSame(created, Metrics.timer("test_seconds", "Test", "route", "/account/", "status", "201"));
+		assertTrue(created != Metrics.timer("test_seconds", "Test", "route", "/account/", "status", "400"));
+	}
+
+	@Test
+	public void testScrape() {
+
+		Metrics.Timer timer = Metrics.timer("test_seconds", "Test", "route", "/account/");
+		timer.record(200000);		// 0.2 ms
+		timer.record(3000000);		// 3 ms
+		timer.record(20000000000L);	// 20 s
+
+		StringBuilder out = new StringBuilder();
+		Metrics.scrape(out);
+		String text = out.toString();
+
+		assertTrue(text.contains("# TYPE test_seconds histogram\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/account/\",le=\"5.0E-4\"} 1\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/account/\",le=\"0.005\"} 2\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/account/\",le=\"10.0\"} 2\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/account/\",le=\"+Inf\"} 3\n"));
+		assertTrue(text.contains("test_seconds_count{route=\"/account/\"} 3\n"));
+		assertEquals(20.0, timer.max(), 0.0);
+	}
+
+	@Test
+	public void testFunctionName() {
+
+		assertEquals("create_limit_order", DB.functionName("SELECT * FROM create_limit_order(?,?)"));
+		assertEquals("execute_limit_orders", DB.functionName("SELECT * FROM execute_limit_orders(?::BIGINT[],?)"));
+		assertEquals("sql", DB.functionName("SELECT 1"));
+	}
+}
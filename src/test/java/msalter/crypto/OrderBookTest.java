@@ -0,0 +1,74 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Order book tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class OrderBookTest {
+
+	@Test
+	public void testMatchTakesCrossedLevelsBestFirst() {
+
+		OrderBook book = new OrderBook();
+		book.add(1, OrderBook.toPriceKey("100.5"));
+		book.add(2, OrderBook.toPriceKey("101"));
+		book.add(3, OrderBook.toPriceKey("99"));
+		book.add(4, OrderBook.toPriceKey("100.5"));
+
+		// 99 does not cross - the limit price must be above the current price
+		assertArrayEquals(new long[] {2, 1, 4}, book.match(OrderBook.toPriceKey(99.0)));
+		assertEquals(1, book.size());
+		assertEquals(1, book.levelCount());
+		assertEquals(OrderBook.toPriceKey("99"), book.bestPrice());
+
+		assertArrayEquals(new long[0], book.match(OrderBook.toPriceKey(99.0)));
+		assertArrayEquals(new long[] {3}, book.match(OrderBook.toPriceKey(98.0)));
+		assertEquals(0, book.size());
+		assertEquals(Long.MIN_VALUE, book.bestPrice());
+	}
+
+	@Test
+	public void testLevelKeepsArrivalOrderWhenGrowing() {
+
+		OrderBook book = new OrderBook();
+		long price = OrderBook.toPriceKey("8719.16");
+		for (long id = 1; id <= 100; id++) {
+			book.add(id, price);
+			book.add(1000 + id, price - id);
+		}
+
+		long[] matched = book.match(price - 1);
+		assertEquals(100, matched.length);
+		for (int i = 0; i < matched.length; i++) {
+			assertEquals(i + 1, matched[i]);
+		}
+		assertEquals(100, book.size());
+		assertEquals(100, book.levelCount());
+	}
+
+	@Test
+	public void testRestoreAheadOfNewOrders() {
+
+		OrderBook book = new OrderBook();
+		book.add(1, OrderBook.toPriceKey("101"));
+		book.add(2, OrderBook.toPriceKey("100"));
+		book.add(3, OrderBook.toPriceKey("100"));
+
+		OrderBook.Matched matched = book.take(OrderBook.toPriceKey("99"));
+		assertArrayEquals(new long[] {1, 2, 3}, matched.orderIds);
+		book.add(4, OrderBook.toPriceKey("100"));
+
+		// orders 2 and 3 could not be executed
+		book.restore(matched, 1, 3);
+		assertEquals(3, book.size());
+		assertArrayEquals(new long[] {2, 3, 4}, book.match(OrderBook.toPriceKey("99")));
+	}
+}
@@ -0,0 +1,177 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.math.RoundingMode;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+
+/**
+ * <p>
+ * Order journal DB writer tests, against a DB answering with scripted Results
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class OrderJournalTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private Vertx vertx;
+	private ScriptedDB db;
+	private Journal journal;
+	private OrderJournal orderJournal;
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+
+		vertx = Vertx.vertx();
+		db = new ScriptedDB(vertx);
+		dir = folder.newFolder();
+		journal = new Journal(dir, 1024 * 1024);
+		orderJournal = new OrderJournal(vertx, db, journal, dir);
+	}
+
+	@After
+	public void tearDown() {
+		journal.close();
+		vertx.close();
+	}
+
+	@Test
+	public void testTransientFailureKeepsOrder() throws Exception {
+
+		long id = submit();
+
+		// eg the pool queue is full - no SQLSTATE
+		db.persistResults.add(new Result(false, "DB connection queue full", null));
+		orderJournal.flush();
+
+		assertNotNull(orderJournal.pendingOrder(id));
+		assertFalse(new File(dir, "rejected.ndjson").exists());
+
+		// backing off - not tried again straight away
+		orderJournal.flush();
+		assertEquals(1, db.persisted.size());
+	}
+
+	@Test
+	public void testRejectedOrderIsSetAsideAndReleased() throws Exception {
+
+		// the account state which reserved the order's funds
+		AccountState state = new AccountState();
+		state.put(1, 0, AccountState.toUnits("10000", RoundingMode.UNNECESSARY), 0);
+		state.put(2, 1, 0, 0);
+		long priceLimit = FixedPoint.parse("100", FixedPoint.SCALE, RoundingMode.UNNECESSARY);
+		state.reserveAll(new long[] { 2 }, new long[] { AccountState.orderCost(priceLimit) });
+		assertEquals(AccountState.toUnits("5000", RoundingMode.UNNECESSARY), state.available(1));
+
+		CompletableFuture<JsonObject> released = new CompletableFuture<>();
+		vertx.eventBus().<JsonObject>consumer(OrderJournal.ORDERS_REJECTED, message -> {
+			state.onRejected(message.body());
+			released.complete(message.body());
+		});
+
+		long id = submit();
+
+		// numeric field overflow
+		Result overflow = new Result(false, "numeric field overflow", null);
+		overflow.sqlState = "22003";
+		db.persistResults.add(overflow);
+		orderJournal.flush();
+
+		assertNull(orderJournal.pendingOrder(id));
+		assertEquals(Long.valueOf(id), released.get(10, TimeUnit.SECONDS).getLong("id"));
+		assertEquals(AccountState.toUnits("10000", RoundingMode.UNNECESSARY), state.available(1));
+		assertTrue(new String(Files.readAllBytes(new File(dir, "rejected.ndjson").toPath()), "UTF-8").contains("\"id\":" + id));
+	}
+
+	@Test
+	public void testRejectedData() {
+
+		Result result = new Result(false, "insert or update violates foreign key constraint", null);
+		result.sqlState = "23503";
+		assertTrue(OrderJournal.rejectedData(result));
+
+		result.sqlState = "57P01";
+		assertFalse(OrderJournal.rejectedData(result));
+		assertFalse(OrderJournal.rejectedData(new Result(false, "connection closed", null)));
+	}
+
+	/**
+	 * Journal an order of trading account 2 at 100, once ids are reserved
+	 */
+	private long submit() throws Exception {
+
+		CompletableFuture<Result> acknowledged = new CompletableFuture<>();
+		long priceLimit = FixedPoint.parse("100", FixedPoint.SCALE, RoundingMode.UNNECESSARY);
+
+		// the first call only reserves the ids
+		while (!orderJournal.submit(2, priceLimit, acknowledged::complete)) {
+			Thread.sleep(10);
+		}
+
+		Result result = acknowledged.get(10, TimeUnit.SECONDS);
+		assertTrue(result.isOk());
+		return ((JsonObject) result.data).getLong("id");
+	}
+
+	/**
+	 * Answers the journal's statements at once - order ids, the order account, and the scripted Results of persist_limit_orders
+	 */
+	private static final class ScriptedDB extends DB {
+
+		final ArrayDeque<Result> persistResults = new ArrayDeque<>();
+		final List<JsonArray> persisted = new ArrayList<>();
+
+		ScriptedDB(Vertx vertx) {
+			super(vertx);
+		}
+
+		@Override
+		public void execAndReturnRows(String sql, JsonArray params, Handler<Result> handler) {
+
+			if (sql.contains("reserve_order_ids")) {
+				List<JsonObject> ids = new ArrayList<>();
+				for (long id = 1; id <= 10; id++) {
+					ids.add(new JsonObject().put("id", id));
+				}
+				handler.handle(new Result(ids));
+			} else {
+				persisted.add(params);
+				handler.handle(persistResults.remove());
+			}
+		}
+
+		@Override
+		public void execAndReturnRow(String sql, JsonArray params, Handler<Result> handler) {
+			handler.handle(new Result(new JsonObject()
+					.put("settlement_account_id", 1L)
+					.put("client_id", 1L)
+					.put("ccy", "XBT")
+					.put("settlement_ccy", "USD")));
+		}
+	}
+}
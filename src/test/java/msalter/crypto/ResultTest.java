@@ -0,0 +1,82 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.ext.sql.ResultSet;
+
+/**
+ * <p>
+ * Result json writing tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class ResultTest {
+
+	private static final List<String> COLUMNS = Arrays.asList("id", "ccy", "amount", "stop_price", "rate", "active", "tags");
+
+	private static ResultSet resultSet(int rows) {
+
+		ResultSet resultSet = new ResultSet(COLUMNS, new ArrayList<>(), null);
+		for (long i = 1; i <= rows; i++) {
+			resultSet.getResults().add(new JsonArray().add(i).add("XBT \"Bitcoin\"").add("50.000000000000000000").addNull()
+					.add(0.25).add(true).add(new JsonArray().add("a").add(1)));
+		}
+		return resultSet;
+	}
+
+	@Test
+	public void testRowsMatchEncode() {
+
+		Result result = Result.createForRowsData(Future.succeededFuture(resultSet(3)));
+
+		assertEquals(result.toJson().encode(), result.toBuffer(false).toString());
+		assertEquals(result.toJson().encodePrettily(), result.toBuffer(true).toString());
+	}
+
+	@Test
+	public void testRowAndValueMatchEncode() {
+
+		Result row = Result.createForRowData(Future.succeededFuture(resultSet(1)));
+		Result value = Result.createForValueData(Future.succeededFuture(resultSet(1)));
+		Result empty = Result.createForRowData(Future.succeededFuture(resultSet(0)));
+
+		assertEquals(row.toJson().encode(), row.toBuffer(false).toString());
+		assertEquals(value.toJson().encode(), value.toBuffer(false).toString());
+		assertEquals(empty.toJson().encode(), empty.toBuffer(false).toString());
+	}
+
+	@Test
+	public void testAppendedRowsMatchEncode() {
+
+		// two pages streamed into one array
+		Buffer buffer = Buffer.buffer("[");
+		Result.appendRows(buffer, resultSet(2), true);
+		Result.appendRows(buffer, resultSet(0), false);
+		Result.appendRows(buffer, resultSet(3), false);
+		buffer.appendString("]");
+
+		JsonArray expected = new JsonArray();
+		resultSet(2).getRows().forEach(expected::add);
+		resultSet(3).getRows().forEach(expected::add);
+
+		assertEquals(expected.encode(), buffer.toString());
+	}
+
+	@Test
+	public void testFailure() {
+
+		Result result = new Result(false, "Account not found", null);
+
+		assertEquals("{\"ok\":false,\"message\":\"Account not found\",\"data\":null}", result.toBuffer(false).toString());
+	}
+}
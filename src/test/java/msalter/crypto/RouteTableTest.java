@@ -0,0 +1,32 @@
+package msalter.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * <p>
+ * Prefix routing table tests
+ * </p>
+ * @author      Mark Salter <a href="mailto:msalter@swissonline.ch">msalter@swissonline.ch</a>
+ * @version     0.1
+ */
+public class RouteTableTest {
+
+	@Test
+	public void testLongestPrefixWins() {
+
+		RouteTable<Integer> routes = new RouteTable<>();
+		routes.add("/account", 8082);
+		routes.add("/accountdetails/", 8084);
+		routes.add("/limitorder", 8083);
+
+		assertEquals(Integer.valueOf(8082), routes.resolve("/account/"));
+		assertEquals(Integer.valueOf(8084), routes.resolve("/accountdetails/2"));
+		assertEquals(Integer.valueOf(8082), routes.resolve("/accountdetail"));
+		assertEquals(Integer.valueOf(8083), routes.resolve("/limitorder?account_id=2"));
+		assertNull(routes.resolve("/orderdetails/1"));
+		assertNull(routes.resolve("/"));
+	}
+}